@@ -0,0 +1,28 @@
+package org.kbiying.farmersmarket.server;
+
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Hands the responses of a service call to a blackhole, and fails the benchmark on an error. */
+final class BlackholeObserver<T> implements StreamObserver<T> {
+
+  private final Blackhole blackhole;
+
+  BlackholeObserver(Blackhole blackhole) {
+    this.blackhole = blackhole;
+  }
+
+  @Override
+  public void onNext(T value) {
+    blackhole.consume(value);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    throw new IllegalStateException("Benchmarked call failed", t);
+  }
+
+  @Override
+  public void onCompleted() {
+  }
+}
@@ -0,0 +1,102 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.Int64Value;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures whole calls through an in-process {@link FarmersMarketServer}: the client stub, the
+ * server's interceptors and request executor, the service and protobuf serialization, without
+ * the network. {@link #echo} is the floor that every other call pays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class GrpcRoundTripBenchmark {
+
+  private static final String SERVER_NAME = "farmers-market-jmh";
+  private static final int REQUEST_COUNT = 1024;
+
+  @Param({"10000", "100000", "1000000"})
+  public int rows;
+
+  private FarmersMarketServer server;
+  private ManagedChannel channel;
+  private FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub stub;
+  private EchoFarmersMarketRequest echoRequest;
+  private ReadFarmersMarketRequest[] readByIdRequests;
+  private ReadFarmersMarketRequest[] readByCityRequests;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    String path = SyntheticDatabase.getPath(rows);
+    List<FarmersMarket> sample = SyntheticDatabase.sample(path, rows, REQUEST_COUNT);
+    echoRequest = EchoFarmersMarketRequest.newBuilder().setFarmersMarket(sample.get(0)).build();
+    readByIdRequests = new ReadFarmersMarketRequest[sample.size()];
+    readByCityRequests = new ReadFarmersMarketRequest[sample.size()];
+    for (int i = 0; i < sample.size(); i++) {
+      readByIdRequests[i] = ReadFarmersMarketRequest.newBuilder()
+          .setFarmersMarket(FarmersMarketTemplate.newBuilder()
+              .setId(Int64Value.newBuilder().setValue(sample.get(i).getId())))
+          .build();
+      readByCityRequests[i] = ReadFarmersMarketRequest.newBuilder()
+          .setFarmersMarket(FarmersMarketTemplate.newBuilder().setCity(sample.get(i).getCity()))
+          .build();
+    }
+    server = new FarmersMarketServer(
+        FarmersMarketServerOptions.of(0, path).toBuilder().setReadCacheMaxMarkets(0).build(),
+        InProcessServerBuilder.forName(SERVER_NAME));
+    server.start();
+    channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    stub = FarmersMarketServiceGrpc.newBlockingStub(channel);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdown();
+    server.awaitTermination();
+  }
+
+  @Benchmark
+  public EchoFarmersMarketResponse echo() {
+    return stub.echoFarmersMarket(echoRequest);
+  }
+
+  @Benchmark
+  public ReadFarmersMarketResponse readById() {
+    ReadFarmersMarketRequest request = readByIdRequests[next];
+    next = (next + 1) % readByIdRequests.length;
+    return stub.readFarmersMarket(request);
+  }
+
+  @Benchmark
+  public ReadFarmersMarketResponse readByCity() {
+    ReadFarmersMarketRequest request = readByCityRequests[next];
+    next = (next + 1) % readByCityRequests.length;
+    return stub.readFarmersMarket(request);
+  }
+}
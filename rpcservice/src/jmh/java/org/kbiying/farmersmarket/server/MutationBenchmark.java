@@ -0,0 +1,124 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.kbiying.farmersmarket.proto.CreateFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.CreateFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.DeleteFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.DeleteFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.UpdateFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.UpdateFarmersMarketResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of single-market creates, updates and deletes on the service, each
+ * committed in its own transaction and applied to the spatial and text indexes.
+ *
+ * <p>Every trial works on its own copy of the synthetic database. Deletes are measured together
+ * with the create of the market they delete, so that the table keeps its size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class MutationBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  public int rows;
+
+  @Param({"ROLLBACK_JOURNAL", "WAL"})
+  public FarmersMarketServerOptions.StorageMode storageMode;
+
+  private String path;
+  private FarmersMarketService service;
+  private long nextUpdatedId;
+  private long updateCount;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    path = SyntheticDatabase.copy(rows);
+    service = new FarmersMarketService(FarmersMarketServerOptions.of(0, path).toBuilder()
+        .setStorageMode(storageMode)
+        .build(), new ServerMetrics());
+    nextUpdatedId = 1;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    service.close();
+    SyntheticDatabase.delete(path);
+  }
+
+  @Benchmark
+  public void create(Blackhole blackhole) {
+    service.createFarmersMarket(
+        CreateFarmersMarketRequest.newBuilder().setFarmersMarket(newTemplate()).build(),
+        new BlackholeObserver<CreateFarmersMarketResponse>(blackhole));
+  }
+
+  @Benchmark
+  public void updateById(Blackhole blackhole) {
+    long id = nextUpdatedId;
+    nextUpdatedId = id % rows + 1;
+    service.updateFarmersMarket(UpdateFarmersMarketRequest.newBuilder()
+            .setFarmersMarket(FarmersMarketTemplate.newBuilder()
+                .setName(StringValue.newBuilder().setValue("Updated Market " + updateCount++)))
+            .setConditions(FarmersMarketTemplate.newBuilder()
+                .setId(Int64Value.newBuilder().setValue(id)))
+            .build(),
+        new BlackholeObserver<UpdateFarmersMarketResponse>(blackhole));
+  }
+
+  @Benchmark
+  public void createThenDelete(Blackhole blackhole) {
+    long[] createdId = new long[1];
+    service.createFarmersMarket(
+        CreateFarmersMarketRequest.newBuilder().setFarmersMarket(newTemplate()).build(),
+        new StreamObserver<CreateFarmersMarketResponse>() {
+          @Override
+          public void onNext(CreateFarmersMarketResponse response) {
+            createdId[0] = response.getFarmersMarket().getId();
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            throw new IllegalStateException("Benchmarked call failed", t);
+          }
+
+          @Override
+          public void onCompleted() {
+          }
+        });
+    service.deleteFarmersMarket(DeleteFarmersMarketRequest.newBuilder()
+            .setFarmersMarket(FarmersMarketTemplate.newBuilder()
+                .setId(Int64Value.newBuilder().setValue(createdId[0])))
+            .setCountOnly(true)
+            .build(),
+        new BlackholeObserver<DeleteFarmersMarketResponse>(blackhole));
+  }
+
+  private static FarmersMarketTemplate newTemplate() {
+    return FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Benchmark Market"))
+        .setAddress(StringValue.newBuilder().setValue("1 Main Street"))
+        .setCity(StringValue.newBuilder().setValue(SyntheticDatabase.getCity("IL", 0)))
+        .setCounty(StringValue.newBuilder().setValue(SyntheticDatabase.getCounty("IL", 0)))
+        .setState(StringValue.newBuilder().setValue("IL"))
+        .setZip(StringValue.newBuilder().setValue("62701"))
+        .build();
+  }
+}
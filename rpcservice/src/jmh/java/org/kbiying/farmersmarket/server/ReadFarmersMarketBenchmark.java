@@ -0,0 +1,122 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code ReadFarmersMarket} on the service itself, without gRPC, for templates of
+ * different shapes. Each invocation reads with the next of a fixed set of requests built from
+ * markets spread over the database, so that one hot row does not stand in for the whole table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ReadFarmersMarketBenchmark {
+
+  private static final int REQUEST_COUNT = 1024;
+  private static final int PAGE_SIZE = 100;
+
+  /** The fields a read's template sets. */
+  public enum TemplateShape {
+    /** The primary key, matching one market. */
+    ID,
+    /** An indexed unique column, matching one market. */
+    NAME,
+    /** An indexed column matching about one market in 2000. */
+    CITY,
+    /** Two columns covered by one composite index. */
+    STATE_AND_CITY,
+    /** An indexed column matching about one market in 1000. */
+    COUNTY,
+    /** No fields, read a page at a time from an arbitrary Id. */
+    PAGE
+  }
+
+  @Param({"10000", "100000", "1000000"})
+  public int rows;
+
+  @Param
+  public TemplateShape shape;
+
+  @Param({"SQLITE", "COLUMN_STORE"})
+  public FarmersMarketServerOptions.ReadMode readMode;
+
+  private FarmersMarketService service;
+  private ReadFarmersMarketRequest[] requests;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    String path = SyntheticDatabase.getPath(rows);
+    List<FarmersMarket> sample = SyntheticDatabase.sample(path, rows, REQUEST_COUNT);
+    requests = new ReadFarmersMarketRequest[sample.size()];
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = getRequest(sample.get(i));
+    }
+    // The read cache would turn every benchmark into one of the cache.
+    service = new FarmersMarketService(FarmersMarketServerOptions.of(0, path).toBuilder()
+        .setReadMode(readMode)
+        .setReadCacheMaxMarkets(0)
+        .build(), new ServerMetrics());
+  }
+
+  private ReadFarmersMarketRequest getRequest(FarmersMarket farmersMarket) {
+    FarmersMarketTemplate.Builder template = FarmersMarketTemplate.newBuilder();
+    ReadFarmersMarketRequest.Builder request = ReadFarmersMarketRequest.newBuilder();
+    switch (shape) {
+      case ID:
+        template.setId(Int64Value.newBuilder().setValue(farmersMarket.getId()));
+        break;
+      case NAME:
+        template.setName(StringValue.newBuilder().setValue(farmersMarket.getName()));
+        break;
+      case CITY:
+        template.setCity(farmersMarket.getCity());
+        break;
+      case STATE_AND_CITY:
+        template.setState(farmersMarket.getState()).setCity(farmersMarket.getCity());
+        break;
+      case COUNTY:
+        template.setCounty(farmersMarket.getCounty());
+        break;
+      case PAGE:
+        request.setPageSize(PAGE_SIZE)
+            .setPageToken(PageTokens.encode(farmersMarket.getId(), template.build()));
+        break;
+      default:
+        throw new AssertionError(shape);
+    }
+    return request.setFarmersMarket(template).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    service.close();
+  }
+
+  @Benchmark
+  public void readFarmersMarket(Blackhole blackhole) {
+    ReadFarmersMarketRequest request = requests[next];
+    next = (next + 1) % requests.length;
+    service.readFarmersMarket(request, new BlackholeObserver<ReadFarmersMarketResponse>(blackhole));
+  }
+}
@@ -0,0 +1,71 @@
+package org.kbiying.farmersmarket.server;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link FarmersMarketService#getFarmersMarketFromRow} per row. {@link #stepRows} only
+ * steps through the same query, so the difference between the two is the cost of mapping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RowMappingBenchmark {
+
+  private static final int ROWS = 10_000;
+  private static final int ROWS_PER_INVOCATION = 1000;
+
+  private Connection connection;
+  private PreparedStatement select;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    connection = DriverManager.getConnection("jdbc:sqlite:" + SyntheticDatabase.getPath(ROWS));
+    select = connection.prepareStatement(TemplateQueries.SELECT_MARKETS + " LIMIT ?");
+    select.setInt(1, ROWS_PER_INVOCATION);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws SQLException {
+    select.close();
+    connection.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS_PER_INVOCATION)
+  public void stepRows(Blackhole blackhole) throws SQLException {
+    try (ResultSet resultSet = select.executeQuery()) {
+      while (resultSet.next()) {
+        blackhole.consume(resultSet.getLong(1));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS_PER_INVOCATION)
+  public void mapRows(Blackhole blackhole) throws SQLException {
+    try (ResultSet resultSet = select.executeQuery()) {
+      while (resultSet.next()) {
+        blackhole.consume(FarmersMarketService.getFarmersMarketFromRow(resultSet));
+      }
+    }
+    // Drop the time the server would have attributed to row mapping.
+    ServerMetrics.takeRowMappingNanos();
+  }
+}
@@ -0,0 +1,152 @@
+package org.kbiying.farmersmarket.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+
+/**
+ * Synthetic Markets databases of a given size for the benchmarks.
+ *
+ * <p>The rows are generated from a fixed seed, so every run and every fork benchmarks the same
+ * data. A database is generated once per size into the temporary directory, together with the
+ * indexes and derived tables the server builds on startup, and reused by later runs.
+ */
+final class SyntheticDatabase {
+
+  static final String[] STATES = {
+      "AK", "AL", "AR", "AZ", "CA", "CO", "CT", "DE", "FL", "GA", "HI", "IA", "ID", "IL", "IN",
+      "KS", "KY", "LA", "MA", "MD", "ME", "MI", "MN", "MO", "MS", "MT", "NC", "ND", "NE", "NH",
+      "NJ", "NM", "NV", "NY", "OH", "OK", "OR", "PA", "RI", "SC", "SD", "TN", "TX", "UT", "VA",
+      "VT", "WA", "WI", "WV", "WY"};
+  static final int CITIES_PER_STATE = 40;
+  static final int COUNTIES_PER_STATE = 20;
+
+  private static final long SEED = 20171105;
+  private static final int INSERT_BATCH_SIZE = 10_000;
+
+  private SyntheticDatabase() {}
+
+  /** Returns the path of the database with the given number of markets, generating it first. */
+  static synchronized String getPath(int rows) throws IOException, SQLException {
+    Path path = Paths.get(System.getProperty("java.io.tmpdir"),
+        "farmers-market-jmh-" + rows + ".db");
+    if (!Files.exists(path)) {
+      // Generated under a temporary name, so that an interrupted run or a concurrent fork never
+      // leaves a partial database behind under the final one.
+      Path generating = Files.createTempFile(path.getParent(), "farmers-market-jmh-", ".db");
+      generate(generating.toString(), rows);
+      try {
+        Files.move(generating, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.deleteIfExists(generating);
+        if (!Files.exists(path)) {
+          throw e;
+        }
+      }
+    }
+    return path.toString();
+  }
+
+  /** Returns the path of a fresh copy of the database, for benchmarks that change it. */
+  static String copy(int rows) throws IOException, SQLException {
+    Path copy = Files.createTempFile("farmers-market-jmh-" + rows + "-", ".db");
+    Files.copy(Paths.get(getPath(rows)), copy, StandardCopyOption.REPLACE_EXISTING);
+    copy.toFile().deleteOnExit();
+    return copy.toString();
+  }
+
+  static void delete(String path) {
+    try {
+      Files.deleteIfExists(Paths.get(path));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns {@code count} markets spread evenly over the database, for building requests. */
+  static List<FarmersMarket> sample(String path, int rows, int count) throws SQLException {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>(count);
+    try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+        PreparedStatement select = connection.prepareStatement(
+            TemplateQueries.SELECT_MARKETS + " WHERE Id % ? = 0 ORDER BY Id LIMIT ?")) {
+      select.setInt(1, Math.max(rows / count, 1));
+      select.setInt(2, count);
+      try (ResultSet resultSet = select.executeQuery()) {
+        while (resultSet.next()) {
+          farmersMarkets.add(FarmersMarketService.getFarmersMarketFromRow(resultSet));
+        }
+      }
+    }
+    return farmersMarkets;
+  }
+
+  static String getCity(String state, int city) {
+    return state + " City " + city;
+  }
+
+  static String getCounty(String state, int county) {
+    return state + " County " + county;
+  }
+
+  private static void generate(String path, int rows) throws SQLException {
+    try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path)) {
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("CREATE TABLE Markets ("
+            + "Id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "Name TEXT NOT NULL, "
+            + "Address TEXT, "
+            + "City TEXT, "
+            + "County TEXT, "
+            + "State TEXT, "
+            + "Zip TEXT, "
+            + "Lat REAL, "
+            + "Long REAL)");
+      }
+      connection.setAutoCommit(false);
+      Random random = new Random(SEED);
+      try (PreparedStatement insert = connection.prepareStatement("INSERT INTO Markets "
+          + "(Name, Address, City, County, State, Zip, Lat, Long) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+        for (int i = 1; i <= rows; i++) {
+          String state = STATES[random.nextInt(STATES.length)];
+          insert.setString(1, "Farmers' Market " + i);
+          // Some markets have no address, as in the real data.
+          if (i % 10 == 0) {
+            insert.setNull(2, Types.VARCHAR);
+          } else {
+            insert.setString(2, (1 + random.nextInt(9999)) + " Main Street");
+          }
+          insert.setString(3, getCity(state, random.nextInt(CITIES_PER_STATE)));
+          insert.setString(4, getCounty(state, random.nextInt(COUNTIES_PER_STATE)));
+          insert.setString(5, state);
+          insert.setString(6, String.format("%05d", random.nextInt(100_000)));
+          insert.setDouble(7, 25 + random.nextDouble() * 24);
+          insert.setDouble(8, -124 + random.nextDouble() * 57);
+          insert.addBatch();
+          if (i % INSERT_BATCH_SIZE == 0) {
+            insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+      }
+      connection.commit();
+    }
+    // Opening a service over the database builds its indexes and derived tables once, rather
+    // than in every benchmark's setup.
+    new FarmersMarketService(FarmersMarketServerOptions.of(0, path), new ServerMetrics()).close();
+  }
+}
@@ -0,0 +1,116 @@
+package org.kbiying.farmersmarket.client;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
+
+/**
+ * One server a client talks to: its channel and stubs, the number of calls in flight on it and
+ * whether its health checks pass.
+ */
+final class Endpoint {
+
+  private final FarmersMarketServerAddress address;
+  private final ManagedChannel channel;
+  private final AtomicInteger outstandingCalls = new AtomicInteger();
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub blockingStub;
+  private final FarmersMarketServiceGrpc.FarmersMarketServiceStub asyncStub;
+  private final FarmersMarketServiceGrpc.FarmersMarketServiceFutureStub futureStub;
+
+  private volatile boolean healthy = true;
+
+  Endpoint(FarmersMarketServerAddress address) {
+    this.address = address;
+    this.channel = ManagedChannelBuilder
+        .forAddress(address.getHost(), address.getPort())
+        .usePlaintext(true)
+        .build();
+    Channel countedChannel = ClientInterceptors.intercept(channel, new OutstandingCallCounter());
+    this.blockingStub = FarmersMarketServiceGrpc.newBlockingStub(countedChannel);
+    this.asyncStub = FarmersMarketServiceGrpc.newStub(countedChannel);
+    this.futureStub = FarmersMarketServiceGrpc.newFutureStub(countedChannel);
+  }
+
+  ManagedChannel getChannel() {
+    return channel;
+  }
+
+  FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub getBlockingStub() {
+    return blockingStub;
+  }
+
+  FarmersMarketServiceGrpc.FarmersMarketServiceStub getAsyncStub() {
+    return asyncStub;
+  }
+
+  FarmersMarketServiceGrpc.FarmersMarketServiceFutureStub getFutureStub() {
+    return futureStub;
+  }
+
+  int getOutstandingCalls() {
+    return outstandingCalls.get();
+  }
+
+  boolean isHealthy() {
+    return healthy;
+  }
+
+  /** Records a passed health check and returns whether it put the endpoint back in rotation. */
+  boolean recordHealthCheckPassed() {
+    consecutiveFailures.set(0);
+    boolean wasHealthy = healthy;
+    healthy = true;
+    return !wasHealthy;
+  }
+
+  /**
+   * Records a failed health check and returns whether it took the endpoint out of rotation, on
+   * the {@code unhealthyThreshold}-th failure in a row.
+   */
+  boolean recordHealthCheckFailed(int unhealthyThreshold) {
+    if (consecutiveFailures.incrementAndGet() < unhealthyThreshold || !healthy) {
+      return false;
+    }
+    healthy = false;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return address.getHost() + ":" + address.getPort();
+  }
+
+  /** Counts the calls on the channel from when they start until they close. */
+  private final class OutstandingCallCounter implements ClientInterceptor {
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+        MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+      return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+          outstandingCalls.incrementAndGet();
+          super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              outstandingCalls.decrementAndGet();
+              super.onClose(status, trailers);
+            }
+          }, headers);
+        }
+      };
+    }
+  }
+}
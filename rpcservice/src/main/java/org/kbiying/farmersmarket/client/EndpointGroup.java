@@ -0,0 +1,133 @@
+package org.kbiying.farmersmarket.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+
+/**
+ * The primary and replica servers of a client, with the choice of which one serves each call.
+ *
+ * <p>When there are replicas, each of them is sent an {@code EchoFarmersMarket} call every
+ * health check interval. A replica that fails several checks in a row is taken out of rotation
+ * until a check passes again. The primary is not checked: reads fall back to it while no replica
+ * is healthy, and writes go to it whatever its health, so that their failures reach the caller.
+ */
+final class EndpointGroup {
+
+  private static final Logger logger = Logger.getLogger(EndpointGroup.class.getName());
+
+  private final FarmersMarketClientOptions options;
+  private final Endpoint primary;
+  private final ImmutableList<Endpoint> replicas;
+  private final AtomicInteger nextReplica = new AtomicInteger();
+  // Null without replicas or with health checks disabled.
+  private final ScheduledExecutorService healthChecker;
+
+  EndpointGroup(FarmersMarketClientOptions options) {
+    this.options = options;
+    this.primary = new Endpoint(options.getPrimary());
+    ImmutableList.Builder<Endpoint> replicas = ImmutableList.builder();
+    for (FarmersMarketServerAddress replica : options.getReplicas()) {
+      replicas.add(new Endpoint(replica));
+    }
+    this.replicas = replicas.build();
+    if (this.replicas.isEmpty() || options.getHealthCheckInterval().isZero()) {
+      this.healthChecker = null;
+    } else {
+      this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "farmers-market-health-check");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long intervalNanos = options.getHealthCheckInterval().toNanos();
+      healthChecker.scheduleWithFixedDelay(
+          this::checkHealth, 0, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  Endpoint getPrimary() {
+    return primary;
+  }
+
+  /** Returns the endpoint for a read. */
+  Endpoint pickReplica() {
+    int replicaCount = replicas.size();
+    if (replicaCount == 0) {
+      return primary;
+    }
+    // Both policies start from the next replica in turn, so that ties are spread evenly.
+    int start = Math.floorMod(nextReplica.getAndIncrement(), replicaCount);
+    Endpoint picked = null;
+    for (int i = 0; i < replicaCount; i++) {
+      Endpoint replica = replicas.get((start + i) % replicaCount);
+      if (!replica.isHealthy()) {
+        continue;
+      }
+      if (options.getLoadBalancingPolicy()
+          == FarmersMarketClientOptions.LoadBalancingPolicy.ROUND_ROBIN) {
+        return replica;
+      }
+      if (picked == null || replica.getOutstandingCalls() < picked.getOutstandingCalls()) {
+        picked = replica;
+      }
+    }
+    return picked == null ? primary : picked;
+  }
+
+  private void checkHealth() {
+    for (Endpoint replica : replicas) {
+      checkHealth(replica);
+    }
+  }
+
+  private void checkHealth(Endpoint endpoint) {
+    Futures.addCallback(
+        endpoint.getFutureStub()
+            .withDeadlineAfter(options.getHealthCheckTimeout().toNanos(), TimeUnit.NANOSECONDS)
+            .echoFarmersMarket(EchoFarmersMarketRequest.getDefaultInstance()),
+        new FutureCallback<EchoFarmersMarketResponse>() {
+          @Override
+          public void onSuccess(EchoFarmersMarketResponse response) {
+            if (endpoint.recordHealthCheckPassed()) {
+              logger.log(Level.INFO, "{0} is healthy again", endpoint);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (endpoint.recordHealthCheckFailed(options.getUnhealthyThreshold())) {
+              logger.log(Level.WARNING, endpoint + " failed its health checks", t);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Stops the health checks and shuts down every channel, waiting up to the timeout. */
+  void shutdown(Duration timeout) throws InterruptedException {
+    if (healthChecker != null) {
+      healthChecker.shutdownNow();
+    }
+    primary.getChannel().shutdown();
+    for (Endpoint replica : replicas) {
+      replica.getChannel().shutdown();
+    }
+    long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    primary.getChannel().awaitTermination(
+        deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    for (Endpoint replica : replicas) {
+      replica.getChannel().awaitTermination(
+          deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+  }
+}
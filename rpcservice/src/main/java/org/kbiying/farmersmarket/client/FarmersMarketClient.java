@@ -1,12 +1,27 @@
 package org.kbiying.farmersmarket.client;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.StringValue;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
 import java.time.Duration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
@@ -15,40 +30,128 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesRequest;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesResponse;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsResponse;
 import org.kbiying.farmersmarket.proto.CreateFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.CreateFarmersMarketResponse;
 import org.kbiying.farmersmarket.proto.DeleteFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.DeleteFarmersMarketResponse;
 import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.ExportFormat;
 import org.kbiying.farmersmarket.proto.FarmersMarket;
 import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
 import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.FindFarmersMarketsInBoxRequest;
+import org.kbiying.farmersmarket.proto.FindFarmersMarketsInBoxResponse;
+import org.kbiying.farmersmarket.proto.FindNearbyFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.FindNearbyFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.GeoPoint;
+import org.kbiying.farmersmarket.proto.GetServerStatsRequest;
+import org.kbiying.farmersmarket.proto.GetServerStatsResponse;
+import org.kbiying.farmersmarket.proto.GetSlowQueriesRequest;
+import org.kbiying.farmersmarket.proto.GetSlowQueriesResponse;
+import org.kbiying.farmersmarket.proto.NearbyFarmersMarket;
 import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.SearchFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.SearchFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.SlowQuery;
+import org.kbiying.farmersmarket.proto.StreamFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.StreamFarmersMarketsResponse;
 import org.kbiying.farmersmarket.proto.UpdateFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.UpdateFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsResponse;
 
 public class FarmersMarketClient {
 
   private static final Logger logger = Logger.getLogger(FarmersMarketClient.class.getName());
 
-  private final ManagedChannel channel;
-  private final FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub blockingStub;
+  private static final int BATCH_CREATE_MESSAGE_SIZE = 500;
+  static final int DEFAULT_MAX_IN_FLIGHT_CALLS = 256;
+
+  /** Asks the server to log a call's request, whatever its access log sample rate. */
+  private static final Metadata.Key<String> LOG_PAYLOAD_HEADER =
+      Metadata.Key.of("farmers-market-log-payload", Metadata.ASCII_STRING_MARSHALLER);
+
+  private final EndpointGroup endpoints;
+  // Null unless the client asks the servers to log its calls' payloads.
+  private final Metadata payloadLoggingHeaders;
+  // Permits for the calls of the future-based methods, shared by clients on the same endpoints.
+  private final Semaphore inFlightCalls;
 
   public FarmersMarketClient(FarmersMarketServerAddress serverAddress) {
-    this.channel = ManagedChannelBuilder
-        .forAddress(serverAddress.getHost(), serverAddress.getPort())
-        .usePlaintext(true)
-        .build();
-    this.blockingStub = FarmersMarketServiceGrpc.newBlockingStub(channel);
+    this(FarmersMarketClientOptions.of(serverAddress));
+  }
+
+  /**
+   * Creates a client whose future-based methods keep at most {@code maxInFlightCalls} calls
+   * outstanding. All calls are multiplexed over one channel, so any number of them may be
+   * pipelined without waiting for earlier responses.
+   */
+  public FarmersMarketClient(FarmersMarketServerAddress serverAddress, int maxInFlightCalls) {
+    this(FarmersMarketClientOptions.builder(serverAddress)
+        .setMaxInFlightCalls(maxInFlightCalls)
+        .build());
+  }
+
+  /**
+   * Creates a client that sends writes to the primary and balances reads over the healthy
+   * replicas, with one channel per server.
+   */
+  public FarmersMarketClient(FarmersMarketClientOptions options) {
+    this(new EndpointGroup(options), null, new Semaphore(options.getMaxInFlightCalls()));
+  }
+
+  private FarmersMarketClient(EndpointGroup endpoints, Metadata payloadLoggingHeaders,
+      Semaphore inFlightCalls) {
+    this.endpoints = endpoints;
+    this.payloadLoggingHeaders = payloadLoggingHeaders;
+    this.inFlightCalls = inFlightCalls;
+  }
+
+  /**
+   * Returns a client on the same channels whose calls are always written to the server's access
+   * log, together with their request payloads. Shutting down either client shuts down both.
+   */
+  public FarmersMarketClient withPayloadLogging() {
+    Metadata headers = new Metadata();
+    headers.put(LOG_PAYLOAD_HEADER, "true");
+    return new FarmersMarketClient(endpoints, headers, inFlightCalls);
+  }
+
+  private <S extends AbstractStub<S>> S withPayloadLoggingHeaders(S stub) {
+    return payloadLoggingHeaders == null
+        ? stub
+        : MetadataUtils.attachHeaders(stub, payloadLoggingHeaders);
+  }
+
+  private FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub readStub() {
+    return withPayloadLoggingHeaders(endpoints.pickReplica().getBlockingStub());
+  }
+
+  private FarmersMarketServiceGrpc.FarmersMarketServiceBlockingStub primaryStub() {
+    return withPayloadLoggingHeaders(endpoints.getPrimary().getBlockingStub());
+  }
+
+  FarmersMarketServiceGrpc.FarmersMarketServiceStub getReadAsyncStub() {
+    return withPayloadLoggingHeaders(endpoints.pickReplica().getAsyncStub());
+  }
+
+  FarmersMarketServiceGrpc.FarmersMarketServiceStub getPrimaryAsyncStub() {
+    return withPayloadLoggingHeaders(endpoints.getPrimary().getAsyncStub());
   }
 
   public FarmersMarket echo(FarmersMarket farmersMarket) {
     EchoFarmersMarketRequest request = EchoFarmersMarketRequest.newBuilder()
         .setFarmersMarket(farmersMarket).build();
-    EchoFarmersMarketResponse response = blockingStub.echoFarmersMarket(request);
-    logger.log(Level.INFO, "EchoFarmersMarket({0}) = {1}", new Object[]{request, response});
+    EchoFarmersMarketResponse response = readStub().echoFarmersMarket(request);
+    logger.log(Level.FINE, "EchoFarmersMarket({0}) = {1}", new Object[]{request, response});
     return response.getFarmersMarket();
   }
 
@@ -56,75 +159,495 @@ public class FarmersMarketClient {
     CreateFarmersMarketRequest request = CreateFarmersMarketRequest.newBuilder()
         .setFarmersMarket(farmersMarketTemplate)
         .build();
-    CreateFarmersMarketResponse response = blockingStub.createFarmersMarket(request);
-    logger.log(Level.INFO, "CreateFarmersMarket({0}) = {1}", new Object[]{request, response});
+    CreateFarmersMarketResponse response = primaryStub().createFarmersMarket(request);
+    logger.log(Level.FINE, "CreateFarmersMarket({0}) = {1}", new Object[]{request, response});
     return response.getFarmersMarket();
   }
 
+  /**
+   * Creates all the markets over one client-streaming call and returns their Ids in the same
+   * order. The server commits them in chunks, so a failure part way through leaves the chunks
+   * committed before it in place.
+   */
+  public List<Long> batchCreate(Iterable<FarmersMarketTemplate> farmersMarketTemplates) {
+    SettableFuture<BatchCreateFarmersMarketsResponse> responseFuture = SettableFuture.create();
+    StreamObserver<BatchCreateFarmersMarketsRequest> requestObserver =
+        getPrimaryAsyncStub().batchCreateFarmersMarkets(completing(responseFuture));
+    try {
+      BatchCreateFarmersMarketsRequest.Builder requestBuilder =
+          BatchCreateFarmersMarketsRequest.newBuilder();
+      for (FarmersMarketTemplate farmersMarketTemplate : farmersMarketTemplates) {
+        requestBuilder.addFarmersMarket(farmersMarketTemplate);
+        if (requestBuilder.getFarmersMarketCount() == BATCH_CREATE_MESSAGE_SIZE) {
+          requestObserver.onNext(requestBuilder.build());
+          requestBuilder.clearFarmersMarket();
+        }
+      }
+      if (requestBuilder.getFarmersMarketCount() > 0) {
+        requestObserver.onNext(requestBuilder.build());
+      }
+    } catch (RuntimeException e) {
+      requestObserver.onError(e);
+      throw e;
+    }
+    requestObserver.onCompleted();
+
+    BatchCreateFarmersMarketsResponse response = awaitResponse(responseFuture);
+    logger.log(Level.FINE, "BatchCreateFarmersMarkets() = {0} ids", response.getIdCount());
+    return response.getIdList();
+  }
+
+  /**
+   * Stores the upserted farmers' markets under their Ids, inserting or replacing them, and then
+   * deletes the markets with the deleted Ids. Like {@link #batchCreate}, the server commits the
+   * changes in chunks.
+   */
+  public ApplyFarmersMarketChangesResponse applyChanges(
+      Iterable<FarmersMarket> upserts, Iterable<Long> deletedIds) {
+    SettableFuture<ApplyFarmersMarketChangesResponse> responseFuture = SettableFuture.create();
+    StreamObserver<ApplyFarmersMarketChangesRequest> requestObserver =
+        getPrimaryAsyncStub().applyFarmersMarketChanges(completing(responseFuture));
+    try {
+      ApplyFarmersMarketChangesRequest.Builder requestBuilder =
+          ApplyFarmersMarketChangesRequest.newBuilder();
+      for (FarmersMarket farmersMarket : upserts) {
+        requestBuilder.addUpserted(farmersMarket);
+        if (requestBuilder.getUpsertedCount() == BATCH_CREATE_MESSAGE_SIZE) {
+          requestObserver.onNext(requestBuilder.build());
+          requestBuilder.clearUpserted();
+        }
+      }
+      for (long id : deletedIds) {
+        requestBuilder.addDeletedId(id);
+        if (requestBuilder.getUpsertedCount() + requestBuilder.getDeletedIdCount()
+            >= BATCH_CREATE_MESSAGE_SIZE) {
+          requestObserver.onNext(requestBuilder.build());
+          requestBuilder.clear();
+        }
+      }
+      if (requestBuilder.getUpsertedCount() > 0 || requestBuilder.getDeletedIdCount() > 0) {
+        requestObserver.onNext(requestBuilder.build());
+      }
+    } catch (RuntimeException e) {
+      requestObserver.onError(e);
+      throw e;
+    }
+    requestObserver.onCompleted();
+
+    ApplyFarmersMarketChangesResponse response = awaitResponse(responseFuture);
+    logger.log(Level.FINE, "ApplyFarmersMarketChanges() = {0}", response);
+    return response;
+  }
+
+  /** Returns an observer that completes the future with the single response of a call. */
+  private static <T> StreamObserver<T> completing(SettableFuture<T> responseFuture) {
+    return new StreamObserver<T>() {
+      @Override
+      public void onNext(T response) {
+        responseFuture.set(response);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        responseFuture.setException(t);
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+  }
+
+  private static <T> T awaitResponse(SettableFuture<T> responseFuture) {
+    try {
+      return responseFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withCause(e).asRuntimeException();
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asRuntimeException();
+    }
+  }
+
   public List<FarmersMarket> delete(FarmersMarketTemplate farmersMarketTemplate) {
     DeleteFarmersMarketRequest request = DeleteFarmersMarketRequest.newBuilder()
         .setFarmersMarket(farmersMarketTemplate)
         .build();
-    DeleteFarmersMarketResponse response = blockingStub.deleteFarmersMarket(request);
-    logger.log(Level.INFO, "DeleteFarmersMarket({0}) = {1}", new Object[]{request, response});
+    DeleteFarmersMarketResponse response = primaryStub().deleteFarmersMarket(request);
+    logger.log(Level.FINE, "DeleteFarmersMarket({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
     return response.getFarmersMarketList();
 
   }
 
+  /** Deletes the markets matching the template and returns how many there were. */
+  public long deleteCount(FarmersMarketTemplate farmersMarketTemplate) {
+    DeleteFarmersMarketRequest request = DeleteFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setCountOnly(true)
+        .build();
+    DeleteFarmersMarketResponse response = primaryStub().deleteFarmersMarket(request);
+    logger.log(Level.FINE, "DeleteFarmersMarket({0}) = {1} deleted",
+        new Object[]{request, response.getDeletedCount()});
+    return response.getDeletedCount();
+  }
+
+  /**
+   * Finds up to {@code maxResults} markets within {@code radiusMeters} of the point, nearest
+   * first. The server picks a default limit when {@code maxResults} is zero.
+   */
+  public List<NearbyFarmersMarket> findNearby(double lat, double lng, double radiusMeters,
+      int maxResults) {
+    FindNearbyFarmersMarketsRequest request = FindNearbyFarmersMarketsRequest.newBuilder()
+        .setPoint(GeoPoint.newBuilder().setLat(lat).setLong(lng))
+        .setRadiusMeters(radiusMeters)
+        .setMaxResults(maxResults)
+        .build();
+    FindNearbyFarmersMarketsResponse response = readStub().findNearbyFarmersMarkets(request);
+    logger.log(Level.FINE, "FindNearbyFarmersMarkets({0}) = {1} markets",
+        new Object[]{request, response.getNearbyFarmersMarketCount()});
+    return response.getNearbyFarmersMarketList();
+  }
+
+  /**
+   * Finds up to {@code maxResults} markets inside the box, in Id order. A box with {@code minLong}
+   * greater than {@code maxLong} crosses the antimeridian.
+   */
+  public List<FarmersMarket> findInBox(double minLat, double maxLat, double minLong,
+      double maxLong, int maxResults) {
+    FindFarmersMarketsInBoxRequest request = FindFarmersMarketsInBoxRequest.newBuilder()
+        .setMinLat(minLat)
+        .setMaxLat(maxLat)
+        .setMinLong(minLong)
+        .setMaxLong(maxLong)
+        .setMaxResults(maxResults)
+        .build();
+    FindFarmersMarketsInBoxResponse response = readStub().findFarmersMarketsInBox(request);
+    logger.log(Level.FINE, "FindFarmersMarketsInBox({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
+    return response.getFarmersMarketList();
+  }
+
   public List<FarmersMarket> read(FarmersMarketTemplate farmersMarketTemplate) {
     ReadFarmersMarketRequest request = ReadFarmersMarketRequest.newBuilder()
         .setFarmersMarket(farmersMarketTemplate)
         .build();
-    ReadFarmersMarketResponse response = blockingStub.readFarmersMarket(request);
-    logger.log(Level.INFO, "ReadFarmersMarket({0}) = {1}", new Object[]{request, response});
+    ReadFarmersMarketResponse response = readStub().readFarmersMarket(request);
+    logger.log(Level.FINE, "ReadFarmersMarket({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
+    return response.getFarmersMarketList();
+  }
+
+  /**
+   * Reads one page of the markets matching the template, in Id order. Pass an empty page token for
+   * the first page and the response's next page token for the following ones; the last page has
+   * an empty next page token.
+   */
+  public ReadFarmersMarketResponse readPage(FarmersMarketTemplate farmersMarketTemplate,
+      int pageSize, String pageToken) {
+    ReadFarmersMarketRequest request = ReadFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setPageSize(pageSize)
+        .setPageToken(pageToken)
+        .build();
+    ReadFarmersMarketResponse response = readStub().readFarmersMarket(request);
+    logger.log(Level.FINE, "ReadFarmersMarket({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
+    return response;
+  }
+
+  /**
+   * Streams the markets matching the template in Id order. The server sends them in chunks of up
+   * to {@code chunkSize}, or of its own default size when {@code chunkSize} is zero, and only as
+   * fast as the returned iterator is consumed.
+   */
+  public Iterator<FarmersMarket> stream(FarmersMarketTemplate farmersMarketTemplate,
+      int chunkSize) {
+    StreamFarmersMarketsRequest request = StreamFarmersMarketsRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setChunkSize(chunkSize)
+        .build();
+    logger.log(Level.FINE, "StreamFarmersMarkets({0})", request);
+    Iterator<StreamFarmersMarketsResponse> responses = readStub().streamFarmersMarkets(request);
+    return Iterators.concat(Iterators.transform(
+        responses, response -> response.getFarmersMarketList().iterator()));
+  }
+
+  /**
+   * Exports the markets matching the template in Id order. Each response holds the next bytes of
+   * the export, and the server only produces them as fast as the returned iterator is consumed.
+   */
+  public Iterator<ExportFarmersMarketsResponse> export(
+      FarmersMarketTemplate farmersMarketTemplate, ExportFormat format, int chunkSize) {
+    ExportFarmersMarketsRequest request = ExportFarmersMarketsRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setFormat(format)
+        .setChunkSize(chunkSize)
+        .build();
+    logger.log(Level.FINE, "ExportFarmersMarkets({0})", request);
+    return readStub().exportFarmersMarkets(request);
+  }
+
+  /**
+   * Watches the primary for changes to markets matching the template, starting after the
+   * sequence number, where zero is before the first change. The first response only reports the
+   * sequence number the watch starts after. The stream does not end by itself; consume it inside
+   * a {@link io.grpc.Context.CancellableContext} to stop watching.
+   */
+  public Iterator<WatchFarmersMarketsResponse> watch(
+      FarmersMarketTemplate farmersMarketTemplate, long afterSequence) {
+    return watch(WatchFarmersMarketsRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setAfterSequence(afterSequence)
+        .build());
+  }
+
+  /**
+   * Like {@link #watch(FarmersMarketTemplate, long)}, but starting with the changes committed
+   * after the watch starts.
+   */
+  public Iterator<WatchFarmersMarketsResponse> watchFromNow(
+      FarmersMarketTemplate farmersMarketTemplate) {
+    return watch(WatchFarmersMarketsRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .setStartFromNow(true)
+        .build());
+  }
+
+  private Iterator<WatchFarmersMarketsResponse> watch(WatchFarmersMarketsRequest request) {
+    logger.log(Level.FINE, "WatchFarmersMarkets({0})", request);
+    return primaryStub().watchFarmersMarkets(request);
+  }
+
+  /**
+   * Returns up to {@code maxResults} markets whose name, address or city contain every word of
+   * the query, best match first. The server picks a default limit when {@code maxResults} is
+   * zero.
+   */
+  public List<FarmersMarket> search(String query, int maxResults) {
+    SearchFarmersMarketsRequest request = SearchFarmersMarketsRequest.newBuilder()
+        .setQuery(query)
+        .setMaxResults(maxResults)
+        .build();
+    SearchFarmersMarketsResponse response = readStub().searchFarmersMarkets(request);
+    logger.log(Level.FINE, "SearchFarmersMarkets({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
     return response.getFarmersMarketList();
   }
 
+  /** Returns the server's call statistics, storage timings and resource gauges. */
+  public GetServerStatsResponse getServerStats() {
+    GetServerStatsResponse response =
+        primaryStub().getServerStats(GetServerStatsRequest.getDefaultInstance());
+    logger.log(Level.FINE, "GetServerStats() = {0} methods", response.getMethodStatsCount());
+    return response;
+  }
+
+  /**
+   * Returns the statements that recently ran longer than the server's slow query threshold, most
+   * recent first, and with {@code clear} has the server forget them.
+   */
+  public List<SlowQuery> getSlowQueries(boolean clear) {
+    GetSlowQueriesResponse response = primaryStub().getSlowQueries(
+        GetSlowQueriesRequest.newBuilder().setClear(clear).build());
+    logger.log(Level.FINE, "GetSlowQueries() = {0} slow queries", response.getSlowQueryCount());
+    return response.getSlowQueryList();
+  }
+
   public List<FarmersMarket> update(FarmersMarketTemplate farmersMarket,
       FarmersMarketTemplate farmersMarketConditions) {
     UpdateFarmersMarketRequest request = UpdateFarmersMarketRequest.newBuilder()
         .setFarmersMarket(farmersMarket)
         .setConditions(farmersMarketConditions)
         .build();
-    UpdateFarmersMarketResponse response = blockingStub.updateFarmersMarket(request);
-    logger.log(Level.INFO, "UpdateFarmersMarket({0}) = {1}", new Object[]{request, response});
+    UpdateFarmersMarketResponse response = primaryStub().updateFarmersMarket(request);
+    logger.log(Level.FINE, "UpdateFarmersMarket({0}) = {1} markets",
+        new Object[]{request, response.getFarmersMarketCount()});
     return response.getFarmersMarketList();
   }
 
   public void shutdown(Duration timeout) {
     try {
-      channel.shutdown().awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      endpoints.shutdown(timeout);
     } catch (InterruptedException e) {
       logger.log(Level.SEVERE, e.getMessage(), e);
     }
   }
 
+  /**
+   * Echoes the market without blocking. The returned future fails with a {@link
+   * StatusRuntimeException}, with {@code DEADLINE_EXCEEDED} if the call is not done within the
+   * deadline.
+   *
+   * <p>Like the other future-based methods, this blocks only while the client already has its
+   * maximum number of calls in flight, until one of them completes.
+   */
+  public ListenableFuture<FarmersMarket> echoAsync(FarmersMarket farmersMarket,
+      Duration deadline) {
+    EchoFarmersMarketRequest request = EchoFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarket).build();
+    return callAsync(() -> readFutureStub(deadline).echoFarmersMarket(request),
+        EchoFarmersMarketResponse::getFarmersMarket);
+  }
+
+  public ListenableFuture<FarmersMarket> createAsync(FarmersMarketTemplate farmersMarketTemplate,
+      Duration deadline) {
+    CreateFarmersMarketRequest request = CreateFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .build();
+    return callAsync(() -> primaryFutureStub(deadline).createFarmersMarket(request),
+        CreateFarmersMarketResponse::getFarmersMarket);
+  }
+
+  public ListenableFuture<List<FarmersMarket>> readAsync(
+      FarmersMarketTemplate farmersMarketTemplate, Duration deadline) {
+    ReadFarmersMarketRequest request = ReadFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .build();
+    return callAsync(() -> readFutureStub(deadline).readFarmersMarket(request),
+        ReadFarmersMarketResponse::getFarmersMarketList);
+  }
+
+  public ListenableFuture<List<FarmersMarket>> updateAsync(FarmersMarketTemplate farmersMarket,
+      FarmersMarketTemplate farmersMarketConditions, Duration deadline) {
+    UpdateFarmersMarketRequest request = UpdateFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarket)
+        .setConditions(farmersMarketConditions)
+        .build();
+    return callAsync(() -> primaryFutureStub(deadline).updateFarmersMarket(request),
+        UpdateFarmersMarketResponse::getFarmersMarketList);
+  }
+
+  public ListenableFuture<List<FarmersMarket>> deleteAsync(
+      FarmersMarketTemplate farmersMarketTemplate, Duration deadline) {
+    DeleteFarmersMarketRequest request = DeleteFarmersMarketRequest.newBuilder()
+        .setFarmersMarket(farmersMarketTemplate)
+        .build();
+    return callAsync(() -> primaryFutureStub(deadline).deleteFarmersMarket(request),
+        DeleteFarmersMarketResponse::getFarmersMarketList);
+  }
+
+  private FarmersMarketServiceGrpc.FarmersMarketServiceFutureStub readFutureStub(
+      Duration deadline) {
+    return withPayloadLoggingHeaders(endpoints.pickReplica().getFutureStub())
+        .withDeadlineAfter(deadline.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  private FarmersMarketServiceGrpc.FarmersMarketServiceFutureStub primaryFutureStub(
+      Duration deadline) {
+    return withPayloadLoggingHeaders(endpoints.getPrimary().getFutureStub())
+        .withDeadlineAfter(deadline.toNanos(), TimeUnit.NANOSECONDS);
+  }
+  /**
+   * Starts a call once fewer than the maximum number of calls are in flight, and returns its
+   * result. The permit is given back when the call completes, however it completes.
+   */
+  private <ResponseT, T> ListenableFuture<T> callAsync(
+      Supplier<ListenableFuture<ResponseT>> call, Function<ResponseT, T> result) {
+    try {
+      inFlightCalls.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Futures.immediateFailedFuture(Status.CANCELLED.withCause(e).asRuntimeException());
+    }
+    ListenableFuture<ResponseT> response;
+    try {
+      response = call.get();
+    } catch (RuntimeException e) {
+      inFlightCalls.release();
+      throw e;
+    }
+    response.addListener(inFlightCalls::release, MoreExecutors.directExecutor());
+    return Futures.transform(response, result, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Deletes the {@code test_farmers} markets or, with {@code --load}, runs the load generator
+   * against the server and prints its report.
+   */
   public static void main(String[] args) {
-    FarmersMarketServerAddress serverAddress;
+    CommandLine commandLine;
+    FarmersMarketClientOptions clientOptions;
     try {
-      serverAddress = getServerAddress(args);
-    } catch (ParseException e) {
+      commandLine = parseCommandLine(args);
+      clientOptions = getClientOptions(commandLine);
+    } catch (ParseException | IllegalArgumentException e) {
       System.err.println("Could not parse command line: " + e.getMessage());
       System.exit(1);
       return;
     }
-    FarmersMarketClient client = new FarmersMarketClient(serverAddress);
+    FarmersMarketClient client = new FarmersMarketClient(clientOptions);
     try {
-      client.delete(FarmersMarketTemplate.newBuilder()
-          .setName(StringValue.newBuilder().setValue("test_farmers"))
-          .build());
-    } catch (StatusRuntimeException e) {
+      if (commandLine.hasOption("load")) {
+        LoadGenerator.LoadReport report =
+            new LoadGenerator(client, getLoadOptions(commandLine)).run();
+        logger.log(Level.INFO, "Load test finished");
+        System.out.println(report);
+      } else {
+        client.delete(FarmersMarketTemplate.newBuilder()
+            .setName(StringValue.newBuilder().setValue("test_farmers"))
+            .build());
+      }
+    } catch (ParseException | IllegalArgumentException | IllegalStateException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      System.exit(1);
+    } catch (InterruptedException | StatusRuntimeException e) {
       logger.log(Level.SEVERE, e.getMessage(), e);
     } finally {
       client.shutdown(Duration.ofSeconds(5));
     }
   }
 
-  private static FarmersMarketServerAddress getServerAddress(String[] args) throws ParseException {
-    CommandLine commandLine = parseCommandLine(args);
-    String host = commandLine.getOptionValue("host");
-    int port = ((Number) commandLine.getParsedOptionValue("port")).intValue();
-    return FarmersMarketServerAddress.of(host, port);
+  private static FarmersMarketClientOptions getClientOptions(CommandLine commandLine)
+      throws ParseException {
+    FarmersMarketClientOptions.Builder builder = FarmersMarketClientOptions.builder(
+        FarmersMarketServerAddress.of(commandLine.getOptionValue("host"),
+            ((Number) commandLine.getParsedOptionValue("port")).intValue()));
+    if (commandLine.hasOption("replica")) {
+      ImmutableList.Builder<FarmersMarketServerAddress> replicas = ImmutableList.builder();
+      for (String replica : commandLine.getOptionValues("replica")) {
+        replicas.add(FarmersMarketServerAddress.parse(replica));
+      }
+      builder.setReplicas(replicas.build());
+    }
+    if (commandLine.hasOption("load-balancing")) {
+      builder.setLoadBalancingPolicy(FarmersMarketClientOptions.LoadBalancingPolicy.valueOf(
+          commandLine.getOptionValue("load-balancing").toUpperCase(Locale.ROOT)));
+    }
+    return builder.build();
+  }
+
+  private static LoadGenerator.LoadOptions getLoadOptions(CommandLine commandLine)
+      throws ParseException {
+    LoadGenerator.LoadOptions.Builder builder = LoadGenerator.LoadOptions.builder();
+    if (commandLine.hasOption("rate")) {
+      builder.setRate(((Number) commandLine.getParsedOptionValue("rate")).doubleValue());
+    }
+    if (commandLine.hasOption("duration-seconds")) {
+      builder.setDuration(Duration.ofSeconds(
+          ((Number) commandLine.getParsedOptionValue("duration-seconds")).longValue()));
+    }
+    if (commandLine.hasOption("concurrency")) {
+      builder.setConcurrency(
+          ((Number) commandLine.getParsedOptionValue("concurrency")).intValue());
+    }
+    if (commandLine.hasOption("read-fraction")) {
+      builder.setReadFraction(
+          ((Number) commandLine.getParsedOptionValue("read-fraction")).doubleValue());
+    }
+    if (commandLine.hasOption("templates")) {
+      builder.setReadTemplateWeights(LoadGenerator.LoadOptions.parseReadTemplateWeights(
+          commandLine.getOptionValue("templates")));
+    }
+    if (commandLine.hasOption("key-distribution")) {
+      builder.setKeyDistribution(LoadGenerator.KeyDistribution.valueOf(
+          commandLine.getOptionValue("key-distribution").toUpperCase(Locale.ROOT)));
+    }
+    if (commandLine.hasOption("sample-size")) {
+      builder.setSampleSize(
+          ((Number) commandLine.getParsedOptionValue("sample-size")).intValue());
+    }
+    return builder.build();
   }
 
   private static CommandLine parseCommandLine(String[] args) throws ParseException {
@@ -136,9 +659,80 @@ public class FarmersMarketClient {
         .type(Number.class)
         .required()
         .build();
+    Option replica = Option.builder()
+        .argName("host:port")
+        .longOpt("replica")
+        .hasArg()
+        .desc("a read replica; repeat for several. Writes still go to --host and --port")
+        .build();
+    Option loadBalancing = Option.builder()
+        .argName("load-balancing")
+        .longOpt("load-balancing")
+        .hasArg()
+        .desc("round_robin (default) or least_outstanding")
+        .build();
+    Option load = Option.builder()
+        .longOpt("load")
+        .desc("run the load generator instead of deleting the test_farmers markets")
+        .build();
+    Option rate = Option.builder()
+        .argName("rate")
+        .longOpt("rate")
+        .hasArg()
+        .type(Number.class)
+        .desc("calls started per second, 100 by default")
+        .build();
+    Option durationSeconds = Option.builder()
+        .argName("duration-seconds")
+        .longOpt("duration-seconds")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option concurrency = Option.builder()
+        .argName("concurrency")
+        .longOpt("concurrency")
+        .hasArg()
+        .type(Number.class)
+        .desc("maximum outstanding calls, 64 by default")
+        .build();
+    Option readFraction = Option.builder()
+        .argName("read-fraction")
+        .longOpt("read-fraction")
+        .hasArg()
+        .type(Number.class)
+        .desc("fraction of calls that are reads, 0.9 by default")
+        .build();
+    Option templates = Option.builder()
+        .argName("templates")
+        .longOpt("templates")
+        .hasArg()
+        .desc("read template weights, such as id=60,city=30,state_and_city=10")
+        .build();
+    Option keyDistribution = Option.builder()
+        .argName("key-distribution")
+        .longOpt("key-distribution")
+        .hasArg()
+        .desc("uniform (default) or zipfian")
+        .build();
+    Option sampleSize = Option.builder()
+        .argName("sample-size")
+        .longOpt("sample-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
     Options options = new Options();
     options.addOption(host);
     options.addOption(port);
+    options.addOption(replica);
+    options.addOption(loadBalancing);
+    options.addOption(load);
+    options.addOption(rate);
+    options.addOption(durationSeconds);
+    options.addOption(concurrency);
+    options.addOption(readFraction);
+    options.addOption(templates);
+    options.addOption(keyDistribution);
+    options.addOption(sampleSize);
     CommandLineParser parser = new DefaultParser();
     return parser.parse(options, args);
   }
@@ -0,0 +1,89 @@
+package org.kbiying.farmersmarket.client;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+
+/**
+ * Where a {@link FarmersMarketClient} sends its calls. Writes go to the primary; reads are
+ * balanced over the replicas that pass their health checks, or go to the primary when there are
+ * none.
+ */
+@AutoValue
+public abstract class FarmersMarketClientOptions {
+
+  /** How reads pick among the healthy replicas. */
+  public enum LoadBalancingPolicy {
+    ROUND_ROBIN,
+    /** The replica with the fewest calls in flight from this client, rotating among ties. */
+    LEAST_OUTSTANDING
+  }
+
+  static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(5);
+  static final Duration DEFAULT_HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(1);
+  static final int DEFAULT_UNHEALTHY_THRESHOLD = 2;
+
+  public abstract FarmersMarketServerAddress getPrimary();
+
+  public abstract ImmutableList<FarmersMarketServerAddress> getReplicas();
+
+  public abstract LoadBalancingPolicy getLoadBalancingPolicy();
+
+  /** How often each replica is checked, or zero to never take one out of rotation. */
+  public abstract Duration getHealthCheckInterval();
+
+  public abstract Duration getHealthCheckTimeout();
+
+  /** Consecutive failed checks after which a replica is taken out of rotation. */
+  public abstract int getUnhealthyThreshold();
+
+  /** Calls of the future-based methods that may be in flight before the next one waits. */
+  public abstract int getMaxInFlightCalls();
+
+  public static FarmersMarketClientOptions of(FarmersMarketServerAddress primary) {
+    return builder(primary).build();
+  }
+
+  public static Builder builder(FarmersMarketServerAddress primary) {
+    return new AutoValue_FarmersMarketClientOptions.Builder()
+        .setPrimary(primary)
+        .setReplicas(ImmutableList.of())
+        .setLoadBalancingPolicy(LoadBalancingPolicy.ROUND_ROBIN)
+        .setHealthCheckInterval(DEFAULT_HEALTH_CHECK_INTERVAL)
+        .setHealthCheckTimeout(DEFAULT_HEALTH_CHECK_TIMEOUT)
+        .setUnhealthyThreshold(DEFAULT_UNHEALTHY_THRESHOLD)
+        .setMaxInFlightCalls(FarmersMarketClient.DEFAULT_MAX_IN_FLIGHT_CALLS);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+
+    abstract Builder setPrimary(FarmersMarketServerAddress primary);
+    public abstract Builder setReplicas(ImmutableList<FarmersMarketServerAddress> replicas);
+    public abstract Builder setLoadBalancingPolicy(LoadBalancingPolicy loadBalancingPolicy);
+    public abstract Builder setHealthCheckInterval(Duration healthCheckInterval);
+    public abstract Builder setHealthCheckTimeout(Duration healthCheckTimeout);
+    public abstract Builder setUnhealthyThreshold(int unhealthyThreshold);
+    public abstract Builder setMaxInFlightCalls(int maxInFlightCalls);
+
+    abstract FarmersMarketClientOptions autoBuild();
+
+    public FarmersMarketClientOptions build() {
+      FarmersMarketClientOptions options = autoBuild();
+      if (options.getHealthCheckInterval().isNegative()) {
+        throw new IllegalArgumentException("Health check interval must not be negative");
+      }
+      if (options.getHealthCheckTimeout().isNegative()
+          || options.getHealthCheckTimeout().isZero()) {
+        throw new IllegalArgumentException("Health check timeout must be positive");
+      }
+      if (options.getUnhealthyThreshold() < 1) {
+        throw new IllegalArgumentException("Unhealthy threshold must be positive");
+      }
+      if (options.getMaxInFlightCalls() < 1) {
+        throw new IllegalArgumentException("Maximum in-flight calls must be positive");
+      }
+      return options;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.kbiying.farmersmarket.client;
+
+import com.google.auto.value.AutoValue;
+import com.google.protobuf.ByteString;
+import io.grpc.StatusRuntimeException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.ExportFormat;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+/**
+ * Exports the farmers' markets of a server to a file as CSV or as length-delimited {@code
+ * FarmersMarket} messages.
+ *
+ * <p>The export is written to a channel through a direct buffer as it arrives, so neither the
+ * server nor the exporter holds more than a chunk of it at a time. Progress is logged
+ * periodically, with the throughput so far.
+ */
+public class FarmersMarketExporter {
+
+  private static final Logger logger = Logger.getLogger(FarmersMarketExporter.class.getName());
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final long PROGRESS_INTERVAL_NANOS = Duration.ofSeconds(5).toNanos();
+
+  /** Counts of what an export wrote. */
+  @AutoValue
+  abstract static class ExportResult {
+
+    abstract long getFarmersMarketCount();
+
+    abstract long getByteCount();
+
+    abstract long getElapsedNanos();
+
+    static ExportResult of(long farmersMarketCount, long byteCount, long elapsedNanos) {
+      return new AutoValue_FarmersMarketExporter_ExportResult(
+          farmersMarketCount, byteCount, elapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+      double seconds = Math.max(getElapsedNanos(), 1) / 1e9;
+      return String.format(Locale.ROOT,
+          "%d farmers' markets, %.1f MB in %.1f s (%.0f markets/s, %.1f MB/s)",
+          getFarmersMarketCount(), getByteCount() / 1e6, seconds,
+          getFarmersMarketCount() / seconds, getByteCount() / 1e6 / seconds);
+    }
+  }
+
+  private final FarmersMarketClient client;
+
+  FarmersMarketExporter(FarmersMarketClient client) {
+    this.client = client;
+  }
+
+  /** Writes the markets matching the template to the channel in the given format. */
+  ExportResult export(FarmersMarketTemplate farmersMarketTemplate, ExportFormat format,
+      int chunkSize, WritableByteChannel channel) throws IOException {
+    long startNanos = System.nanoTime();
+    long lastProgressNanos = startNanos;
+    long farmersMarketCount = 0;
+    long byteCount = 0;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    Iterator<ExportFarmersMarketsResponse> responses =
+        client.export(farmersMarketTemplate, format, chunkSize);
+    while (responses.hasNext()) {
+      ExportFarmersMarketsResponse response = responses.next();
+      ByteString data = response.getData();
+      if (data.size() > buffer.remaining()) {
+        drain(buffer, channel);
+      }
+      if (data.size() > buffer.remaining()) {
+        // Larger than the whole buffer, so copying it in would not save a write.
+        writeFully(data.asReadOnlyByteBuffer(), channel);
+      } else {
+        data.copyTo(buffer);
+      }
+      farmersMarketCount += response.getFarmersMarketCount();
+      byteCount += data.size();
+
+      long nowNanos = System.nanoTime();
+      if (nowNanos - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+        lastProgressNanos = nowNanos;
+        logger.log(Level.INFO, "Exported {0}", ExportResult.of(
+            farmersMarketCount, byteCount, nowNanos - startNanos));
+      }
+    }
+    drain(buffer, channel);
+    return ExportResult.of(farmersMarketCount, byteCount, System.nanoTime() - startNanos);
+  }
+
+  private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    writeFully(buffer, channel);
+    buffer.clear();
+  }
+
+  private static void writeFully(ByteBuffer buffer, WritableByteChannel channel)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public static void main(String[] args) {
+    CommandLine commandLine;
+    try {
+      commandLine = parseCommandLine(args);
+    } catch (ParseException e) {
+      System.err.println("Could not parse command line: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    FarmersMarketClient client = null;
+    try {
+      ExportFormat format = ExportFormat.valueOf(
+          commandLine.getOptionValue("format", "csv").toUpperCase(Locale.ROOT));
+      int chunkSize = commandLine.hasOption("chunk-size")
+          ? ((Number) commandLine.getParsedOptionValue("chunk-size")).intValue()
+          : 0;
+      client = new FarmersMarketClient(FarmersMarketServerAddress.of(
+          commandLine.getOptionValue("host"),
+          ((Number) commandLine.getParsedOptionValue("port")).intValue()));
+      FarmersMarketExporter exporter = new FarmersMarketExporter(client);
+      ExportResult result;
+      if (commandLine.hasOption("out")) {
+        try (FileChannel channel = FileChannel.open(Paths.get(commandLine.getOptionValue("out")),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+          result = exporter.export(
+              FarmersMarketTemplate.getDefaultInstance(), format, chunkSize, channel);
+        }
+      } else {
+        WritableByteChannel channel =
+            Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        result = exporter.export(
+            FarmersMarketTemplate.getDefaultInstance(), format, chunkSize, channel);
+      }
+      logger.log(Level.INFO, "Exported {0}", result);
+    } catch (IOException | ParseException | StatusRuntimeException
+        | IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      System.exit(1);
+    } finally {
+      if (client != null) {
+        client.shutdown(Duration.ofSeconds(5));
+      }
+    }
+  }
+
+  private static CommandLine parseCommandLine(String[] args) throws ParseException {
+    Option host = Option.builder().argName("host").longOpt("host").hasArg().required().build();
+    Option port = Option.builder()
+        .argName("port")
+        .longOpt("port")
+        .hasArg()
+        .type(Number.class)
+        .required()
+        .build();
+    Option format = Option.builder()
+        .argName("csv|delimited_proto")
+        .longOpt("format")
+        .hasArg()
+        .build();
+    Option out = Option.builder().argName("out").longOpt("out").hasArg().build();
+    Option chunkSize = Option.builder()
+        .argName("chunk-size")
+        .longOpt("chunk-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Options options = new Options();
+    options.addOption(host);
+    options.addOption(port);
+    options.addOption(format);
+    options.addOption(out);
+    options.addOption(chunkSize);
+    CommandLineParser parser = new DefaultParser();
+    return parser.parse(options, args);
+  }
+}
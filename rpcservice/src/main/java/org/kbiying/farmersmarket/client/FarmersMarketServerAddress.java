@@ -12,4 +12,14 @@ public abstract class FarmersMarketServerAddress {
   public static FarmersMarketServerAddress of(String host, int port) {
     return new AutoValue_FarmersMarketServerAddress(host, port);
   }
+
+  /** Parses an address written as {@code host:port}. */
+  public static FarmersMarketServerAddress parse(String hostAndPort) {
+    int colon = hostAndPort.lastIndexOf(':');
+    if (colon <= 0 || colon == hostAndPort.length() - 1) {
+      throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+    }
+    return of(hostAndPort.substring(0, colon),
+        Integer.parseInt(hostAndPort.substring(colon + 1)));
+  }
 }
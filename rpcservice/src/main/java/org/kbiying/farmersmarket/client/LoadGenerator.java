@@ -0,0 +1,485 @@
+package org.kbiying.farmersmarket.client;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.metrics.LatencyHistogram;
+import org.kbiying.farmersmarket.proto.CreateFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.CreateFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.UpdateFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.UpdateFarmersMarketResponse;
+
+/**
+ * Sends a mix of reads and writes to a server at a fixed rate and reports the throughput and
+ * latency percentiles it saw.
+ *
+ * <p>Calls are scheduled open loop: the i-th call is due at {@code start + i / rate}, whether or
+ * not earlier calls have completed, and is sent on the async stub so that a slow response never
+ * holds up the next send. At most {@code concurrency} calls are outstanding; when that limit is
+ * reached, the next call waits for a slot. To correct for coordinated omission, response times
+ * are measured from when a call was due rather than from when it was sent, so time spent
+ * waiting behind a stalled server counts against it. Service times, measured from the send, are
+ * reported alongside for comparison.
+ *
+ * <p>Writes create markets named {@value #LOAD_TEST_NAME} and update the ones created earlier,
+ * leaving the rest of the data alone. They are deleted when the run ends.
+ */
+final class LoadGenerator {
+
+  private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+  static final String LOAD_TEST_NAME = "load_test_farmers";
+
+  private static final int SAMPLE_PAGE_SIZE = 1000;
+  private static final double ZIPF_EXPONENT = 0.99;
+  private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+  /** The fields a read's template is built from, taken from a sampled market. */
+  enum ReadTemplate {
+    ID, NAME, CITY, STATE, STATE_AND_CITY
+  }
+
+  /** How sampled markets are picked for reads. */
+  enum KeyDistribution {
+    UNIFORM,
+    /** A few markets, and their cities and states, take most of the reads. */
+    ZIPFIAN
+  }
+
+  @AutoValue
+  abstract static class LoadOptions {
+
+    /** Calls started per second. */
+    abstract double getRate();
+
+    abstract Duration getDuration();
+
+    /** Maximum number of outstanding calls. */
+    abstract int getConcurrency();
+
+    /** Fraction of calls that are reads; half of the rest are creates and half updates. */
+    abstract double getReadFraction();
+
+    /** Relative weights of the templates that reads use. */
+    abstract ImmutableMap<ReadTemplate, Integer> getReadTemplateWeights();
+
+    abstract KeyDistribution getKeyDistribution();
+
+    /** Number of markets read from the server up front to build read templates from. */
+    abstract int getSampleSize();
+
+    static Builder builder() {
+      return new AutoValue_LoadGenerator_LoadOptions.Builder()
+          .setRate(100)
+          .setDuration(Duration.ofSeconds(60))
+          .setConcurrency(64)
+          .setReadFraction(0.9)
+          .setReadTemplateWeights(ImmutableMap.of(ReadTemplate.ID, 1))
+          .setKeyDistribution(KeyDistribution.UNIFORM)
+          .setSampleSize(10_000);
+    }
+
+    @AutoValue.Builder
+    abstract static class Builder {
+
+      abstract Builder setRate(double rate);
+      abstract Builder setDuration(Duration duration);
+      abstract Builder setConcurrency(int concurrency);
+      abstract Builder setReadFraction(double readFraction);
+      abstract Builder setReadTemplateWeights(ImmutableMap<ReadTemplate, Integer> weights);
+      abstract Builder setKeyDistribution(KeyDistribution keyDistribution);
+      abstract Builder setSampleSize(int sampleSize);
+
+      abstract LoadOptions autoBuild();
+
+      LoadOptions build() {
+        LoadOptions options = autoBuild();
+        if (!(options.getRate() > 0)) {
+          throw new IllegalArgumentException("Rate must be positive");
+        }
+        if (options.getDuration().isNegative() || options.getDuration().isZero()) {
+          throw new IllegalArgumentException("Duration must be positive");
+        }
+        if (options.getConcurrency() < 1) {
+          throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        if (!(options.getReadFraction() >= 0 && options.getReadFraction() <= 1)) {
+          throw new IllegalArgumentException("Read fraction must be between 0 and 1");
+        }
+        if (options.getReadTemplateWeights().isEmpty()
+            || options.getReadTemplateWeights().values().stream().anyMatch(w -> w < 0)
+            || options.getReadTemplateWeights().values().stream().allMatch(w -> w == 0)) {
+          throw new IllegalArgumentException(
+              "Read template weights must not be negative and not all zero");
+        }
+        if (options.getSampleSize() < 1) {
+          throw new IllegalArgumentException("Sample size must be positive");
+        }
+        return options;
+      }
+    }
+
+    /** Parses read template weights such as {@code id=60,city=30,state=10}. */
+    static ImmutableMap<ReadTemplate, Integer> parseReadTemplateWeights(String weights) {
+      Map<ReadTemplate, Integer> parsed = new EnumMap<>(ReadTemplate.class);
+      for (String weight : weights.split(",")) {
+        String[] parts = weight.trim().split("=", 2);
+        parsed.put(ReadTemplate.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)),
+            parts.length == 1 ? 1 : Integer.parseInt(parts[1].trim()));
+      }
+      return ImmutableMap.copyOf(parsed);
+    }
+  }
+
+  /** Latencies and counts of one kind of call. */
+  @AutoValue
+  abstract static class OperationReport {
+
+    abstract String getOperation();
+
+    abstract long getCallCount();
+
+    abstract long getErrorCount();
+
+    /** Latencies from when each call was due, corrected for coordinated omission. */
+    abstract LatencyHistogram.Snapshot getResponseTimes();
+
+    /** Latencies from when each call was sent. */
+    abstract LatencyHistogram.Snapshot getServiceTimes();
+
+    static OperationReport create(String operation, long callCount, long errorCount,
+        LatencyHistogram.Snapshot responseTimes, LatencyHistogram.Snapshot serviceTimes) {
+      return new AutoValue_LoadGenerator_OperationReport(
+          operation, callCount, errorCount, responseTimes, serviceTimes);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+          "%-16s %9d %7d | %9.2f %9.2f %9.2f %9.2f | %9.2f %9.2f %9.2f",
+          getOperation(), getCallCount(), getErrorCount(),
+          millis(getResponseTimes().getValueAtQuantile(0.5)),
+          millis(getResponseTimes().getValueAtQuantile(0.99)),
+          millis(getResponseTimes().getValueAtQuantile(0.999)),
+          millis(getResponseTimes().getMaxNanos()),
+          millis(getServiceTimes().getValueAtQuantile(0.5)),
+          millis(getServiceTimes().getValueAtQuantile(0.99)),
+          millis(getServiceTimes().getValueAtQuantile(0.999)));
+    }
+
+    private static double millis(long nanos) {
+      return nanos / 1e6;
+    }
+  }
+
+  /** What a run achieved, with a line per operation and one for all of them. */
+  @AutoValue
+  abstract static class LoadReport {
+
+    abstract double getTargetRate();
+
+    abstract long getElapsedNanos();
+
+    abstract OperationReport getTotal();
+
+    abstract ImmutableList<OperationReport> getOperations();
+
+    /** Error counts by status code, over all operations. */
+    abstract ImmutableMap<Status.Code, Long> getErrors();
+
+    double getThroughput() {
+      return getTotal().getCallCount() / (Math.max(getElapsedNanos(), 1) / 1e9);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+          "%d calls in %.1f s: %.1f calls/s (target %.1f/s)%n",
+          getTotal().getCallCount(), getElapsedNanos() / 1e9, getThroughput(), getTargetRate()));
+      report.append(String.format(Locale.ROOT,
+          "%-16s %9s %7s | %-39s | %s%n", "", "", "", "response time (ms), from due time",
+          "service time (ms), from send"));
+      report.append(String.format(Locale.ROOT,
+          "%-16s %9s %7s | %9s %9s %9s %9s | %9s %9s %9s%n",
+          "operation", "calls", "errors", "p50", "p99", "p99.9", "max", "p50", "p99", "p99.9"));
+      for (OperationReport operation : getOperations()) {
+        report.append(operation).append(System.lineSeparator());
+      }
+      report.append(getTotal());
+      if (!getErrors().isEmpty()) {
+        report.append(System.lineSeparator()).append("errors: ").append(getErrors());
+      }
+      return report.toString();
+    }
+  }
+
+  /** Latencies of one kind of call, recorded from the callbacks of the async stub. */
+  private static final class OperationStats {
+
+    final LatencyHistogram responseTimes = new LatencyHistogram();
+    final LatencyHistogram serviceTimes = new LatencyHistogram();
+    final LongAdder errorCount = new LongAdder();
+
+    void record(long dueNanos, long sentNanos, long doneNanos, boolean failed) {
+      responseTimes.record(doneNanos - dueNanos);
+      serviceTimes.record(doneNanos - sentNanos);
+      if (failed) {
+        errorCount.increment();
+      }
+    }
+
+    OperationReport toReport(String operation) {
+      LatencyHistogram.Snapshot responseTimeSnapshot = responseTimes.snapshot();
+      return OperationReport.create(operation, responseTimeSnapshot.getCount(),
+          errorCount.sum(), responseTimeSnapshot, serviceTimes.snapshot());
+    }
+  }
+
+  private final FarmersMarketClient client;
+  private final LoadOptions options;
+  private final ReadTemplate[] readTemplateTable;
+  private final Map<String, OperationStats> operationStats = new ConcurrentHashMap<>();
+  private final OperationStats totalStats = new OperationStats();
+  private final ConcurrentMap<Status.Code, LongAdder> errors = new ConcurrentHashMap<>();
+  // Guarded by itself. Every create appends to it, so a copy-on-write list would be quadratic.
+  private final List<Long> createdIds = new ArrayList<>();
+  private final Semaphore outstanding;
+
+  private List<FarmersMarket> sample;
+  // Cumulative probabilities of picking each sampled market, for the Zipfian distribution.
+  private double[] keyDistribution;
+
+  LoadGenerator(FarmersMarketClient client, LoadOptions options) {
+    this.client = client;
+    this.options = options;
+    this.outstanding = new Semaphore(options.getConcurrency());
+    List<ReadTemplate> table = new ArrayList<>();
+    options.getReadTemplateWeights().forEach((template, weight) -> {
+      for (int i = 0; i < weight; i++) {
+        table.add(template);
+      }
+    });
+    this.readTemplateTable = table.toArray(new ReadTemplate[0]);
+  }
+
+  /** Runs the load for the configured duration, deletes the markets it created and reports. */
+  LoadReport run() throws InterruptedException {
+    sample = readSample();
+    if (sample.isEmpty()) {
+      throw new IllegalStateException("The server has no farmers' markets to read");
+    }
+    keyDistribution = options.getKeyDistribution() == KeyDistribution.ZIPFIAN
+        ? getZipfDistribution(sample.size())
+        : null;
+    logger.log(Level.INFO, "Sampled {0} markets; sending {1} calls/s for {2}",
+        new Object[]{sample.size(), options.getRate(), options.getDuration()});
+
+    long intervalNanos = (long) (1e9 / options.getRate());
+    long startNanos = System.nanoTime();
+    long endNanos = startNanos + options.getDuration().toNanos();
+    for (long i = 0; ; i++) {
+      long dueNanos = startNanos + i * intervalNanos;
+      if (dueNanos >= endNanos) {
+        break;
+      }
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(waitNanos);
+      }
+      // Waiting here for a slot delays the send but not the due time, so it shows up in the
+      // response times.
+      outstanding.acquire();
+      sendCall(dueNanos);
+    }
+    if (!outstanding.tryAcquire(
+        options.getConcurrency(), DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      logger.log(Level.WARNING, "Calls still outstanding after {0} s", DRAIN_TIMEOUT_SECONDS);
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    long deletedCount = client.deleteCount(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue(LOAD_TEST_NAME))
+        .build());
+    logger.log(Level.INFO, "Deleted {0} markets created by the load test", deletedCount);
+    return getReport(elapsedNanos);
+  }
+
+  private List<FarmersMarket> readSample() {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>();
+    String pageToken = "";
+    do {
+      ReadFarmersMarketResponse page = client.readPage(FarmersMarketTemplate.getDefaultInstance(),
+          Math.min(SAMPLE_PAGE_SIZE, options.getSampleSize() - farmersMarkets.size()), pageToken);
+      farmersMarkets.addAll(page.getFarmersMarketList());
+      pageToken = page.getNextPageToken();
+    } while (!pageToken.isEmpty() && farmersMarkets.size() < options.getSampleSize());
+    return farmersMarkets;
+  }
+
+  private void sendCall(long dueNanos) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    double kind = random.nextDouble();
+    if (kind < options.getReadFraction()) {
+      ReadTemplate template = readTemplateTable[random.nextInt(readTemplateTable.length)];
+      ReadFarmersMarketRequest request = ReadFarmersMarketRequest.newBuilder()
+          .setFarmersMarket(getReadTemplate(template, pickSampledMarket(random)))
+          .build();
+      String operation = "read_" + template.name().toLowerCase(Locale.ROOT);
+      client.getReadAsyncStub().readFarmersMarket(request,
+          this.<ReadFarmersMarketResponse>recording(operation, dueNanos, response -> {}));
+    } else if (kind < (1 + options.getReadFraction()) / 2 || !hasCreatedIds()) {
+      FarmersMarket farmersMarket = pickSampledMarket(random);
+      CreateFarmersMarketRequest request = CreateFarmersMarketRequest.newBuilder()
+          .setFarmersMarket(FarmersMarketTemplate.newBuilder()
+              .setName(StringValue.newBuilder().setValue(LOAD_TEST_NAME))
+              .setCity(farmersMarket.getCity())
+              .setState(farmersMarket.getState())
+              .setZip(StringValue.newBuilder().setValue(String.format(Locale.ROOT, "%05d",
+                  random.nextInt(100_000)))))
+          .build();
+      client.getPrimaryAsyncStub().createFarmersMarket(request,
+          this.<CreateFarmersMarketResponse>recording("create", dueNanos,
+              response -> addCreatedId(response.getFarmersMarket().getId())));
+    } else {
+      long id = pickCreatedId(random);
+      UpdateFarmersMarketRequest request = UpdateFarmersMarketRequest.newBuilder()
+          .setFarmersMarket(FarmersMarketTemplate.newBuilder()
+              .setZip(StringValue.newBuilder().setValue(String.format(Locale.ROOT, "%05d",
+                  random.nextInt(100_000)))))
+          .setConditions(FarmersMarketTemplate.newBuilder()
+              .setId(Int64Value.newBuilder().setValue(id)))
+          .build();
+      client.getPrimaryAsyncStub().updateFarmersMarket(request,
+          this.<UpdateFarmersMarketResponse>recording("update", dueNanos, response -> {}));
+    }
+  }
+
+  private void addCreatedId(long id) {
+    synchronized (createdIds) {
+      createdIds.add(id);
+    }
+  }
+
+  private boolean hasCreatedIds() {
+    synchronized (createdIds) {
+      return !createdIds.isEmpty();
+    }
+  }
+
+  /** Returns the Id of a market created so far, of which there must be at least one. */
+  private long pickCreatedId(ThreadLocalRandom random) {
+    synchronized (createdIds) {
+      return createdIds.get(random.nextInt(createdIds.size()));
+    }
+  }
+
+  private FarmersMarket pickSampledMarket(ThreadLocalRandom random) {
+    if (keyDistribution == null) {
+      return sample.get(random.nextInt(sample.size()));
+    }
+    int index = Arrays.binarySearch(keyDistribution, random.nextDouble());
+    return sample.get(Math.min(index < 0 ? -index - 1 : index, sample.size() - 1));
+  }
+
+  private static FarmersMarketTemplate getReadTemplate(ReadTemplate template,
+      FarmersMarket farmersMarket) {
+    FarmersMarketTemplate.Builder builder = FarmersMarketTemplate.newBuilder();
+    switch (template) {
+      case ID:
+        return builder.setId(Int64Value.newBuilder().setValue(farmersMarket.getId())).build();
+      case NAME:
+        return builder.setName(StringValue.newBuilder().setValue(farmersMarket.getName()))
+            .build();
+      case CITY:
+        return builder.setCity(farmersMarket.getCity()).build();
+      case STATE:
+        return builder.setState(farmersMarket.getState()).build();
+      case STATE_AND_CITY:
+        return builder.setState(farmersMarket.getState()).setCity(farmersMarket.getCity())
+            .build();
+      default:
+        throw new AssertionError(template);
+    }
+  }
+
+  /** Returns the cumulative probabilities of a Zipf distribution over {@code n} ranks. */
+  static double[] getZipfDistribution(int n) {
+    double[] cumulative = new double[n];
+    double sum = 0;
+    for (int rank = 1; rank <= n; rank++) {
+      sum += 1 / Math.pow(rank, ZIPF_EXPONENT);
+      cumulative[rank - 1] = sum;
+    }
+    for (int i = 0; i < n; i++) {
+      cumulative[i] /= sum;
+    }
+    return cumulative;
+  }
+
+  /** Returns an observer that records the call's latencies and frees its slot when it ends. */
+  private <T> StreamObserver<T> recording(String operation, long dueNanos,
+      Consumer<T> onResponse) {
+    long sentNanos = System.nanoTime();
+    OperationStats stats = operationStats.computeIfAbsent(operation, o -> new OperationStats());
+    return new StreamObserver<T>() {
+      @Override
+      public void onNext(T response) {
+        onResponse.accept(response);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        errors.computeIfAbsent(Status.fromThrowable(t).getCode(), c -> new LongAdder())
+            .increment();
+        finish(true);
+      }
+
+      @Override
+      public void onCompleted() {
+        finish(false);
+      }
+
+      private void finish(boolean failed) {
+        long doneNanos = System.nanoTime();
+        stats.record(dueNanos, sentNanos, doneNanos, failed);
+        totalStats.record(dueNanos, sentNanos, doneNanos, failed);
+        outstanding.release();
+      }
+    };
+  }
+
+  private LoadReport getReport(long elapsedNanos) {
+    ImmutableList.Builder<OperationReport> operations = ImmutableList.builder();
+    operationStats.keySet().stream().sorted().forEach(
+        operation -> operations.add(operationStats.get(operation).toReport(operation)));
+    ImmutableMap.Builder<Status.Code, Long> errorCounts = ImmutableMap.builder();
+    errors.forEach((code, count) -> errorCounts.put(code, count.sum()));
+    return new AutoValue_LoadGenerator_LoadReport(options.getRate(), elapsedNanos,
+        totalStats.toReport("total"), operations.build(), errorCounts.build());
+  }
+}
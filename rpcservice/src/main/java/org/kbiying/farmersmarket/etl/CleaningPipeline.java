@@ -0,0 +1,205 @@
+package org.kbiying.farmersmarket.etl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * The cleaning steps of an OpenRefine operation history, compiled to run over CSV rows without
+ * OpenRefine.
+ *
+ * <p>Only the operations and expressions that {@code etl/openrefine.json} uses are supported:
+ * column additions, text transforms and mass edits, with the expressions {@code value}, {@code
+ * jython:return value}, {@code value.trim()}, {@code value.toUppercase()}, {@code
+ * value.replace(/\s+/,' ')} and {@code value.toNumber()}. Compiling a history with anything else
+ * fails rather than silently skipping a step.
+ *
+ * <p>Column names are resolved to indexes at compile time, so applying the pipeline to a row is a
+ * sequence of array accesses and hash lookups. Blank cells are represented as null, as in
+ * OpenRefine.
+ */
+final class CleaningPipeline {
+
+  // OpenRefine writes a bare description line before some operations, which is not JSON.
+  private static final Pattern DESCRIPTION_LINE = Pattern.compile("^  [^\\s\\[\\]{}\"].*,$");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  @FunctionalInterface
+  private interface Step {
+
+    void apply(String[] row);
+  }
+
+  private final ImmutableList<String> columns;
+  private final Map<String, Integer> columnIndexes;
+  private final ImmutableList<Step> steps;
+
+  private CleaningPipeline(List<String> columns, List<Step> steps) {
+    this.columns = ImmutableList.copyOf(columns);
+    this.columnIndexes = new HashMap<>();
+    for (int i = 0; i < columns.size(); i++) {
+      columnIndexes.put(columns.get(i), i);
+    }
+    this.steps = ImmutableList.copyOf(steps);
+  }
+
+  /**
+   * Compiles the operation history for rows with the given input columns.
+   *
+   * @throws IllegalArgumentException if the history uses an unsupported operation or expression,
+   *     or refers to a column that does not exist
+   */
+  static CleaningPipeline compile(Reader history, List<String> inputColumns) throws IOException {
+    StringBuilder json = new StringBuilder();
+    for (String line : CharStreams.readLines(history)) {
+      if (!DESCRIPTION_LINE.matcher(line).matches()) {
+        json.append(line).append('\n');
+      }
+    }
+    List<String> columns = new ArrayList<>(inputColumns);
+    List<Step> steps = new ArrayList<>();
+    for (JsonElement entry : new JsonParser().parse(json.toString()).getAsJsonArray()) {
+      for (JsonElement operation : entry.getAsJsonArray()) {
+        steps.add(compileOperation(operation.getAsJsonObject(), columns));
+      }
+    }
+    return new CleaningPipeline(columns, steps);
+  }
+
+  int getColumnIndex(String column) {
+    Integer index = columnIndexes.get(column);
+    if (index == null) {
+      throw new IllegalArgumentException("Unknown column: " + column);
+    }
+    return index;
+  }
+
+  /**
+   * Cleans a row of input cells, with null or empty cells being blank, and returns a row with a
+   * cell for every input column followed by one for every column the history adds.
+   */
+  String[] apply(String[] inputRow) {
+    String[] row = new String[columns.size()];
+    for (int i = 0; i < inputRow.length && i < row.length; i++) {
+      row[i] = inputRow[i] == null || inputRow[i].isEmpty() ? null : inputRow[i];
+    }
+    for (Step step : steps) {
+      step.apply(row);
+    }
+    return row;
+  }
+
+  private static Step compileOperation(JsonObject operation, List<String> columns) {
+    String op = operation.get("op").getAsString();
+    switch (op) {
+      case "core/column-addition": {
+        int baseIndex = indexOf(columns, operation.get("baseColumnName").getAsString());
+        UnaryOperator<String> expression =
+            compileExpression(operation.get("expression").getAsString());
+        boolean keepOriginal = isKeepOriginal(operation);
+        int newIndex = columns.size();
+        columns.add(operation.get("newColumnName").getAsString());
+        return row -> row[newIndex] =
+            evaluate(expression, row[baseIndex], keepOriginal ? row[baseIndex] : null);
+      }
+      case "core/text-transform": {
+        int index = indexOf(columns, operation.get("columnName").getAsString());
+        UnaryOperator<String> expression =
+            compileExpression(operation.get("expression").getAsString());
+        boolean keepOriginal = isKeepOriginal(operation);
+        return row ->
+            row[index] = evaluate(expression, row[index], keepOriginal ? row[index] : null);
+      }
+      case "core/mass-edit": {
+        int index = indexOf(columns, operation.get("columnName").getAsString());
+        if (!operation.get("expression").getAsString().equals("value")) {
+          throw new IllegalArgumentException(
+              "Unsupported mass edit expression: " + operation.get("expression"));
+        }
+        Map<String, String> edits = new HashMap<>();
+        String blankEdit = null;
+        for (JsonElement editElement : operation.getAsJsonArray("edits")) {
+          JsonObject edit = editElement.getAsJsonObject();
+          String to = edit.get("to").getAsString();
+          for (JsonElement from : edit.getAsJsonArray("from")) {
+            edits.put(from.getAsString(), to);
+          }
+          if (edit.has("fromBlank") && edit.get("fromBlank").getAsBoolean()) {
+            blankEdit = to;
+          }
+        }
+        String editForBlank = blankEdit;
+        return row -> {
+          if (row[index] == null) {
+            if (editForBlank != null) {
+              row[index] = editForBlank;
+            }
+          } else {
+            row[index] = edits.getOrDefault(row[index], row[index]);
+          }
+        };
+      }
+      default:
+        throw new IllegalArgumentException("Unsupported operation: " + op);
+    }
+  }
+
+  private static UnaryOperator<String> compileExpression(String expression) {
+    switch (expression) {
+      case "value":
+      case "jython:return value":
+        return UnaryOperator.identity();
+      case "value.trim()":
+        return String::trim;
+      case "value.toUppercase()":
+        return value -> value.toUpperCase(Locale.ROOT);
+      case "value.replace(/\\s+/,' ')":
+        return value -> WHITESPACE.matcher(value).replaceAll(" ");
+      case "value.toNumber()":
+        return value -> {
+          // Throws NumberFormatException, which the operation's onError policy handles.
+          Double.parseDouble(value.trim());
+          return value.trim();
+        };
+      default:
+        throw new IllegalArgumentException("Unsupported expression: " + expression);
+    }
+  }
+
+  /** Applies the expression to a cell, returning {@code onError} if the expression fails. */
+  private static String evaluate(UnaryOperator<String> expression, String value, String onError) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      String result = expression.apply(value);
+      return result.isEmpty() ? null : result;
+    } catch (RuntimeException e) {
+      return onError;
+    }
+  }
+
+  private static boolean isKeepOriginal(JsonObject operation) {
+    JsonElement onError = operation.get("onError");
+    return onError != null && onError.getAsString().equals("keep-original");
+  }
+
+  private static int indexOf(List<String> columns, String column) {
+    int index = columns.indexOf(column);
+    if (index < 0) {
+      throw new IllegalArgumentException("Unknown column: " + column);
+    }
+    return index;
+  }
+}
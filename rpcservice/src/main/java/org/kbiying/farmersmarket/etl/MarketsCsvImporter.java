@@ -0,0 +1,466 @@
+package org.kbiying.farmersmarket.etl;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.StringValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.kbiying.farmersmarket.client.FarmersMarketClient;
+import org.kbiying.farmersmarket.client.FarmersMarketServerAddress;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.server.MarketsDerivedTables;
+
+/**
+ * Loads the USDA National Farmers Market Directory CSV into the {@code Markets} table, cleaning
+ * it with the steps recorded in the OpenRefine operation history.
+ *
+ * <p>The CSV is streamed a record at a time through a {@link CleaningPipeline} and inserted with
+ * batched prepared statements, all in one transaction. Markets keep their USDA {@code FMID} as
+ * their Id, so reloading a newer CSV replaces markets in place. The same transaction rebuilds
+ * the tables a server has derived from {@code Markets} with {@link MarketsDerivedTables}, which
+ * empties its change log. Watchers are not notified of the import; one that resumes afterwards
+ * is told that its changes are no longer retained and must read the markets again. A running
+ * server's column store and read cache only pick up the import when it restarts.
+ *
+ * <p>A delta import instead goes through a running server: it fingerprints every market the
+ * server holds and every cleaned record, and sends the server only the markets that are new or
+ * changed and the Ids of the markets missing from the CSV. The server applies them with its usual
+ * write path, so its indexes and caches stay current and nothing is rewritten needlessly.
+ */
+public class MarketsCsvImporter {
+
+  private static final Logger logger = Logger.getLogger(MarketsCsvImporter.class.getName());
+
+  /** The OpenRefine history from the {@code etl} directory, bundled on the classpath. */
+  static final String HISTORY_RESOURCE = "/etl/openrefine.json";
+  static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private static final String CREATE_MARKETS_SQL = "CREATE TABLE IF NOT EXISTS Markets ("
+      + "Id INTEGER PRIMARY KEY AUTOINCREMENT, "
+      + "Name TEXT NOT NULL, "
+      + "Address TEXT, "
+      + "City TEXT, "
+      + "County TEXT, "
+      + "State TEXT, "
+      + "Zip TEXT, "
+      + "Lat REAL, "
+      + "Long REAL)";
+  private static final String UPSERT_MARKET_SQL =
+      "INSERT OR REPLACE INTO Markets (Id, Name, Address, City, County, State, Zip, Lat, Long) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String BYTE_ORDER_MARK = "\uFEFF";
+
+  /** Counts of the CSV records an import loaded and skipped. */
+  @AutoValue
+  abstract static class ImportResult {
+
+    abstract long getImportedCount();
+
+    /** Records without a numeric FMID or a market name. */
+    abstract long getSkippedCount();
+
+    static ImportResult of(long importedCount, long skippedCount) {
+      return new AutoValue_MarketsCsvImporter_ImportResult(importedCount, skippedCount);
+    }
+  }
+
+  /** Counts of the markets a delta import changed and left alone. */
+  @AutoValue
+  abstract static class DeltaResult {
+
+    abstract long getInsertedCount();
+
+    abstract long getUpdatedCount();
+
+    abstract long getDeletedCount();
+
+    abstract long getUnchangedCount();
+
+    abstract long getSkippedCount();
+
+    static DeltaResult of(long insertedCount, long updatedCount, long deletedCount,
+        long unchangedCount, long skippedCount) {
+      return new AutoValue_MarketsCsvImporter_DeltaResult(
+          insertedCount, updatedCount, deletedCount, unchangedCount, skippedCount);
+    }
+  }
+
+  private final int batchSize;
+
+  MarketsCsvImporter(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Cleans the CSV with the history and loads it into {@code Markets}, creating the table if
+   * needed. With {@code replace}, markets missing from the CSV are deleted. Nothing is committed
+   * unless the whole CSV loads.
+   */
+  ImportResult importCsv(Reader csv, Reader history, Connection connection, boolean replace)
+      throws IOException, SQLException {
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try (CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(csv);
+        Statement statement = connection.createStatement();
+        PreparedStatement upsert = connection.prepareStatement(UPSERT_MARKET_SQL)) {
+      CleaningPipeline pipeline = CleaningPipeline.compile(history, getColumns(parser));
+      MarketColumns marketColumns = new MarketColumns(pipeline);
+
+      statement.executeUpdate(CREATE_MARKETS_SQL);
+      if (replace) {
+        statement.executeUpdate("DELETE FROM Markets");
+      }
+      long importedCount = 0;
+      long skippedCount = 0;
+      int batchedCount = 0;
+      for (CSVRecord record : parser) {
+        FarmersMarket farmersMarket = marketColumns.toFarmersMarket(clean(pipeline, record));
+        if (farmersMarket == null) {
+          logger.log(Level.FINE, "Skipping record {0}", record.getRecordNumber());
+          skippedCount++;
+          continue;
+        }
+        bindUpsertParameters(upsert, farmersMarket);
+        upsert.addBatch();
+        importedCount++;
+        if (++batchedCount == batchSize) {
+          upsert.executeBatch();
+          batchedCount = 0;
+        }
+      }
+      if (batchedCount > 0) {
+        upsert.executeBatch();
+      }
+      MarketsDerivedTables.rebuild(connection);
+      connection.commit();
+      return ImportResult.of(importedCount, skippedCount);
+    } catch (IOException | SQLException | RuntimeException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Cleans the CSV with the history and applies the difference between it and the markets the
+   * server holds, so that afterwards the server holds exactly the markets in the CSV.
+   */
+  DeltaResult importDelta(Reader csv, Reader history, FarmersMarketClient client)
+      throws IOException {
+    Map<Long, HashCode> storedFingerprints = new HashMap<>();
+    Iterator<FarmersMarket> storedMarkets =
+        client.stream(FarmersMarketTemplate.getDefaultInstance(), 0);
+    while (storedMarkets.hasNext()) {
+      FarmersMarket farmersMarket = storedMarkets.next();
+      storedFingerprints.put(farmersMarket.getId(), fingerprint(farmersMarket));
+    }
+
+    List<FarmersMarket> upserts = new ArrayList<>();
+    long unchangedCount = 0;
+    long skippedCount = 0;
+    try (CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(csv)) {
+      CleaningPipeline pipeline = CleaningPipeline.compile(history, getColumns(parser));
+      MarketColumns marketColumns = new MarketColumns(pipeline);
+      for (CSVRecord record : parser) {
+        FarmersMarket farmersMarket = marketColumns.toFarmersMarket(clean(pipeline, record));
+        if (farmersMarket == null) {
+          logger.log(Level.FINE, "Skipping record {0}", record.getRecordNumber());
+          skippedCount++;
+          continue;
+        }
+        // Removing the stored markets as they are seen leaves the ones to delete.
+        HashCode storedFingerprint = storedFingerprints.remove(farmersMarket.getId());
+        if (fingerprint(farmersMarket).equals(storedFingerprint)) {
+          unchangedCount++;
+        } else {
+          upserts.add(farmersMarket);
+        }
+      }
+    }
+    ApplyFarmersMarketChangesResponse response =
+        client.applyChanges(upserts, storedFingerprints.keySet());
+    return DeltaResult.of(response.getInsertedCount(), response.getUpdatedCount(),
+        response.getDeletedCount(), unchangedCount, skippedCount);
+  }
+
+  private static HashCode fingerprint(FarmersMarket farmersMarket) {
+    return Hashing.murmur3_128().hashBytes(farmersMarket.toByteArray());
+  }
+
+  private static String[] clean(CleaningPipeline pipeline, CSVRecord record) {
+    String[] input = new String[record.size()];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = record.get(i);
+    }
+    return pipeline.apply(input);
+  }
+
+  private static void bindUpsertParameters(PreparedStatement upsert, FarmersMarket farmersMarket)
+      throws SQLException {
+    upsert.setLong(1, farmersMarket.getId());
+    upsert.setString(2, farmersMarket.getName());
+    bindText(upsert, 3, farmersMarket.hasAddress(), farmersMarket.getAddress());
+    bindText(upsert, 4, farmersMarket.hasCity(), farmersMarket.getCity());
+    bindText(upsert, 5, farmersMarket.hasCounty(), farmersMarket.getCounty());
+    bindText(upsert, 6, farmersMarket.hasState(), farmersMarket.getState());
+    bindText(upsert, 7, farmersMarket.hasZip(), farmersMarket.getZip());
+    bindNumber(upsert, 8, farmersMarket.hasLat(), farmersMarket.getLat());
+    bindNumber(upsert, 9, farmersMarket.hasLong(), farmersMarket.getLong());
+  }
+
+  private static void bindText(PreparedStatement statement, int index, boolean present,
+      StringValue value) throws SQLException {
+    if (present) {
+      statement.setString(index, value.getValue());
+    } else {
+      statement.setNull(index, Types.VARCHAR);
+    }
+  }
+
+  private static void bindNumber(PreparedStatement statement, int index, boolean present,
+      DoubleValue value) throws SQLException {
+    if (present) {
+      statement.setDouble(index, value.getValue());
+    } else {
+      statement.setNull(index, Types.DOUBLE);
+    }
+  }
+
+  private static List<String> getColumns(CSVParser parser) {
+    List<String> columns = new ArrayList<>();
+    for (Map.Entry<String, Integer> header : parser.getHeaderMap().entrySet()) {
+      String column = header.getKey();
+      if (column.startsWith(BYTE_ORDER_MARK)) {
+        column = column.substring(BYTE_ORDER_MARK.length());
+      }
+      while (columns.size() <= header.getValue()) {
+        columns.add(null);
+      }
+      columns.set(header.getValue(), column);
+    }
+    return columns;
+  }
+
+  /** Where the columns of {@code Markets} come from in a cleaned row. */
+  private static final class MarketColumns {
+
+    private final int fmid;
+    private final int name;
+    private final int address;
+    private final int city;
+    private final int county;
+    private final int state;
+    private final int zip;
+    private final int lat;
+    private final int lng;
+
+    MarketColumns(CleaningPipeline pipeline) {
+      this.fmid = pipeline.getColumnIndex("FMID");
+      this.name = pipeline.getColumnIndex("Name_Clean");
+      this.address = pipeline.getColumnIndex("addr_clean");
+      this.city = pipeline.getColumnIndex("city_clean");
+      this.county = pipeline.getColumnIndex("county_clean");
+      this.state = pipeline.getColumnIndex("State");
+      this.zip = pipeline.getColumnIndex("zip");
+      this.lat = pipeline.getColumnIndex("y");
+      this.lng = pipeline.getColumnIndex("x");
+    }
+
+    /** Returns the market in the row, or null if it has no usable Id or name. */
+    FarmersMarket toFarmersMarket(String[] row) {
+      if (row[fmid] == null || row[name] == null) {
+        return null;
+      }
+      FarmersMarket.Builder farmersMarketBuilder = FarmersMarket.newBuilder();
+      try {
+        farmersMarketBuilder.setId(Long.parseLong(row[fmid].trim()));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      farmersMarketBuilder.setName(row[name]);
+      if (row[address] != null) {
+        farmersMarketBuilder.setAddress(StringValue.newBuilder().setValue(row[address]));
+      }
+      if (row[city] != null) {
+        farmersMarketBuilder.setCity(StringValue.newBuilder().setValue(row[city]));
+      }
+      if (row[county] != null) {
+        farmersMarketBuilder.setCounty(StringValue.newBuilder().setValue(row[county]));
+      }
+      if (row[state] != null) {
+        farmersMarketBuilder.setState(StringValue.newBuilder().setValue(row[state]));
+      }
+      if (row[zip] != null) {
+        farmersMarketBuilder.setZip(StringValue.newBuilder().setValue(row[zip]));
+      }
+      Double latitude = parseNumber(row[lat]);
+      if (latitude != null) {
+        farmersMarketBuilder.setLat(DoubleValue.newBuilder().setValue(latitude));
+      }
+      Double longitude = parseNumber(row[lng]);
+      if (longitude != null) {
+        farmersMarketBuilder.setLong(DoubleValue.newBuilder().setValue(longitude));
+      }
+      return farmersMarketBuilder.build();
+    }
+
+    private static Double parseNumber(String value) {
+      if (value == null) {
+        return null;
+      }
+      try {
+        return Double.parseDouble(value.trim());
+      } catch (NumberFormatException e) {
+        // Left blank, as OpenRefine's toNumber() leaves it unconverted.
+        return null;
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    CommandLine commandLine;
+    try {
+      commandLine = parseCommandLine(args);
+    } catch (ParseException e) {
+      System.err.println("Could not parse command line: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    try {
+      int batchSize = commandLine.hasOption("batch-size")
+          ? ((Number) commandLine.getParsedOptionValue("batch-size")).intValue()
+          : DEFAULT_BATCH_SIZE;
+      MarketsCsvImporter importer = new MarketsCsvImporter(batchSize);
+      long startNanos = System.nanoTime();
+      if (commandLine.hasOption("delta")) {
+        importDelta(importer, commandLine, startNanos);
+        return;
+      }
+      if (!commandLine.hasOption("db")) {
+        throw new ParseException("Missing required option: db");
+      }
+      ImportResult result;
+      try (Reader csv = Files.newBufferedReader(
+          Paths.get(commandLine.getOptionValue("csv")), StandardCharsets.UTF_8);
+          Reader history = openHistory(commandLine.getOptionValue("history"));
+          Connection connection = DriverManager.getConnection(
+              "jdbc:sqlite:" + commandLine.getOptionValue("db"))) {
+        result = importer.importCsv(csv, history, connection, commandLine.hasOption("replace"));
+      }
+      logger.log(Level.INFO, "Imported {0} farmers'' markets and skipped {1} records in {2} ms",
+          new Object[]{
+              result.getImportedCount(),
+              result.getSkippedCount(),
+              (System.nanoTime() - startNanos) / 1_000_000});
+    } catch (IOException | ParseException | SQLException | RuntimeException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      System.exit(1);
+    }
+  }
+
+  private static void importDelta(MarketsCsvImporter importer, CommandLine commandLine,
+      long startNanos) throws IOException, ParseException {
+    if (!commandLine.hasOption("host") || !commandLine.hasOption("port")) {
+      throw new ParseException("A delta import needs the host and port of a server");
+    }
+    FarmersMarketClient client = new FarmersMarketClient(FarmersMarketServerAddress.of(
+        commandLine.getOptionValue("host"),
+        ((Number) commandLine.getParsedOptionValue("port")).intValue()));
+    DeltaResult result;
+    try (Reader csv = Files.newBufferedReader(
+        Paths.get(commandLine.getOptionValue("csv")), StandardCharsets.UTF_8);
+        Reader history = openHistory(commandLine.getOptionValue("history"))) {
+      result = importer.importDelta(csv, history, client);
+    } finally {
+      client.shutdown(Duration.ofSeconds(5));
+    }
+    logger.log(Level.INFO, "Inserted {0}, updated {1} and deleted {2} farmers'' markets, left {3} "
+            + "unchanged and skipped {4} records in {5} ms",
+        new Object[]{
+            result.getInsertedCount(),
+            result.getUpdatedCount(),
+            result.getDeletedCount(),
+            result.getUnchangedCount(),
+            result.getSkippedCount(),
+            (System.nanoTime() - startNanos) / 1_000_000});
+  }
+
+  private static Reader openHistory(String path) throws IOException {
+    if (path != null) {
+      return Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+    }
+    InputStream history = MarketsCsvImporter.class.getResourceAsStream(HISTORY_RESOURCE);
+    if (history == null) {
+      throw new IOException("No bundled OpenRefine history at " + HISTORY_RESOURCE);
+    }
+    return new InputStreamReader(history, StandardCharsets.UTF_8);
+  }
+
+  private static CommandLine parseCommandLine(String[] args) throws ParseException {
+    Option csv = Option.builder().argName("csv").longOpt("csv").hasArg().required().build();
+    Option db = Option.builder().argName("db").longOpt("db").hasArg().build();
+    Option history = Option.builder().argName("history").longOpt("history").hasArg().build();
+    Option replace = Option.builder().longOpt("replace").build();
+    Option delta = Option.builder().longOpt("delta").build();
+    Option host = Option.builder().argName("host").longOpt("host").hasArg().build();
+    Option port = Option.builder()
+        .argName("port")
+        .longOpt("port")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option batchSize = Option.builder()
+        .argName("batch-size")
+        .longOpt("batch-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Options options = new Options();
+    options.addOption(csv);
+    options.addOption(db);
+    options.addOption(history);
+    options.addOption(replace);
+    options.addOption(delta);
+    options.addOption(host);
+    options.addOption(port);
+    options.addOption(batchSize);
+    CommandLineParser parser = new DefaultParser();
+    return parser.parse(options, args);
+  }
+}
@@ -0,0 +1,117 @@
+package org.kbiying.farmersmarket.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of durations in nanoseconds with log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into 16 equal buckets, so a recorded value is known
+ * to within about 6% at any magnitude while the whole histogram takes under 8 KB.
+ *
+ * <p>Recording is lock-free. A snapshot taken while values are being recorded may miss some of
+ * them, but never sees a bucket count go down. Both the server's metrics and the client's load
+ * generator record into it, so that their percentiles are directly comparable.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(getBucketIndex(value));
+    count.increment();
+    sumNanos.add(value);
+    if (value > maxNanos.get()) {
+      maxNanos.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  public Snapshot snapshot() {
+    long[] bucketCounts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      bucketCounts[i] = counts.get(i);
+      total += bucketCounts[i];
+    }
+    return new Snapshot(bucketCounts, total, sumNanos.sum(), maxNanos.get());
+  }
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the largest value that falls into the bucket. */
+  static long getBucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  /** The recorded values of a histogram at one point in time. */
+  public static final class Snapshot {
+
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sumNanos;
+    private final long maxNanos;
+
+    private Snapshot(long[] bucketCounts, long count, long sumNanos, long maxNanos) {
+      this.bucketCounts = bucketCounts;
+      this.count = count;
+      this.sumNanos = sumNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSumNanos() {
+      return sumNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public double getMeanNanos() {
+      return count == 0 ? 0 : (double) sumNanos / count;
+    }
+
+    /**
+     * Returns a value that at least the given fraction of the recorded values are less than or
+     * equal to, or zero if nothing has been recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          return Math.min(getBucketUpperBound(i), maxNanos);
+        }
+      }
+      return maxNanos;
+    }
+  }
+}
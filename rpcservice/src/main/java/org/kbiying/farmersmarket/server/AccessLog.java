@@ -0,0 +1,96 @@
+package org.kbiying.farmersmarket.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a sample of finished calls to its logger from a background thread.
+ *
+ * <p>Request threads only decide whether to sample a call and hand its entry to a bounded queue;
+ * formatting, payload rendering and the logger's handlers all run on the writer thread. When the
+ * writer falls behind, entries are dropped and counted rather than slowing down requests. Failed
+ * calls and calls whose payload was asked for are always logged.
+ */
+final class AccessLog implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+
+  static final int QUEUE_CAPACITY = 4096;
+  private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+  private final double sampleRate;
+  private final BlockingQueue<AccessLogEntry> entries = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final Thread writer;
+  private final LongAdder loggedCount = new LongAdder();
+  private final LongAdder droppedCount = new LongAdder();
+  private final LongAdder overheadNanos = new LongAdder();
+
+  private volatile boolean closed;
+
+  AccessLog(double sampleRate) {
+    this.sampleRate = sampleRate;
+    this.writer = new Thread(this::writeEntries, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Returns whether a call that succeeds should be logged. */
+  boolean sample() {
+    return sampleRate >= 1
+        || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  /** Queues the entry for the writer thread, or drops it if the queue is full. */
+  void log(AccessLogEntry entry) {
+    if (closed || !entries.offer(entry)) {
+      droppedCount.increment();
+    }
+  }
+
+  /** Adds time that a request thread spent on access logging, so its cost can be monitored. */
+  void addOverheadNanos(long nanos) {
+    overheadNanos.add(nanos);
+  }
+
+  long getLoggedCount() {
+    return loggedCount.sum();
+  }
+
+  long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  long getOverheadNanos() {
+    return overheadNanos.sum();
+  }
+
+  private void writeEntries() {
+    try {
+      while (!closed || !entries.isEmpty()) {
+        AccessLogEntry entry = entries.poll(100, TimeUnit.MILLISECONDS);
+        if (entry != null) {
+          logger.log(Level.INFO, entry.format());
+          loggedCount.increment();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Stops accepting entries and waits for the writer to log the ones already queued. */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import io.grpc.Status;
+import java.util.Locale;
+import java.util.Optional;
+
+/** One finished call, as written to the access log. */
+@AutoValue
+abstract class AccessLogEntry {
+
+  abstract String getMethodName();
+  abstract Status.Code getStatusCode();
+  abstract long getLatencyNanos();
+
+  /** Markets, or other repeated results, in the call's responses. */
+  abstract long getRowCount();
+
+  /** The first request message of the call, if the client asked for its payload to be logged. */
+  abstract Optional<Message> getRequest();
+
+  static AccessLogEntry create(String methodName, Status.Code statusCode, long latencyNanos,
+      long rowCount, Optional<Message> request) {
+    return new AutoValue_AccessLogEntry(methodName, statusCode, latencyNanos, rowCount, request);
+  }
+
+  /** Formats the entry as a line of {@code key=value} fields, rendering the payload last. */
+  String format() {
+    StringBuilder line = new StringBuilder(getMethodName())
+        .append(" status=").append(getStatusCode())
+        .append(" latency_ms=")
+        .append(String.format(Locale.ROOT, "%.3f", getLatencyNanos() / 1e6))
+        .append(" rows=").append(getRowCount());
+    getRequest().ifPresent(
+        request -> line.append(" request={").append(TextFormat.shortDebugString(request))
+            .append('}'));
+    return line.toString();
+  }
+}
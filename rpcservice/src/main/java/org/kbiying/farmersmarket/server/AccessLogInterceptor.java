@@ -0,0 +1,136 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Feeds an {@link AccessLog} with the method, status, latency and row count of every sampled
+ * call.
+ *
+ * <p>A client asks for a call's request payload to be logged, and for the call to be logged
+ * whatever the sample rate, by sending the {@link #LOG_PAYLOAD_HEADER} header. Only then does the
+ * interceptor keep a reference to the request; it is rendered by the access log's writer thread.
+ */
+final class AccessLogInterceptor implements ServerInterceptor {
+
+  static final Metadata.Key<String> LOG_PAYLOAD_HEADER =
+      Metadata.Key.of("farmers-market-log-payload", Metadata.ASCII_STRING_MARSHALLER);
+
+  /** For each response type, the fields whose sizes or values make up its row count. */
+  private static final ConcurrentMap<Descriptor, List<FieldDescriptor>> rowCountFields =
+      new ConcurrentHashMap<>();
+
+  private final AccessLog accessLog;
+
+  AccessLogInterceptor(AccessLog accessLog) {
+    this.accessLog = accessLog;
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+      Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    long startNanos = System.nanoTime();
+    String fullMethodName = call.getMethodDescriptor().getFullMethodName();
+    String methodName = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+    boolean logPayload = "true".equals(headers.get(LOG_PAYLOAD_HEADER));
+    boolean sampled = logPayload || accessLog.sample();
+    AtomicBoolean finished = new AtomicBoolean();
+    AtomicLong rowCount = new AtomicLong();
+    AtomicReference<Message> request = new AtomicReference<>();
+    Consumer<Status.Code> finish = statusCode -> {
+      if (!finished.compareAndSet(false, true) || (!sampled && statusCode == Status.Code.OK)) {
+        return;
+      }
+      long finishNanos = System.nanoTime();
+      accessLog.log(AccessLogEntry.create(methodName, statusCode, finishNanos - startNanos,
+          rowCount.get(), Optional.ofNullable(request.get())));
+      accessLog.addOverheadNanos(System.nanoTime() - finishNanos);
+    };
+
+    ServerCall<ReqT, RespT> loggedCall = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+      @Override
+      public void sendMessage(RespT message) {
+        long countStartNanos = System.nanoTime();
+        rowCount.addAndGet(countRows(message));
+        accessLog.addOverheadNanos(System.nanoTime() - countStartNanos);
+        super.sendMessage(message);
+      }
+
+      @Override
+      public void close(Status status, Metadata trailers) {
+        super.close(status, trailers);
+        finish.accept(status.getCode());
+      }
+    };
+    accessLog.addOverheadNanos(System.nanoTime() - startNanos);
+    return new SimpleForwardingServerCallListener<ReqT>(next.startCall(loggedCall, headers)) {
+      @Override
+      public void onMessage(ReqT message) {
+        if (logPayload && message instanceof Message) {
+          request.compareAndSet(null, (Message) message);
+        }
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onCancel() {
+        // A cancelled call is never closed by the service.
+        finish.accept(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  /**
+   * Counts the rows in a response: the size of its first repeated field, or failing that the sum
+   * of its integer {@code *_count} fields.
+   */
+  private static long countRows(Object response) {
+    if (!(response instanceof Message)) {
+      return 0;
+    }
+    Message message = (Message) response;
+    long rows = 0;
+    for (FieldDescriptor field : rowCountFields.computeIfAbsent(
+        message.getDescriptorForType(), AccessLogInterceptor::getRowCountFields)) {
+      rows += field.isRepeated()
+          ? message.getRepeatedFieldCount(field)
+          : ((Number) message.getField(field)).longValue();
+    }
+    return rows;
+  }
+
+  private static List<FieldDescriptor> getRowCountFields(Descriptor descriptor) {
+    List<FieldDescriptor> fields = new ArrayList<>();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (field.isRepeated()) {
+        fields.clear();
+        fields.add(field);
+        return fields;
+      }
+      if (field.getName().endsWith("_count")
+          && (field.getJavaType() == FieldDescriptor.JavaType.INT
+              || field.getJavaType() == FieldDescriptor.JavaType.LONG)) {
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+}
@@ -0,0 +1,38 @@
+package org.kbiying.farmersmarket.server;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Fails calls with RESOURCE_EXHAUSTED when they start while the request executor is saturated.
+ *
+ * <p>Only the start of a call is checked. The messages, half-close and readiness callbacks of a
+ * call that was admitted always run, so a streaming call is never cut off halfway. In this gRPC
+ * version the start itself runs on the executor, so a call is refused when its start finds the
+ * queue behind it full, which takes the refused call only moments of a thread.
+ */
+final class AdmissionControlInterceptor implements ServerInterceptor {
+
+  private static final ServerCall.Listener<Object> NOOP_LISTENER =
+      new ServerCall.Listener<Object>() {};
+
+  private final RequestExecutor executor;
+
+  AdmissionControlInterceptor(RequestExecutor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+      Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    if (executor.admitCall()) {
+      return next.startCall(call, headers);
+    }
+    call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server is overloaded"), new Metadata());
+    return (ServerCall.Listener<ReqT>) NOOP_LISTENER;
+  }
+}
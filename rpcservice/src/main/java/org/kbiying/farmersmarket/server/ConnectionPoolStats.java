@@ -0,0 +1,50 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+
+@AutoValue
+abstract class ConnectionPoolStats {
+
+  abstract int getMaximumSize();
+  abstract int getOpenConnections();
+  abstract int getIdleConnections();
+  abstract int getActiveConnections();
+  abstract int getPendingAcquires();
+  abstract long getAcquireCount();
+  abstract long getCreatedCount();
+  abstract long getClosedCount();
+  abstract Duration getTotalWaitTime();
+  abstract Duration getMaximumWaitTime();
+
+  /** Fraction of the pool's capacity currently checked out, between 0 and 1. */
+  double getUtilization() {
+    return (double) getActiveConnections() / getMaximumSize();
+  }
+
+  Duration getAverageWaitTime() {
+    return getAcquireCount() == 0
+        ? Duration.ZERO
+        : getTotalWaitTime().dividedBy(getAcquireCount());
+  }
+
+  static Builder builder() {
+    return new AutoValue_ConnectionPoolStats.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+
+    abstract Builder setMaximumSize(int maximumSize);
+    abstract Builder setOpenConnections(int openConnections);
+    abstract Builder setIdleConnections(int idleConnections);
+    abstract Builder setActiveConnections(int activeConnections);
+    abstract Builder setPendingAcquires(int pendingAcquires);
+    abstract Builder setAcquireCount(long acquireCount);
+    abstract Builder setCreatedCount(long createdCount);
+    abstract Builder setClosedCount(long closedCount);
+    abstract Builder setTotalWaitTime(Duration totalWaitTime);
+    abstract Builder setMaximumWaitTime(Duration maximumWaitTime);
+    abstract ConnectionPoolStats build();
+  }
+}
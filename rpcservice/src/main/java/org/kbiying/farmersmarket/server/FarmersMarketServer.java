@@ -1,9 +1,13 @@
 package org.kbiying.farmersmarket.server;
 
+import com.google.common.collect.ImmutableList;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
@@ -17,12 +21,50 @@ public class FarmersMarketServer {
 
   private static final Logger logger = Logger.getLogger(FarmersMarketServer.class.getName());
 
+  private final ServerMetrics metrics = new ServerMetrics();
+  private final FarmersMarketService service;
+  private final RequestExecutor executor;
+  private final AccessLog accessLog;
   private final Server server;
 
   public FarmersMarketServer(FarmersMarketServerOptions options) throws SQLException {
-    this.server = ServerBuilder.forPort(options.getPort())
-        .addService(new FarmersMarketService(options.getSqliteDbPath()))
+    this(options, ServerBuilder.forPort(options.getPort()));
+  }
+
+  /** Serves over the transport of the given builder, such as an in-process one. */
+  FarmersMarketServer(FarmersMarketServerOptions options, ServerBuilder<?> serverBuilder)
+      throws SQLException {
+    this.executor = new RequestExecutor(options);
+    this.service = new FarmersMarketService(options, metrics);
+    this.accessLog = new AccessLog(options.getAccessLogSampleRate());
+    this.server = serverBuilder
+        .executor(executor)
+        .addService(ServerInterceptors.intercept(service, new AdmissionControlInterceptor(executor),
+            new AccessLogInterceptor(accessLog), new MetricsInterceptor(metrics)))
         .build();
+    metrics.registerGauge("executor_queue_depth", "Tasks waiting for a request thread.",
+        () -> executor.getStats().getQueueDepth());
+    metrics.registerGauge("executor_active_threads", "Request threads running a task.",
+        () -> executor.getStats().getActiveThreads());
+    metrics.registerCounter("executor_rejected_calls_total",
+        "Calls refused because the executor queue was full.",
+        () -> executor.getStats().getRejectedCallCount());
+    metrics.registerCounter("access_log_entries_total", "Calls written to the access log.",
+        accessLog::getLoggedCount);
+    metrics.registerCounter("access_log_dropped_total",
+        "Access log entries dropped because the writer fell behind.",
+        accessLog::getDroppedCount);
+    metrics.registerCounter("access_log_overhead_seconds_total",
+        "Time request threads spent on access logging.",
+        () -> accessLog.getOverheadNanos() / 1e9);
+  }
+
+  FarmersMarketService getService() {
+    return service;
+  }
+
+  RequestExecutor getExecutor() {
+    return executor;
   }
 
   public void start() throws IOException {
@@ -33,10 +75,15 @@ public class FarmersMarketServer {
   public void shutdown() {
     logger.info("Server shutting down...");
     server.shutdown();
+    service.closeWatches();
   }
 
   public void awaitTermination() throws InterruptedException {
     server.awaitTermination();
+    logger.log(Level.INFO, "Closing request executor: {0}", executor.getStats());
+    executor.close();
+    accessLog.close();
+    service.close();
   }
 
   private void addShutdownHook() {
@@ -59,7 +106,84 @@ public class FarmersMarketServer {
     CommandLine commandLine = parseCommandLine(args);
     int port = ((Number) commandLine.getParsedOptionValue("port")).intValue();
     String sqliteDbPath = commandLine.getOptionValue("db");
-    return FarmersMarketServerOptions.of(port, sqliteDbPath);
+    FarmersMarketServerOptions.Builder builder = FarmersMarketServerOptions.builder()
+        .setPort(port)
+        .setSqliteDbPath(sqliteDbPath);
+    if (commandLine.hasOption("storage-mode")) {
+      builder.setStorageMode(getEnumOptionValue(
+          commandLine, "storage-mode", FarmersMarketServerOptions.StorageMode.class));
+    }
+    if (commandLine.hasOption("read-mode")) {
+      builder.setReadMode(getEnumOptionValue(
+          commandLine, "read-mode", FarmersMarketServerOptions.ReadMode.class));
+    }
+    if (commandLine.hasOption("index")) {
+      ImmutableList.Builder<IndexDefinition> indexes = ImmutableList.builder();
+      for (String index : commandLine.getOptionValues("index")) {
+        indexes.add(IndexDefinition.parse(index));
+      }
+      builder.setSecondaryIndexes(indexes.build());
+    }
+    if (commandLine.hasOption("batch-commit-size")) {
+      builder.setBatchCommitSize(
+          ((Number) commandLine.getParsedOptionValue("batch-commit-size")).intValue());
+    }
+    if (commandLine.hasOption("read-cache-max-markets")) {
+      builder.setReadCacheMaxMarkets(
+          ((Number) commandLine.getParsedOptionValue("read-cache-max-markets")).longValue());
+    }
+    if (commandLine.hasOption("executor")) {
+      builder.setExecutorMode(getEnumOptionValue(
+          commandLine, "executor", FarmersMarketServerOptions.ExecutorMode.class));
+    }
+    if (commandLine.hasOption("executor-threads")) {
+      builder.setExecutorThreads(
+          ((Number) commandLine.getParsedOptionValue("executor-threads")).intValue());
+    }
+    if (commandLine.hasOption("executor-queue-capacity")) {
+      builder.setExecutorQueueCapacity(
+          ((Number) commandLine.getParsedOptionValue("executor-queue-capacity")).intValue());
+    }
+    if (commandLine.hasOption("slow-query-threshold-millis")) {
+      builder.setSlowQueryThreshold(Duration.ofMillis(
+          ((Number) commandLine.getParsedOptionValue("slow-query-threshold-millis")).longValue()));
+    }
+    if (commandLine.hasOption("slow-query-log-size")) {
+      builder.setSlowQueryLogSize(
+          ((Number) commandLine.getParsedOptionValue("slow-query-log-size")).intValue());
+    }
+    if (commandLine.hasOption("access-log-sample-rate")) {
+      builder.setAccessLogSampleRate(
+          ((Number) commandLine.getParsedOptionValue("access-log-sample-rate")).doubleValue());
+    }
+    if (commandLine.hasOption("change-log-retention")) {
+      builder.setChangeLogRetention(
+          ((Number) commandLine.getParsedOptionValue("change-log-retention")).longValue());
+    }
+    if (commandLine.hasOption("pool-size")) {
+      builder.setConnectionPoolSize(
+          ((Number) commandLine.getParsedOptionValue("pool-size")).intValue());
+    }
+    if (commandLine.hasOption("pool-min-idle")) {
+      builder.setConnectionPoolMinIdle(
+          ((Number) commandLine.getParsedOptionValue("pool-min-idle")).intValue());
+    }
+    if (commandLine.hasOption("pool-idle-timeout-seconds")) {
+      builder.setConnectionIdleTimeout(Duration.ofSeconds(
+          ((Number) commandLine.getParsedOptionValue("pool-idle-timeout-seconds")).longValue()));
+    }
+    return builder.build();
+  }
+
+  /** Returns the enum constant an option names, in any case. */
+  private static <E extends Enum<E>> E getEnumOptionValue(CommandLine commandLine, String option,
+      Class<E> enumType) throws ParseException {
+    String value = commandLine.getOptionValue(option);
+    try {
+      return Enum.valueOf(enumType, value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ParseException("Unknown --" + option + " value: " + value);
+    }
   }
 
   private static CommandLine parseCommandLine(String[] args) throws ParseException {
@@ -76,9 +200,116 @@ public class FarmersMarketServer {
         .hasArg()
         .required()
         .build();
+    Option storageMode = Option.builder()
+        .argName("storage-mode")
+        .longOpt("storage-mode")
+        .hasArg()
+        .desc("rollback_journal (default) or wal")
+        .build();
+    Option readMode = Option.builder()
+        .argName("read-mode")
+        .longOpt("read-mode")
+        .hasArg()
+        .desc("sqlite (default) or column_store")
+        .build();
+    Option index = Option.builder()
+        .argName("columns")
+        .longOpt("index")
+        .hasArg()
+        .desc("comma-separated Markets columns to index; repeat for several indexes")
+        .build();
+    Option batchCommitSize = Option.builder()
+        .argName("batch-commit-size")
+        .longOpt("batch-commit-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option readCacheMaxMarkets = Option.builder()
+        .argName("read-cache-max-markets")
+        .longOpt("read-cache-max-markets")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option executor = Option.builder()
+        .argName("executor")
+        .longOpt("executor")
+        .hasArg()
+        .desc("fixed (default), cached or virtual_threads")
+        .build();
+    Option executorThreads = Option.builder()
+        .argName("executor-threads")
+        .longOpt("executor-threads")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option executorQueueCapacity = Option.builder()
+        .argName("executor-queue-capacity")
+        .longOpt("executor-queue-capacity")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option slowQueryThresholdMillis = Option.builder()
+        .argName("slow-query-threshold-millis")
+        .longOpt("slow-query-threshold-millis")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option slowQueryLogSize = Option.builder()
+        .argName("slow-query-log-size")
+        .longOpt("slow-query-log-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option accessLogSampleRate = Option.builder()
+        .argName("access-log-sample-rate")
+        .longOpt("access-log-sample-rate")
+        .hasArg()
+        .type(Number.class)
+        .desc("fraction of successful calls to log, 0.01 by default")
+        .build();
+    Option changeLogRetention = Option.builder()
+        .argName("change-log-retention")
+        .longOpt("change-log-retention")
+        .hasArg()
+        .type(Number.class)
+        .desc("number of recent changes kept for watchers to resume from")
+        .build();
+    Option poolSize = Option.builder()
+        .argName("pool-size")
+        .longOpt("pool-size")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option poolMinIdle = Option.builder()
+        .argName("pool-min-idle")
+        .longOpt("pool-min-idle")
+        .hasArg()
+        .type(Number.class)
+        .build();
+    Option poolIdleTimeoutSeconds = Option.builder()
+        .argName("pool-idle-timeout-seconds")
+        .longOpt("pool-idle-timeout-seconds")
+        .hasArg()
+        .type(Number.class)
+        .build();
     Options options = new Options();
     options.addOption(port);
     options.addOption(sqliteDbPath);
+    options.addOption(storageMode);
+    options.addOption(readMode);
+    options.addOption(index);
+    options.addOption(batchCommitSize);
+    options.addOption(readCacheMaxMarkets);
+    options.addOption(executor);
+    options.addOption(executorThreads);
+    options.addOption(executorQueueCapacity);
+    options.addOption(slowQueryThresholdMillis);
+    options.addOption(slowQueryLogSize);
+    options.addOption(accessLogSampleRate);
+    options.addOption(changeLogRetention);
+    options.addOption(poolSize);
+    options.addOption(poolMinIdle);
+    options.addOption(poolIdleTimeoutSeconds);
     CommandLineParser parser = new DefaultParser();
     return parser.parse(options, args);
   }
@@ -1,14 +1,214 @@
 package org.kbiying.farmersmarket.server;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
 
 @AutoValue
 abstract class FarmersMarketServerOptions {
 
+  /** How the service lays out its SQLite connections. */
+  enum StorageMode {
+    /**
+     * SQLite's default rollback journal. Reads and writes share one connection pool and writers
+     * take the database lock on the calling thread.
+     */
+    ROLLBACK_JOURNAL,
+    /**
+     * Write-ahead logging. Reads are served from a pool of query-only connections and run
+     * concurrently with writes, which are serialized onto a single dedicated writer connection.
+     */
+    WAL
+  }
+
+  /** Where ReadFarmersMarket finds the markets matching a template. */
+  enum ReadMode {
+    /** Queries SQLite through the connection pool. */
+    SQLITE,
+    /**
+     * Matches templates against an in-memory columnar copy of {@code Markets}, loaded at startup
+     * and updated after every committed write.
+     */
+    COLUMN_STORE
+  }
+
+  /** What runs the service's handlers, and with them all blocking SQLite work. */
+  enum ExecutorMode {
+    /** gRPC's default cached pool, which starts a new thread whenever all are busy. */
+    CACHED,
+    /**
+     * A fixed pool sized to the storage backend. Calls that start while the queue holds its
+     * capacity of tasks are failed rather than queued.
+     */
+    FIXED,
+    /**
+     * A new virtual thread per task, on Java 21 or later. Concurrency is then bounded only by
+     * the connection pool.
+     */
+    VIRTUAL_THREADS
+  }
+
+  static final int DEFAULT_CONNECTION_POOL_SIZE = 8;
+  static final int DEFAULT_CONNECTION_POOL_MIN_IDLE = 1;
+  static final Duration DEFAULT_CONNECTION_IDLE_TIMEOUT = Duration.ofMinutes(5);
+  static final Duration DEFAULT_CONNECTION_ACQUIRE_TIMEOUT = Duration.ofSeconds(30);
+  static final int DEFAULT_BATCH_COMMIT_SIZE = 1000;
+  static final long DEFAULT_READ_CACHE_MAX_MARKETS = 100_000;
+  static final int DEFAULT_EXECUTOR_QUEUE_CAPACITY = 1024;
+  static final Duration DEFAULT_SLOW_QUERY_THRESHOLD = Duration.ofMillis(100);
+  static final int DEFAULT_SLOW_QUERY_LOG_SIZE = 128;
+  static final double DEFAULT_ACCESS_LOG_SAMPLE_RATE = 0.01;
+  static final long DEFAULT_CHANGE_LOG_RETENTION = 100_000;
+
   abstract int getPort();
   abstract String getSqliteDbPath();
+  abstract StorageMode getStorageMode();
+  abstract ReadMode getReadMode();
+
+  /**
+   * Maximum number of SQLite connections held open for reads. In {@link StorageMode#WAL} the
+   * writer holds one additional connection.
+   */
+  abstract int getConnectionPoolSize();
+
+  /** Number of idle connections kept open when the pool is otherwise quiet. */
+  abstract int getConnectionPoolMinIdle();
+
+  /** How long an idle connection above the minimum is kept before it is closed. */
+  abstract Duration getConnectionIdleTimeout();
+
+  /** How long a request waits for a free connection before failing. */
+  abstract Duration getConnectionAcquireTimeout();
+
+  /** Secondary indexes the service creates on {@code Markets} at startup. */
+  abstract ImmutableList<IndexDefinition> getSecondaryIndexes();
+
+  /** Number of markets BatchCreateFarmersMarkets inserts per transaction. */
+  abstract int getBatchCommitSize();
+
+  /**
+   * Maximum number of markets held across all cached ReadFarmersMarket responses, or zero to
+   * disable the cache.
+   */
+  abstract long getReadCacheMaxMarkets();
+
+  abstract ExecutorMode getExecutorMode();
+
+  /**
+   * Number of threads in {@link ExecutorMode#FIXED} mode, or zero to size the pool to the
+   * connection pool.
+   */
+  abstract int getExecutorThreads();
+
+  /**
+   * Number of tasks waiting for a thread at which {@link ExecutorMode#FIXED} mode fails new calls
+   * with RESOURCE_EXHAUSTED. Calls already in progress keep running.
+   */
+  abstract int getExecutorQueueCapacity();
+
+  /** How long a statement may run before it is recorded in the slow query log. */
+  abstract Duration getSlowQueryThreshold();
+
+  /** Number of slow queries kept for GetSlowQueries, or zero to disable the slow query log. */
+  abstract int getSlowQueryLogSize();
+
+  /**
+   * Fraction of successful calls written to the access log, between zero and one. Failed calls,
+   * and calls whose client asked for their payload to be logged, are always written.
+   */
+  abstract double getAccessLogSampleRate();
+
+  /**
+   * Number of most recent changes kept for WatchFarmersMarkets to resume from. Watchers that fall
+   * further behind must read the markets again.
+   */
+  abstract long getChangeLogRetention();
+
+  abstract Builder toBuilder();
 
   static FarmersMarketServerOptions of(int port, String sqliteDbPath) {
-    return new AutoValue_FarmersMarketServerOptions(port, sqliteDbPath);
+    return builder().setPort(port).setSqliteDbPath(sqliteDbPath).build();
+  }
+
+  static Builder builder() {
+    return new AutoValue_FarmersMarketServerOptions.Builder()
+        .setStorageMode(StorageMode.ROLLBACK_JOURNAL)
+        .setReadMode(ReadMode.SQLITE)
+        .setConnectionPoolSize(DEFAULT_CONNECTION_POOL_SIZE)
+        .setConnectionPoolMinIdle(DEFAULT_CONNECTION_POOL_MIN_IDLE)
+        .setConnectionIdleTimeout(DEFAULT_CONNECTION_IDLE_TIMEOUT)
+        .setConnectionAcquireTimeout(DEFAULT_CONNECTION_ACQUIRE_TIMEOUT)
+        .setSecondaryIndexes(IndexDefinition.DEFAULT_INDEXES)
+        .setBatchCommitSize(DEFAULT_BATCH_COMMIT_SIZE)
+        .setReadCacheMaxMarkets(DEFAULT_READ_CACHE_MAX_MARKETS)
+        .setExecutorMode(ExecutorMode.FIXED)
+        .setExecutorThreads(0)
+        .setExecutorQueueCapacity(DEFAULT_EXECUTOR_QUEUE_CAPACITY)
+        .setSlowQueryThreshold(DEFAULT_SLOW_QUERY_THRESHOLD)
+        .setSlowQueryLogSize(DEFAULT_SLOW_QUERY_LOG_SIZE)
+        .setAccessLogSampleRate(DEFAULT_ACCESS_LOG_SAMPLE_RATE)
+        .setChangeLogRetention(DEFAULT_CHANGE_LOG_RETENTION);
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+
+    abstract Builder setPort(int port);
+    abstract Builder setSqliteDbPath(String sqliteDbPath);
+    abstract Builder setStorageMode(StorageMode storageMode);
+    abstract Builder setReadMode(ReadMode readMode);
+    abstract Builder setConnectionPoolSize(int connectionPoolSize);
+    abstract Builder setConnectionPoolMinIdle(int connectionPoolMinIdle);
+    abstract Builder setConnectionIdleTimeout(Duration connectionIdleTimeout);
+    abstract Builder setConnectionAcquireTimeout(Duration connectionAcquireTimeout);
+    abstract Builder setSecondaryIndexes(ImmutableList<IndexDefinition> secondaryIndexes);
+    abstract Builder setBatchCommitSize(int batchCommitSize);
+    abstract Builder setReadCacheMaxMarkets(long readCacheMaxMarkets);
+    abstract Builder setExecutorMode(ExecutorMode executorMode);
+    abstract Builder setExecutorThreads(int executorThreads);
+    abstract Builder setExecutorQueueCapacity(int executorQueueCapacity);
+    abstract Builder setSlowQueryThreshold(Duration slowQueryThreshold);
+    abstract Builder setSlowQueryLogSize(int slowQueryLogSize);
+    abstract Builder setAccessLogSampleRate(double accessLogSampleRate);
+    abstract Builder setChangeLogRetention(long changeLogRetention);
+
+    abstract FarmersMarketServerOptions autoBuild();
+
+    FarmersMarketServerOptions build() {
+      FarmersMarketServerOptions options = autoBuild();
+      if (options.getConnectionPoolSize() < 1) {
+        throw new IllegalArgumentException("Connection pool size must be positive");
+      }
+      if (options.getConnectionPoolMinIdle() < 0
+          || options.getConnectionPoolMinIdle() > options.getConnectionPoolSize()) {
+        throw new IllegalArgumentException(
+            "Connection pool minimum idle must be between 0 and the pool size");
+      }
+      if (options.getBatchCommitSize() < 1) {
+        throw new IllegalArgumentException("Batch commit size must be positive");
+      }
+      if (options.getReadCacheMaxMarkets() < 0) {
+        throw new IllegalArgumentException("Read cache size must not be negative");
+      }
+      if (options.getExecutorThreads() < 0) {
+        throw new IllegalArgumentException("Executor threads must not be negative");
+      }
+      if (options.getExecutorQueueCapacity() < 1) {
+        throw new IllegalArgumentException("Executor queue capacity must be positive");
+      }
+      if (options.getSlowQueryThreshold().isNegative()) {
+        throw new IllegalArgumentException("Slow query threshold must not be negative");
+      }
+      if (options.getSlowQueryLogSize() < 0) {
+        throw new IllegalArgumentException("Slow query log size must not be negative");
+      }
+      if (!(options.getAccessLogSampleRate() >= 0 && options.getAccessLogSampleRate() <= 1)) {
+        throw new IllegalArgumentException("Access log sample rate must be between 0 and 1");
+      }
+      if (options.getChangeLogRetention() < 1) {
+        throw new IllegalArgumentException("Change log retention must be positive");
+      }
+      return options;
+    }
   }
 }
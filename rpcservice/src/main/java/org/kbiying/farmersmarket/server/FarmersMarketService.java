@@ -1,53 +1,328 @@
 package org.kbiying.farmersmarket.server;
 
-import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.DoubleValue;
 import com.google.protobuf.Int64Value;
 import com.google.protobuf.StringValue;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.kbiying.farmersmarket.metrics.LatencyHistogram;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesRequest;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesResponse;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsResponse;
 import org.kbiying.farmersmarket.proto.CreateFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.CreateFarmersMarketResponse;
 import org.kbiying.farmersmarket.proto.DeleteFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.DeleteFarmersMarketResponse;
 import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.ExportFormat;
 import org.kbiying.farmersmarket.proto.FarmersMarket;
 import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
 import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.FindFarmersMarketsInBoxRequest;
+import org.kbiying.farmersmarket.proto.FindFarmersMarketsInBoxResponse;
+import org.kbiying.farmersmarket.proto.FindNearbyFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.FindNearbyFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.GetServerStatsRequest;
+import org.kbiying.farmersmarket.proto.GetServerStatsResponse;
+import org.kbiying.farmersmarket.proto.GetSlowQueriesRequest;
+import org.kbiying.farmersmarket.proto.GetSlowQueriesResponse;
+import org.kbiying.farmersmarket.proto.LatencySummary;
+import org.kbiying.farmersmarket.proto.MethodStats;
+import org.kbiying.farmersmarket.proto.GeoPoint;
 import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.SearchFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.SearchFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.SlowQuery;
+import org.kbiying.farmersmarket.proto.StoragePhaseStats;
+import org.kbiying.farmersmarket.proto.StreamFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.StreamFarmersMarketsResponse;
 import org.kbiying.farmersmarket.proto.UpdateFarmersMarketRequest;
 import org.kbiying.farmersmarket.proto.UpdateFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsResponse;
 
 class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketServiceImplBase {
 
   private static final Logger logger = Logger.getLogger(FarmersMarketService.class.getName());
 
-  private final String sqliteDbPath;
+  /** Applied once to every connection when a pool opens it. */
+  private static final ImmutableList<String> CONNECTION_PRAGMAS = ImmutableList.of(
+      "PRAGMA busy_timeout = 5000",
+      "PRAGMA cache_size = -8192",
+      "PRAGMA temp_store = MEMORY");
 
-  FarmersMarketService(String sqliteDbPath) throws SQLException {
-    this.sqliteDbPath = sqliteDbPath;
-    doSanityCheck();
+  private static final ImmutableList<String> WAL_WRITER_PRAGMAS = ImmutableList.<String>builder()
+      .addAll(CONNECTION_PRAGMAS)
+      .add("PRAGMA journal_mode = WAL")
+      .add("PRAGMA synchronous = NORMAL")
+      .build();
+
+  private static final ImmutableList<String> WAL_READER_PRAGMAS = ImmutableList.<String>builder()
+      .addAll(CONNECTION_PRAGMAS)
+      .add("PRAGMA query_only = 1")
+      .build();
+
+  private static final String INSERT_MARKET_SQL =
+      "INSERT INTO Markets (Name, Address, City, County, State, Zip, Lat, Long) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+  // Bound like INSERT_MARKET_SQL, followed by the Id.
+  private static final String INSERT_MARKET_WITH_ID_SQL =
+      "INSERT INTO Markets (Name, Address, City, County, State, Zip, Lat, Long, Id) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String REPLACE_MARKET_SQL =
+      "UPDATE Markets SET Name = ?, Address = ?, City = ?, County = ?, State = ?, Zip = ?, "
+          + "Lat = ?, Long = ? WHERE Id = ?";
+  private static final String DELETE_MARKET_SQL = "DELETE FROM Markets WHERE Id = ?";
+
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAXIMUM_PAGE_SIZE = 1000;
+  private static final int DEFAULT_STREAM_CHUNK_SIZE = 100;
+  private static final int MAXIMUM_STREAM_CHUNK_SIZE = 1000;
+  private static final int DEFAULT_GEO_RESULTS = 100;
+  private static final int MAXIMUM_GEO_RESULTS = 1000;
+  private static final int DEFAULT_SEARCH_RESULTS = 10;
+  private static final int MAXIMUM_SEARCH_RESULTS = 100;
+
+  private final SqliteConnectionPool readConnectionPool;
+  private final SqliteConnectionPool writeConnectionPool;
+  // Null in ROLLBACK_JOURNAL mode, where writes run on the calling thread.
+  private final SqliteWriter writer;
+  // Held across a mutation and its afterCommit calls in ROLLBACK_JOURNAL mode.
+  private final Object rollbackJournalCommitLock = new Object();
+  private final MarketsSchemaManager schemaManager;
+  private final int batchCommitSize;
+  // Null if SQLite was built without the R*Tree module.
+  private final MarketsSpatialIndex spatialIndex;
+  // Null if SQLite was built without the FTS5 module.
+  private final MarketsTextIndex textIndex;
+  // Null in SQLITE read mode.
+  private final MarketsColumnStore columnStore;
+  // Null when the read cache is disabled.
+  private final ReadResultCache readCache;
+  private final MarketsChangeLog changeLog;
+  // Runs the reads of WatchFarmersMarkets calls woken by commits, on fewer threads than there are
+  // connections for them to compete for.
+  private final ThreadPoolExecutor watchExecutor;
+  private final ImmutableList<MarketsChangeListener> changeListeners;
+  private final ServerMetrics metrics;
+  private final SlowQueryLog slowQueryLog;
+
+  FarmersMarketService(FarmersMarketServerOptions options, ServerMetrics metrics)
+      throws SQLException {
+    this.metrics = metrics;
+    switch (options.getStorageMode()) {
+      case WAL:
+        // The writer connection is opened first so that the database is already in WAL mode
+        // by the time the query-only readers attach to it.
+        this.writeConnectionPool = new SqliteConnectionPool(
+            options.getSqliteDbPath(),
+            new Properties(),
+            WAL_WRITER_PRAGMAS,
+            1,
+            1,
+            options.getConnectionIdleTimeout(),
+            options.getConnectionAcquireTimeout());
+        try {
+          this.readConnectionPool = new SqliteConnectionPool(
+              options.getSqliteDbPath(),
+              new Properties(),
+              WAL_READER_PRAGMAS,
+              options.getConnectionPoolSize(),
+              options.getConnectionPoolMinIdle(),
+              options.getConnectionIdleTimeout(),
+              options.getConnectionAcquireTimeout());
+        } catch (SQLException e) {
+          writeConnectionPool.close();
+          throw e;
+        }
+        this.writer = new SqliteWriter();
+        break;
+      case ROLLBACK_JOURNAL:
+      default:
+        this.readConnectionPool = new SqliteConnectionPool(
+            options.getSqliteDbPath(),
+            new Properties(),
+            CONNECTION_PRAGMAS,
+            options.getConnectionPoolSize(),
+            options.getConnectionPoolMinIdle(),
+            options.getConnectionIdleTimeout(),
+            options.getConnectionAcquireTimeout());
+        this.writeConnectionPool = readConnectionPool;
+        this.writer = null;
+        break;
+    }
+    this.schemaManager = new MarketsSchemaManager(options.getSecondaryIndexes());
+    this.batchCommitSize = options.getBatchCommitSize();
+    this.slowQueryLog =
+        new SlowQueryLog(options.getSlowQueryThreshold(), options.getSlowQueryLogSize());
+    this.columnStore = options.getReadMode() == FarmersMarketServerOptions.ReadMode.COLUMN_STORE
+        ? new MarketsColumnStore()
+        : null;
+    this.readCache = options.getReadCacheMaxMarkets() == 0
+        ? null
+        : new ReadResultCache(options.getReadCacheMaxMarkets());
+    try {
+      doSanityCheck();
+      ensureSchema();
+      this.spatialIndex = ensureSpatialIndex();
+      this.textIndex = ensureTextIndex();
+      this.changeLog = new MarketsChangeLog(options.getChangeLogRetention());
+      runWriteTransaction(connection -> {
+        changeLog.ensureTable(connection);
+        return null;
+      });
+      if (columnStore != null) {
+        runReadTransaction(connection -> {
+          columnStore.load(connection);
+          return null;
+        });
+      }
+    } catch (SQLException e) {
+      close();
+      throw e;
+    }
+    ImmutableList.Builder<MarketsChangeListener> changeListeners = ImmutableList.builder();
+    if (spatialIndex != null) {
+      changeListeners.add(spatialIndex);
+    }
+    if (textIndex != null) {
+      changeListeners.add(textIndex);
+    }
+    if (columnStore != null) {
+      changeListeners.add(columnStore);
+    }
+    // The cache comes last so that a read it misses after invalidation sees the other listeners'
+    // updates.
+    if (readCache != null) {
+      changeListeners.add(readCache);
+    }
+    // Watchers woken after the cache was invalidated read the markets as committed.
+    changeListeners.add(changeLog);
+    this.changeListeners = changeListeners.build();
+    int watchThreads = getWatchThreadCount(options);
+    this.watchExecutor = new ThreadPoolExecutor(watchThreads, watchThreads,
+        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("markets-watch-%d").setDaemon(true).build());
+    watchExecutor.allowCoreThreadTimeOut(true);
+    registerGauges();
+  }
+
+  /**
+   * Returns the number of threads that wake watches, one per read connection. In ROLLBACK_JOURNAL
+   * mode the writers share those connections, so one is left for them.
+   */
+  private static int getWatchThreadCount(FarmersMarketServerOptions options) {
+    if (options.getStorageMode() == FarmersMarketServerOptions.StorageMode.WAL) {
+      return options.getConnectionPoolSize();
+    }
+    return Math.max(1, options.getConnectionPoolSize() - 1);
+  }
+
+  private void registerGauges() {
+    registerConnectionPoolGauges("read_pool_", readConnectionPool);
+    if (writeConnectionPool != readConnectionPool) {
+      registerConnectionPoolGauges("write_pool_", writeConnectionPool);
+    }
+    metrics.registerGauge("write_queue_depth", "Mutations waiting for the writer thread.",
+        this::getWriteQueueDepth);
+    metrics.registerCounter("read_cache_hits_total", "Read cache hits.",
+        () -> getReadCacheStats().hitCount());
+    metrics.registerCounter("read_cache_misses_total", "Read cache misses.",
+        () -> getReadCacheStats().missCount());
+    metrics.registerCounter("read_cache_evictions_total", "Read cache evictions.",
+        () -> getReadCacheStats().evictionCount());
+    metrics.registerGauge("open_watches", "WatchFarmersMarkets calls following the change log.",
+        changeLog::getWatcherCount);
+  }
+
+  private void registerConnectionPoolGauges(String prefix, SqliteConnectionPool connectionPool) {
+    metrics.registerGauge(prefix + "active_connections", "Connections checked out.",
+        () -> connectionPool.getStats().getActiveConnections());
+    metrics.registerGauge(prefix + "idle_connections", "Connections open and idle.",
+        () -> connectionPool.getStats().getIdleConnections());
+    metrics.registerGauge(prefix + "pending_acquires", "Callers waiting for a connection.",
+        () -> connectionPool.getStats().getPendingAcquires());
+    metrics.registerCounter(prefix + "acquires_total", "Connections handed out.",
+        () -> connectionPool.getStats().getAcquireCount());
+  }
+
+  ConnectionPoolStats getReadConnectionPoolStats() {
+    return readConnectionPool.getStats();
+  }
+
+  ConnectionPoolStats getWriteConnectionPoolStats() {
+    return writeConnectionPool.getStats();
+  }
+
+  /** Number of mutations waiting for the writer thread, always zero without a writer. */
+  int getWriteQueueDepth() {
+    return writer == null ? 0 : writer.getQueueDepth();
+  }
+
+  /** Hit, miss and eviction counts of the read cache, all zero when it is disabled. */
+  CacheStats getReadCacheStats() {
+    return readCache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : readCache.getStats();
+  }
+
+  /** Ends every open WatchFarmersMarkets call, which would otherwise keep the server running. */
+  void closeWatches() {
+    changeLog.closeWatchers();
+  }
+
+  void close() {
+    if (watchExecutor != null) {
+      watchExecutor.shutdownNow();
+    }
+    if (writer != null) {
+      writer.close();
+    }
+    if (readCache != null) {
+      logger.log(Level.INFO, "Read cache: {0}", readCache.getStats());
+    }
+    logger.log(Level.INFO, "Closing read connection pool: {0}", readConnectionPool.getStats());
+    readConnectionPool.close();
+    if (writeConnectionPool != readConnectionPool) {
+      logger.log(Level.INFO, "Closing write connection pool: {0}", writeConnectionPool.getStats());
+      writeConnectionPool.close();
+    }
   }
 
   @Override
   public void echoFarmersMarket(
       EchoFarmersMarketRequest request,
       StreamObserver<EchoFarmersMarketResponse> responseObserver) {
-    logger.log(Level.INFO, "EchoFarmersMarket({0})", request);
+    logger.log(Level.FINE, "EchoFarmersMarket({0})", request);
     EchoFarmersMarketResponse response = EchoFarmersMarketResponse.newBuilder()
         .setFarmersMarket(request.getFarmersMarket())
         .build();
@@ -59,86 +334,30 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
   public void createFarmersMarket(
       CreateFarmersMarketRequest request,
       StreamObserver<CreateFarmersMarketResponse> responseObserver) {
-    logger.log(Level.INFO, "CreateFarmersMarket({0})", request);
-    if (request.getFarmersMarket().hasId()) {
-      responseObserver.onError(Status.INVALID_ARGUMENT
-          .withDescription("Id must not be specified")
-          .asRuntimeException());
-      return;
-    }
-    if (!request.getFarmersMarket().hasName()) {
-      responseObserver.onError(Status.INVALID_ARGUMENT
-          .withDescription("Name must be specified")
-          .asRuntimeException());
+    logger.log(Level.FINE, "CreateFarmersMarket({0})", request);
+    Status invalidTemplateStatus = checkCreateTemplate(request.getFarmersMarket());
+    if (invalidTemplateStatus != null) {
+      responseObserver.onError(invalidTemplateStatus.asRuntimeException());
       return;
     }
     FarmersMarket farmersMarket;
     try {
-      farmersMarket = runTransaction(connection -> {
-        try (PreparedStatement createFarmersMarket = connection.prepareStatement(
-            "INSERT INTO Markets (Name, Address, City, County, State, Zip, Lat, Long) "
-                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
-
-          createFarmersMarket.setString(1, request.getFarmersMarket().getName().getValue());
-
-          if (request.getFarmersMarket().hasAddress()) {
-            createFarmersMarket.setString(2, request.getFarmersMarket().getAddress().getValue());
-          } else {
-            createFarmersMarket.setNull(2, Types.VARCHAR);
-          }
-
-          if (request.getFarmersMarket().hasCity()) {
-            createFarmersMarket.setString(3, request.getFarmersMarket().getCity().getValue());
-          } else {
-            createFarmersMarket.setNull(3, Types.VARCHAR);
-          }
-
-          if (request.getFarmersMarket().hasCounty()) {
-            createFarmersMarket.setString(4, request.getFarmersMarket().getCounty().getValue());
-          } else {
-            createFarmersMarket.setNull(4, Types.VARCHAR);
-          }
-
-          if (request.getFarmersMarket().hasState()) {
-            createFarmersMarket.setString(5, request.getFarmersMarket().getState().getValue());
-          } else {
-            createFarmersMarket.setNull(5, Types.VARCHAR);
-          }
-
-          if (request.getFarmersMarket().hasZip()) {
-            createFarmersMarket.setString(6, request.getFarmersMarket().getZip().getValue());
-          } else {
-            createFarmersMarket.setNull(6, Types.VARCHAR);
-          }
-
-          if (request.getFarmersMarket().hasLat()) {
-            createFarmersMarket.setDouble(7, request.getFarmersMarket().getLat().getValue());
-          } else {
-            createFarmersMarket.setNull(7, Types.DOUBLE);
-          }
-
-          if (request.getFarmersMarket().hasLong()) {
-            createFarmersMarket.setDouble(8, request.getFarmersMarket().getLong().getValue());
-          } else {
-            createFarmersMarket.setNull(8, Types.DOUBLE);
-          }
-
-          createFarmersMarket.executeUpdate();
-        }
-
-        long id;
-        try (Statement getLastInsertRowId = connection.createStatement()) {
-          ResultSet resultSet = getLastInsertRowId
-              .executeQuery("SELECT LAST_INSERT_ROWID() FROM Markets");
-          resultSet.next();
-          id = resultSet.getLong(1);
-        }
+      farmersMarket = runMutation((connection, changes) -> {
+        PreparedStatement createFarmersMarket =
+            connection.prepareCachedStatement(INSERT_MARKET_SQL);
+        bindInsertParameters(createFarmersMarket, request.getFarmersMarket());
+        long startNanos = System.nanoTime();
+        int insertedCount = createFarmersMarket.executeUpdate();
+        slowQueryLog.recordIfSlow(connection, INSERT_MARKET_SQL,
+            TemplateQueries.getFieldMask(request.getFarmersMarket()), insertedCount, startNanos);
+        long id = getLastInsertRowId(connection);
 
         List<FarmersMarket> farmersMarketList = readFarmersMarket(
             connection,
             FarmersMarketTemplate.newBuilder()
                 .setId(Int64Value.newBuilder().setValue(id))
                 .build());
+        changes.createdBuilder().add(farmersMarketList.get(0));
         return farmersMarketList.get(0);
       });
     } catch (Exception e) {
@@ -161,25 +380,33 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
   public void deleteFarmersMarket(
       DeleteFarmersMarketRequest request,
       StreamObserver<DeleteFarmersMarketResponse> responseObserver) {
-    logger.log(Level.INFO, "DeleteFarmersMarket({0})", request);
+    logger.log(Level.FINE, "DeleteFarmersMarket({0})", request);
     DeleteFarmersMarketResponse response;
     try {
-      response = runTransaction(connection -> {
+      response = runMutation((connection, changes) -> {
         DeleteFarmersMarketResponse.Builder responseBuilder = DeleteFarmersMarketResponse
             .newBuilder();
 
-        List<FarmersMarket> farmersMarketsToDelete = readFarmersMarket(
-            connection, request.getFarmersMarket());
-        responseBuilder.addAllFarmersMarket(farmersMarketsToDelete);
-
-        try (Statement deleteSelectedMarkets = connection.createStatement()) {
-          ArrayList<Long> idList = new ArrayList<>();
-          for (FarmersMarket farmersMarket : responseBuilder.getFarmersMarketList()) {
-            idList.add(farmersMarket.getId());
-          }
-          deleteSelectedMarkets.executeUpdate(
-              "DELETE FROM Markets WHERE Id IN (" + Joiner.on(',').join(idList) + ")");
+        FarmersMarketTemplate template = request.getFarmersMarket();
+        // Even a count-only delete reads the markets it removes, so that the change log can
+        // tell watchers which of them matched their templates.
+        List<FarmersMarket> farmersMarketsToDelete = readFarmersMarket(connection, template);
+        for (FarmersMarket farmersMarket : farmersMarketsToDelete) {
+          changes.deletedIdsBuilder().add(farmersMarket.getId());
+          changes.previousValuesBuilder().put(farmersMarket.getId(), farmersMarket);
         }
+        if (!request.getCountOnly()) {
+          responseBuilder.addAllFarmersMarket(farmersMarketsToDelete);
+        }
+
+        int fieldMask = TemplateQueries.getFieldMask(template);
+        String deleteSql = TemplateQueries.getDeleteSql(fieldMask);
+        PreparedStatement deleteSelectedMarkets = connection.prepareCachedStatement(deleteSql);
+        TemplateQueries.bindTemplate(deleteSelectedMarkets, 1, template);
+        long startNanos = System.nanoTime();
+        int deletedCount = deleteSelectedMarkets.executeUpdate();
+        slowQueryLog.recordIfSlow(connection, deleteSql, fieldMask, deletedCount, startNanos);
+        responseBuilder.setDeletedCount(deletedCount);
 
         return responseBuilder.build();
       });
@@ -200,17 +427,43 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
   public void readFarmersMarket(
       ReadFarmersMarketRequest request,
       StreamObserver<ReadFarmersMarketResponse> responseObserver) {
-    logger.log(Level.INFO, "ReadFarmersMarket({0})", request);
+    logger.log(Level.FINE, "ReadFarmersMarket({0})", request);
+    if (request.getPageSize() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Page size must not be negative")
+          .asRuntimeException());
+      return;
+    }
+    boolean paginated = request.getPageSize() > 0 || !request.getPageToken().isEmpty();
+    long afterId = Long.MIN_VALUE;
+    if (!request.getPageToken().isEmpty()) {
+      try {
+        afterId = PageTokens.decodeLastId(request.getPageToken(), request.getFarmersMarket());
+      } catch (IllegalArgumentException e) {
+        responseObserver.onError(Status.INVALID_ARGUMENT
+            .withDescription(e.getMessage())
+            .asRuntimeException());
+        return;
+      }
+    }
+    int pageSize = request.getPageSize() == 0
+        ? DEFAULT_PAGE_SIZE
+        : Math.min(request.getPageSize(), MAXIMUM_PAGE_SIZE);
+    long pageAfterId = afterId;
+    FarmersMarketTemplate template = request.getFarmersMarket();
+    ReadResultCache.Loader read;
+    if (columnStore != null) {
+      read = () -> getReadResponse(template, paginated, pageSize,
+          columnStore.read(template, pageAfterId, paginated ? pageSize + 1 : Integer.MAX_VALUE));
+    } else {
+      read = () -> runReadTransaction(connection -> getReadResponse(template, paginated, pageSize,
+          paginated
+              ? readFarmersMarketsAfterId(connection, template, pageAfterId, pageSize + 1)
+              : readFarmersMarket(connection, template)));
+    }
     ReadFarmersMarketResponse response;
     try {
-      response = runTransaction(connection -> {
-        ReadFarmersMarketResponse.Builder responseBuilder = ReadFarmersMarketResponse
-            .newBuilder();
-        List<FarmersMarket> farmersMarketList = readFarmersMarket(
-            connection, request.getFarmersMarket());
-        responseBuilder.addAllFarmersMarket(farmersMarketList);
-        return responseBuilder.build();
-      });
+      response = readCache == null ? read.load() : readCache.get(request, read);
     } catch (Exception e) {
       responseObserver.onError(Status.INTERNAL
           .withDescription(e.getMessage())
@@ -222,127 +475,441 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
     responseObserver.onCompleted();
   }
 
+  /**
+   * Returns the markets as a ReadFarmersMarket response. A paginated read passes one market more
+   * than the page size if there is a next page.
+   */
+  private static ReadFarmersMarketResponse getReadResponse(FarmersMarketTemplate template,
+      boolean paginated, int pageSize, List<FarmersMarket> farmersMarketList) {
+    ReadFarmersMarketResponse.Builder responseBuilder = ReadFarmersMarketResponse.newBuilder();
+    if (paginated && farmersMarketList.size() > pageSize) {
+      farmersMarketList = farmersMarketList.subList(0, pageSize);
+      responseBuilder.setNextPageToken(PageTokens.encode(
+          farmersMarketList.get(pageSize - 1).getId(), template));
+    }
+    return responseBuilder.addAllFarmersMarket(farmersMarketList).build();
+  }
+
   @Override
   public void updateFarmersMarket(
       UpdateFarmersMarketRequest request,
       StreamObserver<UpdateFarmersMarketResponse> responseObserver) {
-    logger.log(Level.INFO, "UpdateMarkersMarket({0})", request);
+    logger.log(Level.FINE, "UpdateFarmersMarket({0})", request);
     if (request.getFarmersMarket().hasId()) {
       responseObserver.onError(Status.INVALID_ARGUMENT
           .withDescription("Id must not be specified")
           .asRuntimeException());
       return;
     }
-    // To check
     UpdateFarmersMarketResponse response;
     try {
-      response = runTransaction(connection -> {
+      response = runMutation((connection, changes) -> {
 
         UpdateFarmersMarketResponse.Builder responseBuilder = UpdateFarmersMarketResponse
             .newBuilder();
 
-        List<FarmersMarket> farmersMarketsToUpdate = readFarmersMarket(
-            connection, request.getConditions());
+        FarmersMarketTemplate updates = request.getFarmersMarket();
+        FarmersMarketTemplate conditions = request.getConditions();
+        int updateMask = TemplateQueries.getFieldMask(updates);
+        int conditionMask = TemplateQueries.getFieldMask(conditions);
 
-        ArrayList<Long> idList = new ArrayList<>();
-        for (FarmersMarket market : farmersMarketsToUpdate) {
-          long marketId = market.getId();
+        if (updateMask == 0) {
+          responseBuilder.addAllFarmersMarket(readFarmersMarket(connection, conditions));
+          return responseBuilder.build();
+        }
 
-          try (PreparedStatement updateFarmersMarket = connection.prepareStatement(
-              "UPDATE Markets "
-                  + "SET Name = ?, Address = ?, City = ?, County = ?, State = ?, "
-                  + "Zip = ?, Lat = ?, Long = ? "
-                  + "WHERE Id = ?")) {
+        // The markets are read up front so that the change log can tell watchers which markets
+        // the update moves out of their templates. When the update rewrites a column the
+        // conditions filter on, the conditions no longer identify the updated rows afterwards,
+        // so those are read back by Id.
+        List<FarmersMarket> previousMarkets = readFarmersMarket(connection, conditions);
+        if (previousMarkets.isEmpty()) {
+          return responseBuilder.build();
+        }
+        List<Long> idsToUpdate = new ArrayList<>(previousMarkets.size());
+        for (FarmersMarket previousMarket : previousMarkets) {
+          idsToUpdate.add(previousMarket.getId());
+          changes.previousValuesBuilder().put(previousMarket.getId(), previousMarket);
+        }
+        Collections.sort(idsToUpdate);
 
-            if (request.getFarmersMarket().hasName()) {
-              updateFarmersMarket
-                  .setString(1, request.getFarmersMarket().getName().getValue());
-            } else {
-              updateFarmersMarket.setString(1, market.getName());
-            }
+        String updateSql = TemplateQueries.getUpdateSql(updateMask, conditionMask);
+        PreparedStatement updateFarmersMarkets = connection.prepareCachedStatement(updateSql);
+        int index = TemplateQueries.bindTemplate(updateFarmersMarkets, 1, updates);
+        TemplateQueries.bindTemplate(updateFarmersMarkets, index, conditions);
+        long startNanos = System.nanoTime();
+        int updatedCount = updateFarmersMarkets.executeUpdate();
+        // The conditions decide which rows the update touches, so they are the shape that counts.
+        slowQueryLog.recordIfSlow(
+            connection, updateSql, conditionMask, updatedCount, startNanos);
 
-            if (request.getFarmersMarket().hasAddress()) {
-              updateFarmersMarket
-                  .setString(2, request.getFarmersMarket().getAddress().getValue());
-            } else if (market.hasAddress()) {
-              updateFarmersMarket.setString(2, market.getAddress().getValue());
-            } else {
-              updateFarmersMarket.setNull(2, Types.VARCHAR);
-            }
+        responseBuilder.addAllFarmersMarket(readFarmersMarketsById(connection, idsToUpdate));
+        changes.updatedBuilder().addAll(responseBuilder.getFarmersMarketList());
+        return responseBuilder.build();
+      });
+    } catch (Exception e) {
+      responseObserver.onError(Status.INTERNAL
+          .withDescription(e.getMessage())
+          .withCause(e)
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
 
-            if (request.getFarmersMarket().hasCity()) {
-              updateFarmersMarket
-                  .setString(3, request.getFarmersMarket().getCity().getValue());
-            } else if (market.hasCity()) {
-              updateFarmersMarket.setString(3, market.getCity().getValue());
-            } else {
-              updateFarmersMarket.setNull(3, Types.VARCHAR);
-            }
+  @Override
+  public void streamFarmersMarkets(
+      StreamFarmersMarketsRequest request,
+      StreamObserver<StreamFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "StreamFarmersMarkets({0})", request);
+    if (request.getChunkSize() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Chunk size must not be negative")
+          .asRuntimeException());
+      return;
+    }
+    int chunkSize = request.getChunkSize() == 0
+        ? DEFAULT_STREAM_CHUNK_SIZE
+        : Math.min(request.getChunkSize(), MAXIMUM_STREAM_CHUNK_SIZE);
+    MarketsCursor cursor = new MarketsCursor(request.getFarmersMarket(), chunkSize);
+    FlowControlledResponder.start(responseObserver, () -> {
+      List<FarmersMarket> chunk = cursor.nextChunk();
+      if (chunk.isEmpty()) {
+        return null;
+      }
+      return StreamFarmersMarketsResponse.newBuilder()
+          .addAllFarmersMarket(chunk)
+          .build();
+    });
+  }
 
-            if (request.getFarmersMarket().hasCounty()) {
-              updateFarmersMarket
-                  .setString(4, request.getFarmersMarket().getCounty().getValue());
-            } else if (market.hasCounty()) {
-              updateFarmersMarket.setString(4, market.getCounty().getValue());
-            } else {
-              updateFarmersMarket.setNull(4, Types.VARCHAR);
-            }
+  @Override
+  public void exportFarmersMarkets(
+      ExportFarmersMarketsRequest request,
+      StreamObserver<ExportFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "ExportFarmersMarkets({0})", request);
+    if (request.getChunkSize() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Chunk size must not be negative")
+          .asRuntimeException());
+      return;
+    }
+    if (request.getFormat() == ExportFormat.UNRECOGNIZED) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Unknown export format")
+          .asRuntimeException());
+      return;
+    }
+    int chunkSize = request.getChunkSize() == 0
+        ? MAXIMUM_STREAM_CHUNK_SIZE
+        : Math.min(request.getChunkSize(), MAXIMUM_STREAM_CHUNK_SIZE);
+    ExportCursor cursor = new ExportCursor(request.getFarmersMarket(),
+        new MarketsExportEncoder(request.getFormat()), chunkSize);
+    FlowControlledResponder.start(responseObserver, cursor::nextChunk);
+  }
 
-            if (request.getFarmersMarket().hasState()) {
-              updateFarmersMarket
-                  .setString(5, request.getFarmersMarket().getState().getValue());
-            } else if (market.hasState()) {
-              updateFarmersMarket.setString(5, market.getState().getValue());
-            } else {
-              updateFarmersMarket.setNull(5, Types.VARCHAR);
-            }
+  @Override
+  public void watchFarmersMarkets(
+      WatchFarmersMarketsRequest request,
+      StreamObserver<WatchFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "WatchFarmersMarkets({0})", request);
+    if (request.getAfterSequence() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Sequence number must not be negative")
+          .asRuntimeException());
+      return;
+    }
+    if (request.getStartFromNow() && request.getAfterSequence() != 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("A watch starting from now must not set a sequence number")
+          .asRuntimeException());
+      return;
+    }
+    long afterSequence;
+    try {
+      afterSequence = runReadTransaction(connection -> request.getStartFromNow()
+          ? changeLog.getLatestSequence(connection)
+          : changeLog.getResumeSequence(connection, request.getAfterSequence()));
+    } catch (SQLException e) {
+      responseObserver.onError(Status.INTERNAL
+          .withDescription(e.getMessage())
+          .withCause(e)
+          .asRuntimeException());
+      return;
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return;
+    }
+    MarketsWatch.start(responseObserver, request.getFarmersMarket(), afterSequence,
+        lastSequence -> runReadTransaction(connection ->
+            changeLog.readChanges(connection, lastSequence, DEFAULT_STREAM_CHUNK_SIZE)),
+        watchExecutor, changeLog);
+  }
 
-            if (request.getFarmersMarket().hasZip()) {
-              updateFarmersMarket
-                  .setString(6, request.getFarmersMarket().getZip().getValue());
-            } else if (market.hasZip()) {
-              updateFarmersMarket.setString(6, market.getZip().getValue());
-            } else {
-              updateFarmersMarket.setNull(6, Types.VARCHAR);
-            }
+  @Override
+  public StreamObserver<BatchCreateFarmersMarketsRequest> batchCreateFarmersMarkets(
+      StreamObserver<BatchCreateFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "BatchCreateFarmersMarkets()");
+    return new StreamObserver<BatchCreateFarmersMarketsRequest>() {
+
+      private final List<FarmersMarketTemplate> pendingTemplates = new ArrayList<>();
+      private final BatchCreateFarmersMarketsResponse.Builder responseBuilder =
+          BatchCreateFarmersMarketsResponse.newBuilder();
+      private long receivedCount;
+      private boolean failed;
 
-            if (request.getFarmersMarket().hasLat()) {
-              updateFarmersMarket
-                  .setDouble(7, request.getFarmersMarket().getLat().getValue());
-            } else if (market.hasLat()) {
-              updateFarmersMarket.setDouble(7, market.getLat().getValue());
-            } else {
-              updateFarmersMarket.setNull(7, Types.DOUBLE);
+      @Override
+      public void onNext(BatchCreateFarmersMarketsRequest request) {
+        if (failed) {
+          return;
+        }
+        for (FarmersMarketTemplate template : request.getFarmersMarketList()) {
+          Status invalidTemplateStatus = checkCreateTemplate(template);
+          if (invalidTemplateStatus != null) {
+            fail(invalidTemplateStatus.augmentDescription(
+                "in farmers' market #" + receivedCount));
+            return;
+          }
+          receivedCount++;
+          pendingTemplates.add(template);
+          if (pendingTemplates.size() >= batchCommitSize) {
+            flush();
+            if (failed) {
+              return;
             }
-            if (request.getFarmersMarket().hasLong()) {
-              updateFarmersMarket
-                  .setDouble(8, request.getFarmersMarket().getLong().getValue());
-            } else if (market.hasLong()) {
-              updateFarmersMarket.setDouble(8, market.getLong().getValue());
-            } else {
-              updateFarmersMarket.setNull(8, Types.DOUBLE);
+          }
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        logger.log(Level.WARNING, "BatchCreateFarmersMarkets cancelled by client", t);
+        failed = true;
+      }
+
+      @Override
+      public void onCompleted() {
+        if (failed) {
+          return;
+        }
+        flush();
+        if (failed) {
+          return;
+        }
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+      }
+
+      private void flush() {
+        if (pendingTemplates.isEmpty()) {
+          return;
+        }
+        try {
+          responseBuilder.addAllId(runMutation((connection, changes) -> {
+            List<Long> ids = insertFarmersMarkets(connection, pendingTemplates);
+            for (int i = 0; i < ids.size(); i++) {
+              changes.createdBuilder().add(
+                  getFarmersMarketFromTemplate(ids.get(i), pendingTemplates.get(i)));
             }
+            return ids;
+          }));
+        } catch (Exception e) {
+          fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+          return;
+        }
+        pendingTemplates.clear();
+      }
+
+      private void fail(Status status) {
+        failed = true;
+        pendingTemplates.clear();
+        responseObserver.onError(status.asRuntimeException());
+      }
+    };
+  }
+
+  @Override
+  public StreamObserver<ApplyFarmersMarketChangesRequest> applyFarmersMarketChanges(
+      StreamObserver<ApplyFarmersMarketChangesResponse> responseObserver) {
+    logger.log(Level.FINE, "ApplyFarmersMarketChanges()");
+    return new StreamObserver<ApplyFarmersMarketChangesRequest>() {
 
-            updateFarmersMarket.setLong(9, marketId);
+      // Keyed by Id, so that the last change sent for a market before a flush is the one applied.
+      private final Map<Long, FarmersMarket> pendingUpserts = new LinkedHashMap<>();
+      private final Set<Long> pendingDeletes = new LinkedHashSet<>();
+      private final ApplyFarmersMarketChangesResponse.Builder responseBuilder =
+          ApplyFarmersMarketChangesResponse.newBuilder();
+      private boolean failed;
 
-            updateFarmersMarket.executeUpdate();
+      @Override
+      public void onNext(ApplyFarmersMarketChangesRequest request) {
+        if (failed) {
+          return;
+        }
+        for (FarmersMarket farmersMarket : request.getUpsertedList()) {
+          if (farmersMarket.getId() <= 0 || farmersMarket.getName().isEmpty()) {
+            fail(Status.INVALID_ARGUMENT.withDescription(
+                "Upserted markets need a positive Id and a name: " + farmersMarket));
+            return;
           }
+          pendingDeletes.remove(farmersMarket.getId());
+          pendingUpserts.put(farmersMarket.getId(), farmersMarket);
+        }
+        for (long id : request.getDeletedIdList()) {
+          pendingUpserts.remove(id);
+          pendingDeletes.add(id);
+        }
+        if (pendingUpserts.size() + pendingDeletes.size() >= batchCommitSize) {
+          flush();
+        }
+      }
 
-          List<FarmersMarket> markets = readFarmersMarket(connection,
-              FarmersMarketTemplate.newBuilder().setId(
-                  Int64Value.newBuilder().setValue(marketId)).build());
-          responseBuilder.addAllFarmersMarket(markets);
+      @Override
+      public void onError(Throwable t) {
+        logger.log(Level.WARNING, "ApplyFarmersMarketChanges cancelled by client", t);
+        failed = true;
+      }
 
+      @Override
+      public void onCompleted() {
+        if (failed) {
+          return;
         }
+        flush();
+        if (failed) {
+          return;
+        }
+        responseObserver.onNext(responseBuilder.build());
+        responseObserver.onCompleted();
+      }
 
-        return responseBuilder.build();
-      });
-    } catch (
-        Exception e)
+      private void flush() {
+        if (pendingUpserts.isEmpty() && pendingDeletes.isEmpty()) {
+          return;
+        }
+        MarketsChangeSet applied;
+        try {
+          applied = runMutation((connection, changes) -> {
+            applyFarmersMarketChanges(connection, pendingUpserts.values(),
+                new ArrayList<>(pendingDeletes), changes);
+            return changes.build();
+          });
+        } catch (Exception e) {
+          fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+          return;
+        }
+        responseBuilder
+            .setInsertedCount(responseBuilder.getInsertedCount() + applied.getCreated().size())
+            .setUpdatedCount(responseBuilder.getUpdatedCount() + applied.getUpdated().size())
+            .setDeletedCount(responseBuilder.getDeletedCount() + applied.getDeletedIds().size());
+        pendingUpserts.clear();
+        pendingDeletes.clear();
+      }
+
+      private void fail(Status status) {
+        failed = true;
+        pendingUpserts.clear();
+        pendingDeletes.clear();
+        responseObserver.onError(status.asRuntimeException());
+      }
+    };
+  }
+
+  @Override
+  public void findNearbyFarmersMarkets(
+      FindNearbyFarmersMarketsRequest request,
+      StreamObserver<FindNearbyFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "FindNearbyFarmersMarkets({0})", request);
+    Status invalidRequestStatus = null;
+    if (!request.hasPoint()) {
+      invalidRequestStatus = Status.INVALID_ARGUMENT.withDescription("Point must be specified");
+    } else if (!isValidPoint(request.getPoint())) {
+      invalidRequestStatus = Status.INVALID_ARGUMENT.withDescription(
+          "Point must have a latitude in [-90, 90] and a longitude in [-180, 180]");
+    } else if (!(request.getRadiusMeters() > 0)) {
+      invalidRequestStatus =
+          Status.INVALID_ARGUMENT.withDescription("Radius must be positive");
+    } else if (request.getMaxResults() < 0) {
+      invalidRequestStatus =
+          Status.INVALID_ARGUMENT.withDescription("Max results must not be negative");
+    } else if (spatialIndex == null) {
+      invalidRequestStatus =
+          Status.FAILED_PRECONDITION.withDescription("Spatial index is not available");
+    }
+    if (invalidRequestStatus != null) {
+      responseObserver.onError(invalidRequestStatus.asRuntimeException());
+      return;
+    }
+    int maxResults = getGeoMaxResults(request.getMaxResults());
+    FindNearbyFarmersMarketsResponse response;
+    try {
+      response = runReadTransaction(connection ->
+          FindNearbyFarmersMarketsResponse.newBuilder()
+              .addAllNearbyFarmersMarket(spatialIndex.findNearby(
+                  connection,
+                  request.getPoint().getLat(),
+                  request.getPoint().getLong(),
+                  request.getRadiusMeters(),
+                  maxResults))
+              .build());
+    } catch (Exception e) {
+      responseObserver.onError(Status.INTERNAL
+          .withDescription(e.getMessage())
+          .withCause(e)
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
 
-    {
+  @Override
+  public void findFarmersMarketsInBox(
+      FindFarmersMarketsInBoxRequest request,
+      StreamObserver<FindFarmersMarketsInBoxResponse> responseObserver) {
+    logger.log(Level.FINE, "FindFarmersMarketsInBox({0})", request);
+    Status invalidRequestStatus = null;
+    if (!isValidPoint(GeoPoint.newBuilder()
+        .setLat(request.getMinLat())
+        .setLong(request.getMinLong())
+        .build())
+        || !isValidPoint(GeoPoint.newBuilder()
+        .setLat(request.getMaxLat())
+        .setLong(request.getMaxLong())
+        .build())) {
+      invalidRequestStatus = Status.INVALID_ARGUMENT.withDescription(
+          "Box must have latitudes in [-90, 90] and longitudes in [-180, 180]");
+    } else if (request.getMinLat() > request.getMaxLat()) {
+      invalidRequestStatus = Status.INVALID_ARGUMENT.withDescription(
+          "Minimum latitude must not be greater than maximum latitude");
+    } else if (request.getMaxResults() < 0) {
+      invalidRequestStatus =
+          Status.INVALID_ARGUMENT.withDescription("Max results must not be negative");
+    } else if (spatialIndex == null) {
+      invalidRequestStatus =
+          Status.FAILED_PRECONDITION.withDescription("Spatial index is not available");
+    }
+    if (invalidRequestStatus != null) {
+      responseObserver.onError(invalidRequestStatus.asRuntimeException());
+      return;
+    }
+    int maxResults = getGeoMaxResults(request.getMaxResults());
+    FindFarmersMarketsInBoxResponse response;
+    try {
+      response = runReadTransaction(connection ->
+          FindFarmersMarketsInBoxResponse.newBuilder()
+              .addAllFarmersMarket(spatialIndex.findInBox(
+                  connection,
+                  request.getMinLat(),
+                  request.getMaxLat(),
+                  request.getMinLong(),
+                  request.getMaxLong(),
+                  maxResults))
+              .build());
+    } catch (Exception e) {
       responseObserver.onError(Status.INTERNAL
-          .withDescription(Arrays.asList(e.getStackTrace()).toString())
+          .withDescription(e.getMessage())
           .withCause(e)
           .asRuntimeException());
       return;
@@ -351,89 +918,411 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
     responseObserver.onCompleted();
   }
 
+  @Override
+  public void searchFarmersMarkets(
+      SearchFarmersMarketsRequest request,
+      StreamObserver<SearchFarmersMarketsResponse> responseObserver) {
+    logger.log(Level.FINE, "SearchFarmersMarkets({0})", request);
+    Status invalidRequestStatus = null;
+    if (request.getMaxResults() < 0) {
+      invalidRequestStatus =
+          Status.INVALID_ARGUMENT.withDescription("Max results must not be negative");
+    } else if (textIndex == null) {
+      invalidRequestStatus =
+          Status.FAILED_PRECONDITION.withDescription("Text index is not available");
+    }
+    if (invalidRequestStatus != null) {
+      responseObserver.onError(invalidRequestStatus.asRuntimeException());
+      return;
+    }
+    int maxResults = request.getMaxResults() == 0
+        ? DEFAULT_SEARCH_RESULTS
+        : Math.min(request.getMaxResults(), MAXIMUM_SEARCH_RESULTS);
+    SearchFarmersMarketsResponse response;
+    try {
+      response = runReadTransaction(connection ->
+          SearchFarmersMarketsResponse.newBuilder()
+              .addAllFarmersMarket(textIndex.search(connection, request.getQuery(), maxResults))
+              .build());
+    } catch (Exception e) {
+      responseObserver.onError(Status.INTERNAL
+          .withDescription(e.getMessage())
+          .withCause(e)
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void getServerStats(
+      GetServerStatsRequest request,
+      StreamObserver<GetServerStatsResponse> responseObserver) {
+    GetServerStatsResponse.Builder responseBuilder = GetServerStatsResponse.newBuilder();
+    for (Map.Entry<String, ServerMetrics.MethodMetrics> method
+        : metrics.getAllMethodMetrics().entrySet()) {
+      responseBuilder.addMethodStats(MethodStats.newBuilder()
+          .setMethod(method.getKey())
+          .setInFlight(method.getValue().getInFlight())
+          .setCallCount(method.getValue().getCallCount())
+          .setErrorCount(method.getValue().getErrorCount())
+          .setLatency(getLatencySummary(method.getValue().getLatency())));
+    }
+    for (StoragePhase phase : StoragePhase.values()) {
+      responseBuilder.addStoragePhaseStats(StoragePhaseStats.newBuilder()
+          .setPhase(phase.name().toLowerCase(Locale.ROOT))
+          .setLatency(getLatencySummary(metrics.getStoragePhase(phase))));
+    }
+    responseObserver.onNext(responseBuilder
+        .putAllGauge(metrics.getGaugeValues())
+        .setPrometheusText(metrics.toPrometheusText())
+        .build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void getSlowQueries(
+      GetSlowQueriesRequest request,
+      StreamObserver<GetSlowQueriesResponse> responseObserver) {
+    logger.log(Level.FINE, "GetSlowQueries({0})", request);
+    GetSlowQueriesResponse.Builder responseBuilder = GetSlowQueriesResponse.newBuilder();
+    for (SlowQueryRecord slowQuery : slowQueryLog.getSlowQueries(request.getClear())) {
+      SlowQuery.Builder slowQueryBuilder = SlowQuery.newBuilder()
+          .setStartTimeMillis(slowQuery.getStartTime().toEpochMilli())
+          .setSql(slowQuery.getSql())
+          .setFieldMask(slowQuery.getFieldMask())
+          .setRowCount(slowQuery.getRowCount())
+          .setElapsedMillis(slowQuery.getElapsed().toNanos() / 1e6)
+          .addAllQueryPlan(slowQuery.getQueryPlan());
+      for (int i = 0; i < TemplateQueries.COLUMNS.length; i++) {
+        if ((slowQuery.getFieldMask() & (1 << i)) != 0) {
+          slowQueryBuilder.addBoundField(TemplateQueries.COLUMNS[i]);
+        }
+      }
+      responseBuilder.addSlowQuery(slowQueryBuilder);
+    }
+    responseObserver.onNext(responseBuilder.build());
+    responseObserver.onCompleted();
+  }
+
+  private static LatencySummary getLatencySummary(LatencyHistogram.Snapshot snapshot) {
+    return LatencySummary.newBuilder()
+        .setCount(snapshot.getCount())
+        .setMeanMillis(snapshot.getMeanNanos() / 1e6)
+        .setP50Millis(snapshot.getValueAtQuantile(0.5) / 1e6)
+        .setP90Millis(snapshot.getValueAtQuantile(0.9) / 1e6)
+        .setP99Millis(snapshot.getValueAtQuantile(0.99) / 1e6)
+        .setP999Millis(snapshot.getValueAtQuantile(0.999) / 1e6)
+        .setMaxMillis(snapshot.getMaxNanos() / 1e6)
+        .build();
+  }
+
+  private static boolean isValidPoint(GeoPoint point) {
+    return point.getLat() >= -90 && point.getLat() <= 90
+        && point.getLong() >= -180 && point.getLong() <= 180;
+  }
+
+  private static int getGeoMaxResults(int requestedMaxResults) {
+    return requestedMaxResults == 0
+        ? DEFAULT_GEO_RESULTS
+        : Math.min(requestedMaxResults, MAXIMUM_GEO_RESULTS);
+  }
+
+  /**
+   * Stores the upserted markets under their Ids, updating the ones that exist and inserting the
+   * rest, then deletes the markets with the deleted Ids, recording everything it changed.
+   */
+  private void applyFarmersMarketChanges(PooledConnection connection,
+      Collection<FarmersMarket> upserts, List<Long> deletedIds, MarketsChangeSet.Builder changes)
+      throws SQLException {
+    if (!upserts.isEmpty()) {
+      List<Long> ids = new ArrayList<>(upserts.size());
+      for (FarmersMarket farmersMarket : upserts) {
+        ids.add(farmersMarket.getId());
+      }
+      Collections.sort(ids);
+      Map<Long, FarmersMarket> existingMarkets = new HashMap<>();
+      for (FarmersMarket existing : readFarmersMarketsById(connection, ids)) {
+        existingMarkets.put(existing.getId(), existing);
+      }
+      PreparedStatement insert = connection.prepareCachedStatement(INSERT_MARKET_WITH_ID_SQL);
+      PreparedStatement replace = connection.prepareCachedStatement(REPLACE_MARKET_SQL);
+      int insertCount = 0;
+      int replaceCount = 0;
+      for (FarmersMarket farmersMarket : upserts) {
+        PreparedStatement statement;
+        FarmersMarket existing = existingMarkets.get(farmersMarket.getId());
+        if (existing != null) {
+          statement = replace;
+          replaceCount++;
+          changes.updatedBuilder().add(farmersMarket);
+          changes.previousValuesBuilder().put(existing.getId(), existing);
+        } else {
+          statement = insert;
+          insertCount++;
+          changes.createdBuilder().add(farmersMarket);
+        }
+        bindInsertParameters(statement, getFarmersMarketTemplate(farmersMarket));
+        statement.setLong(9, farmersMarket.getId());
+        statement.addBatch();
+      }
+      if (insertCount > 0) {
+        long startNanos = System.nanoTime();
+        insert.executeBatch();
+        slowQueryLog.recordIfSlow(connection, INSERT_MARKET_WITH_ID_SQL,
+            TemplateQueries.FIELD_MASK_COUNT - 1, insertCount, startNanos);
+      }
+      if (replaceCount > 0) {
+        long startNanos = System.nanoTime();
+        replace.executeBatch();
+        slowQueryLog.recordIfSlow(connection, REPLACE_MARKET_SQL,
+            TemplateQueries.FIELD_MASK_COUNT - 1, replaceCount, startNanos);
+      }
+    }
+    if (!deletedIds.isEmpty()) {
+      List<Long> ids = new ArrayList<>(deletedIds);
+      Collections.sort(ids);
+      // Only the markets that exist are deleted, and the change log records their values.
+      List<FarmersMarket> farmersMarketsToDelete = readFarmersMarketsById(connection, ids);
+      if (farmersMarketsToDelete.isEmpty()) {
+        return;
+      }
+      PreparedStatement delete = connection.prepareCachedStatement(DELETE_MARKET_SQL);
+      for (FarmersMarket farmersMarket : farmersMarketsToDelete) {
+        delete.setLong(1, farmersMarket.getId());
+        delete.addBatch();
+        changes.deletedIdsBuilder().add(farmersMarket.getId());
+        changes.previousValuesBuilder().put(farmersMarket.getId(), farmersMarket);
+      }
+      long startNanos = System.nanoTime();
+      delete.executeBatch();
+      slowQueryLog.recordIfSlow(connection, DELETE_MARKET_SQL, TemplateQueries.ID,
+          farmersMarketsToDelete.size(), startNanos);
+    }
+  }
+
+  /**
+   * Reads the markets with the given Ids, which must be in ascending order, with one cached
+   * statement per {@link TemplateQueries#ID_CHUNK_SIZE} Ids.
+   */
+  private List<FarmersMarket> readFarmersMarketsById(PooledConnection connection,
+      List<Long> ids) throws SQLException {
+    String readMarketsSql = TemplateQueries.getSelectByIdsSql();
+    PreparedStatement readMarketsStatement = connection.prepareCachedStatement(readMarketsSql);
+    List<FarmersMarket> farmersMarketList = new ArrayList<>(ids.size());
+    long startNanos = System.nanoTime();
+    for (int chunkStart = 0; chunkStart < ids.size();
+        chunkStart += TemplateQueries.ID_CHUNK_SIZE) {
+      TemplateQueries.bindIdChunk(readMarketsStatement, ids, chunkStart);
+      try (ResultSet resultSet = readMarketsStatement.executeQuery()) {
+        while (resultSet.next()) {
+          farmersMarketList.add(getFarmersMarketFromRow(resultSet));
+        }
+      }
+    }
+    slowQueryLog.recordIfSlow(connection, readMarketsSql, TemplateQueries.ID,
+        farmersMarketList.size(), startNanos);
+    return farmersMarketList;
+  }
 
-  private List<FarmersMarket> readFarmersMarket(Connection connection,
+  private List<FarmersMarket> readFarmersMarket(PooledConnection connection,
       FarmersMarketTemplate farmersMarketTemplate) throws SQLException {
-    try (PreparedStatement readMarketStatement = connection.prepareStatement(
-        "SELECT Id, Name, Address, City, County, State, Zip, Lat, Long " +
-            "FROM Markets WHERE (Id = ? OR ?) AND (Name = ? OR ?) AND (Address = ? OR ?) " +
-            "AND (City = ? OR ?) AND (County = ? OR ?) AND (State = ? OR ?) " +
-            "AND (Zip = ? OR ?) AND (Lat = ? OR ?) AND (Long = ? OR ?)")) {
-      if (farmersMarketTemplate.hasId()) {
-        readMarketStatement.setLong(1, farmersMarketTemplate.getId().getValue());
-        readMarketStatement.setBoolean(2, false);
-      } else {
-        readMarketStatement.setNull(1, Types.INTEGER);
-        readMarketStatement.setBoolean(2, true);
-      }
-      if (farmersMarketTemplate.hasName()) {
-        readMarketStatement.setString(3, farmersMarketTemplate.getName().getValue());
-        readMarketStatement.setBoolean(4, false);
-      } else {
-        readMarketStatement.setNull(3, Types.INTEGER);
-        readMarketStatement.setBoolean(4, true);
-      }
-      if (farmersMarketTemplate.hasAddress()) {
-        readMarketStatement.setString(5, farmersMarketTemplate.getAddress().getValue());
-        readMarketStatement.setBoolean(6, false);
-      } else {
-        readMarketStatement.setNull(5, Types.VARCHAR);
-        readMarketStatement.setBoolean(6, true);
-      }
-      if (farmersMarketTemplate.hasCity()) {
-        readMarketStatement.setString(7, farmersMarketTemplate.getCity().getValue());
-        readMarketStatement.setBoolean(8, false);
-      } else {
-        readMarketStatement.setNull(7, Types.VARCHAR);
-        readMarketStatement.setBoolean(8, true);
-      }
-      if (farmersMarketTemplate.hasCounty()) {
-        readMarketStatement.setString(9, farmersMarketTemplate.getCounty().getValue());
-        readMarketStatement.setBoolean(10, false);
-      } else {
-        readMarketStatement.setNull(9, Types.VARCHAR);
-        readMarketStatement.setBoolean(10, true);
-      }
-      if (farmersMarketTemplate.hasState()) {
-        readMarketStatement.setString(11, farmersMarketTemplate.getState().getValue());
-        readMarketStatement.setBoolean(12, false);
-      } else {
-        readMarketStatement.setNull(11, Types.VARCHAR);
-        readMarketStatement.setBoolean(12, true);
-      }
-      if (farmersMarketTemplate.hasZip()) {
-        readMarketStatement.setString(13, farmersMarketTemplate.getZip().getValue());
-        readMarketStatement.setBoolean(14, false);
-      } else {
-        readMarketStatement.setNull(13, Types.VARCHAR);
-        readMarketStatement.setBoolean(14, true);
-      }
-      if (farmersMarketTemplate.hasLat()) {
-        readMarketStatement.setDouble(15, farmersMarketTemplate.getLat().getValue());
-        readMarketStatement.setBoolean(16, false);
-      } else {
-        readMarketStatement.setNull(15, Types.DOUBLE);
-        readMarketStatement.setBoolean(16, true);
-      }
-      if (farmersMarketTemplate.hasLong()) {
-        readMarketStatement.setDouble(17, farmersMarketTemplate.getLong().getValue());
-        readMarketStatement.setBoolean(18, false);
-      } else {
-        readMarketStatement.setNull(17, Types.DOUBLE);
-        readMarketStatement.setBoolean(18, true);
-      }
-      ResultSet resultSet = readMarketStatement.executeQuery();
-      List<FarmersMarket> farmersMarketList = new ArrayList<>();
+    int fieldMask = TemplateQueries.getFieldMask(farmersMarketTemplate);
+    String readMarketSql = TemplateQueries.getSelectSql(fieldMask);
+    PreparedStatement readMarketStatement = connection.prepareCachedStatement(readMarketSql);
+    TemplateQueries.bindTemplate(readMarketStatement, 1, farmersMarketTemplate);
+    List<FarmersMarket> farmersMarketList = new ArrayList<>();
+    long startNanos = System.nanoTime();
+    try (ResultSet resultSet = readMarketStatement.executeQuery()) {
       while (resultSet.next()) {
         farmersMarketList.add(getFarmersMarketFromRow(resultSet));
       }
-      return farmersMarketList;
     }
+    slowQueryLog.recordIfSlow(
+        connection, readMarketSql, fieldMask, farmersMarketList.size(), startNanos);
+    return farmersMarketList;
   }
 
 
+  /**
+   * Reads up to {@code limit} markets matching the template with an Id greater than {@code
+   * afterId}, in Id order.
+   */
+  private List<FarmersMarket> readFarmersMarketsAfterId(PooledConnection connection,
+      FarmersMarketTemplate farmersMarketTemplate, long afterId, int limit) throws SQLException {
+    int fieldMask = TemplateQueries.getFieldMask(farmersMarketTemplate);
+    String readMarketSql = TemplateQueries.getSelectAfterIdSql(fieldMask);
+    PreparedStatement readMarketStatement = connection.prepareCachedStatement(readMarketSql);
+    int index = TemplateQueries.bindTemplate(readMarketStatement, 1, farmersMarketTemplate);
+    readMarketStatement.setLong(index++, afterId);
+    readMarketStatement.setInt(index, limit);
+    List<FarmersMarket> farmersMarketList = new ArrayList<>(limit);
+    long startNanos = System.nanoTime();
+    try (ResultSet resultSet = readMarketStatement.executeQuery()) {
+      while (resultSet.next()) {
+        farmersMarketList.add(getFarmersMarketFromRow(resultSet));
+      }
+    }
+    slowQueryLog.recordIfSlow(
+        connection, readMarketSql, fieldMask, farmersMarketList.size(), startNanos);
+    return farmersMarketList;
+  }
+
+  /**
+   * Inserts the markets with one JDBC batch and returns their Ids in the order of the templates.
+   *
+   * <p>The Ids are derived from the last inserted rowid rather than read back row by row. This is
+   * sound because the whole batch runs in one transaction that holds SQLite's write lock, and
+   * every insert without an explicit Id takes the next rowid after the largest one assigned so
+   * far, so the batch receives consecutive Ids.
+   */
+  private List<Long> insertFarmersMarkets(PooledConnection connection,
+      List<FarmersMarketTemplate> templates) throws SQLException {
+    PreparedStatement insertStatement = connection.prepareCachedStatement(INSERT_MARKET_SQL);
+    for (FarmersMarketTemplate template : templates) {
+      bindInsertParameters(insertStatement, template);
+      insertStatement.addBatch();
+    }
+    long startNanos = System.nanoTime();
+    insertStatement.executeBatch();
+    slowQueryLog.recordIfSlow(connection, INSERT_MARKET_SQL,
+        TemplateQueries.FIELD_MASK_COUNT - 1 - TemplateQueries.ID, templates.size(), startNanos);
+    long lastId = getLastInsertRowId(connection);
+    long firstId = lastId - templates.size() + 1;
+    List<Long> ids = new ArrayList<>(templates.size());
+    for (long id = firstId; id <= lastId; id++) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  /** Returns the market that inserting the template with the given Id creates. */
+  private static FarmersMarket getFarmersMarketFromTemplate(long id,
+      FarmersMarketTemplate template) {
+    FarmersMarket.Builder farmersMarketBuilder = FarmersMarket.newBuilder()
+        .setId(id)
+        .setName(template.getName().getValue());
+    if (template.hasAddress()) {
+      farmersMarketBuilder.setAddress(template.getAddress());
+    }
+    if (template.hasCity()) {
+      farmersMarketBuilder.setCity(template.getCity());
+    }
+    if (template.hasCounty()) {
+      farmersMarketBuilder.setCounty(template.getCounty());
+    }
+    if (template.hasState()) {
+      farmersMarketBuilder.setState(template.getState());
+    }
+    if (template.hasZip()) {
+      farmersMarketBuilder.setZip(template.getZip());
+    }
+    if (template.hasLat()) {
+      farmersMarketBuilder.setLat(template.getLat());
+    }
+    if (template.hasLong()) {
+      farmersMarketBuilder.setLong(template.getLong());
+    }
+    return farmersMarketBuilder.build();
+  }
+
+  /** Returns a template with every field of the market except its Id. */
+  private static FarmersMarketTemplate getFarmersMarketTemplate(FarmersMarket farmersMarket) {
+    FarmersMarketTemplate.Builder templateBuilder = FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue(farmersMarket.getName()));
+    if (farmersMarket.hasAddress()) {
+      templateBuilder.setAddress(farmersMarket.getAddress());
+    }
+    if (farmersMarket.hasCity()) {
+      templateBuilder.setCity(farmersMarket.getCity());
+    }
+    if (farmersMarket.hasCounty()) {
+      templateBuilder.setCounty(farmersMarket.getCounty());
+    }
+    if (farmersMarket.hasState()) {
+      templateBuilder.setState(farmersMarket.getState());
+    }
+    if (farmersMarket.hasZip()) {
+      templateBuilder.setZip(farmersMarket.getZip());
+    }
+    if (farmersMarket.hasLat()) {
+      templateBuilder.setLat(farmersMarket.getLat());
+    }
+    if (farmersMarket.hasLong()) {
+      templateBuilder.setLong(farmersMarket.getLong());
+    }
+    return templateBuilder.build();
+  }
+
+  private static void bindInsertParameters(PreparedStatement statement,
+      FarmersMarketTemplate template) throws SQLException {
+    statement.setString(1, template.getName().getValue());
+
+    if (template.hasAddress()) {
+      statement.setString(2, template.getAddress().getValue());
+    } else {
+      statement.setNull(2, Types.VARCHAR);
+    }
+
+    if (template.hasCity()) {
+      statement.setString(3, template.getCity().getValue());
+    } else {
+      statement.setNull(3, Types.VARCHAR);
+    }
+
+    if (template.hasCounty()) {
+      statement.setString(4, template.getCounty().getValue());
+    } else {
+      statement.setNull(4, Types.VARCHAR);
+    }
+
+    if (template.hasState()) {
+      statement.setString(5, template.getState().getValue());
+    } else {
+      statement.setNull(5, Types.VARCHAR);
+    }
+
+    if (template.hasZip()) {
+      statement.setString(6, template.getZip().getValue());
+    } else {
+      statement.setNull(6, Types.VARCHAR);
+    }
+
+    if (template.hasLat()) {
+      statement.setDouble(7, template.getLat().getValue());
+    } else {
+      statement.setNull(7, Types.DOUBLE);
+    }
+
+    if (template.hasLong()) {
+      statement.setDouble(8, template.getLong().getValue());
+    } else {
+      statement.setNull(8, Types.DOUBLE);
+    }
+  }
+
+  private static long getLastInsertRowId(PooledConnection connection) throws SQLException {
+    try (Statement getLastInsertRowId = connection.createStatement();
+        ResultSet resultSet = getLastInsertRowId.executeQuery("SELECT LAST_INSERT_ROWID()")) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+
+  /** Returns why a template cannot be created, or null if it can. */
+  private static Status checkCreateTemplate(FarmersMarketTemplate template) {
+    if (template.hasId()) {
+      return Status.INVALID_ARGUMENT.withDescription("Id must not be specified");
+    }
+    if (!template.hasName()) {
+      return Status.INVALID_ARGUMENT.withDescription("Name must be specified");
+    }
+    return null;
+  }
+
   private void doSanityCheck() throws SQLException {
-    runTransaction(connection -> {
+    runReadTransaction(connection -> {
       try (Statement statement = connection.createStatement()) {
         ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM Markets");
         resultSet.next();
@@ -443,22 +1332,153 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
     });
   }
 
-  private <T> T runTransaction(FunctionalTransaction<T> transaction) throws SQLException {
+  private void ensureSchema() throws SQLException {
+    try {
+      runWriteTransaction(connection -> {
+        schemaManager.createIndexes(connection);
+        schemaManager.analyze(connection);
+        return null;
+      });
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Could not create secondary indexes: " + e.getMessage(), e);
+    }
+    MarketsSchemaManager.SchemaReport report = runReadTransaction(schemaManager::inspect);
+    if (!report.getMissingIndexes().isEmpty()) {
+      logger.log(Level.WARNING, "Missing indexes on Markets: {0}", report.getMissingIndexes());
+    }
+    if (!report.getUnusedIndexes().isEmpty()) {
+      logger.log(Level.WARNING, "Indexes on Markets not chosen by the query planner: {0}",
+          report.getUnusedIndexes());
+    }
+    if (!report.getUnmanagedIndexes().isEmpty()) {
+      logger.log(Level.INFO, "Unmanaged indexes on Markets: {0}", report.getUnmanagedIndexes());
+    }
+  }
+
+  /** Returns the spatial index, or null if this SQLite build cannot provide one. */
+  private MarketsSpatialIndex ensureSpatialIndex() {
+    MarketsSpatialIndex index = new MarketsSpatialIndex();
+    try {
+      runWriteTransaction(connection -> {
+        index.ensureIndex(connection);
+        return null;
+      });
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Could not create spatial index: " + e.getMessage(), e);
+      return null;
+    }
+    return index;
+  }
+
+  /** Returns the text index, or null if this SQLite build cannot provide one. */
+  private MarketsTextIndex ensureTextIndex() {
+    MarketsTextIndex index = new MarketsTextIndex();
+    try {
+      runWriteTransaction(connection -> {
+        index.ensureIndex(connection);
+        return null;
+      });
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Could not create text index: " + e.getMessage(), e);
+      return null;
+    }
+    return index;
+  }
+
+  private <T> T runReadTransaction(FunctionalTransaction<T> transaction) throws SQLException {
+    return runTransaction(readConnectionPool, transaction);
+  }
+
+  private <T> T runWriteTransaction(FunctionalTransaction<T> transaction) throws SQLException {
+    if (writer == null) {
+      return runTransaction(writeConnectionPool, transaction);
+    }
+    return writer.submit(() -> runTransaction(writeConnectionPool, transaction));
+  }
+
+  /**
+   * Runs a write transaction that records the markets it changes, and lets the change listeners
+   * update their structures in the same transaction and observe the commit.
+   *
+   * <p>The listeners observe each commit before the next write transaction starts, so structures
+   * updated after the commit, such as the column store, apply changes in commit order.
+   */
+  private <T> T runMutation(FunctionalMutation<T> mutation) throws SQLException {
+    MarketsChangeSet.Builder changesBuilder = MarketsChangeSet.builder();
+    FunctionalTransaction<T> transaction = connection -> {
+      T mutationResult = mutation.apply(connection, changesBuilder);
+      MarketsChangeSet uncommittedChanges = changesBuilder.build();
+      if (!uncommittedChanges.isEmpty()) {
+        for (MarketsChangeListener changeListener : changeListeners) {
+          changeListener.beforeCommit(connection, uncommittedChanges);
+        }
+      }
+      return mutationResult;
+    };
+    if (writer != null) {
+      return writer.submit(() -> {
+        T result = runTransaction(writeConnectionPool, transaction);
+        notifyAfterCommit(changesBuilder.build());
+        return result;
+      });
+    }
+    // Without the writer thread, SQLite's lock orders the commits but not what the committing
+    // threads do once they release it.
+    synchronized (rollbackJournalCommitLock) {
+      T result = runTransaction(writeConnectionPool, transaction);
+      notifyAfterCommit(changesBuilder.build());
+      return result;
+    }
+  }
+
+  private void notifyAfterCommit(MarketsChangeSet changes) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    for (MarketsChangeListener changeListener : changeListeners) {
+      try {
+        changeListener.afterCommit(changes);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Change listener failed after commit", e);
+      }
+    }
+  }
+
+  private <T> T runTransaction(SqliteConnectionPool connectionPool,
+      FunctionalTransaction<T> transaction) throws SQLException {
     T result;
-    try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqliteDbPath)) {
+    long acquireStartNanos = System.nanoTime();
+    try (PooledConnection connection = connectionPool.acquire()) {
+      long executeStartNanos = System.nanoTime();
+      metrics.recordStoragePhase(
+          StoragePhase.CONNECTION_ACQUIRE, executeStartNanos - acquireStartNanos);
+      ServerMetrics.takeRowMappingNanos();
       connection.setAutoCommit(false);
       try {
         result = transaction.apply(connection);
         connection.commit();
-      } catch (SQLException e) {
-        connection.rollback();
+      } catch (SQLException | RuntimeException e) {
+        try {
+          connection.rollback();
+        } catch (SQLException rollbackException) {
+          connection.markBroken();
+          e.addSuppressed(rollbackException);
+        }
         throw e;
+      } finally {
+        long rowMappingNanos = ServerMetrics.takeRowMappingNanos();
+        if (rowMappingNanos > 0) {
+          metrics.recordStoragePhase(StoragePhase.ROW_MAPPING, rowMappingNanos);
+        }
+        metrics.recordStoragePhase(StoragePhase.SQL_EXECUTE,
+            System.nanoTime() - executeStartNanos - rowMappingNanos);
       }
     }
     return result;
   }
 
-  private static FarmersMarket getFarmersMarketFromRow(ResultSet resultSet) throws SQLException {
+  static FarmersMarket getFarmersMarketFromRow(ResultSet resultSet) throws SQLException {
+    long startNanos = System.nanoTime();
     FarmersMarket.Builder farmersMarketBuilder = FarmersMarket.newBuilder();
     farmersMarketBuilder.setId(resultSet.getLong(1));
     farmersMarketBuilder.setName(resultSet.getString(2));
@@ -490,12 +1510,104 @@ class FarmersMarketService extends FarmersMarketServiceGrpc.FarmersMarketService
     if (!resultSet.wasNull()) {
       farmersMarketBuilder.setLong(DoubleValue.newBuilder().setValue(longitude));
     }
-    return farmersMarketBuilder.build();
+    FarmersMarket farmersMarket = farmersMarketBuilder.build();
+    ServerMetrics.addRowMappingNanos(System.nanoTime() - startNanos);
+    return farmersMarket;
+  }
+
+  /**
+   * Walks the markets matching a template in Id order, one chunk per short read transaction, so
+   * that no connection is held while a client is slow to consume the chunks.
+   */
+  private final class MarketsCursor {
+
+    private final FarmersMarketTemplate template;
+    private final int chunkSize;
+    private long lastId = Long.MIN_VALUE;
+    private boolean exhausted;
+
+    MarketsCursor(FarmersMarketTemplate template, int chunkSize) {
+      this.template = template;
+      this.chunkSize = chunkSize;
+    }
+
+    /** Returns the next chunk of markets, or an empty list once all have been returned. */
+    List<FarmersMarket> nextChunk() throws SQLException {
+      if (exhausted) {
+        return new ArrayList<>();
+      }
+      List<FarmersMarket> chunk = runReadTransaction(connection ->
+          readFarmersMarketsAfterId(connection, template, lastId, chunkSize));
+      if (chunk.size() < chunkSize) {
+        exhausted = true;
+      }
+      if (!chunk.isEmpty()) {
+        lastId = chunk.get(chunk.size() - 1).getId();
+      }
+      return chunk;
+    }
+  }
+
+  /**
+   * Walks the markets matching a template in Id order like {@link MarketsCursor}, encoding each
+   * chunk of rows for export as it is read.
+   */
+  private final class ExportCursor {
+
+    private final FarmersMarketTemplate template;
+    private final MarketsExportEncoder encoder;
+    private final int chunkSize;
+    private long lastId = Long.MIN_VALUE;
+    private boolean exhausted;
+
+    ExportCursor(FarmersMarketTemplate template, MarketsExportEncoder encoder, int chunkSize) {
+      this.template = template;
+      this.encoder = encoder;
+      this.chunkSize = chunkSize;
+    }
+
+    /** Returns the next chunk of the export, or null once all of it has been returned. */
+    ExportFarmersMarketsResponse nextChunk() throws SQLException {
+      int count = 0;
+      if (!exhausted) {
+        count = runReadTransaction(connection -> {
+          PreparedStatement readMarketStatement = connection.prepareCachedStatement(
+              TemplateQueries.getSelectAfterIdSql(TemplateQueries.getFieldMask(template)));
+          int index = TemplateQueries.bindTemplate(readMarketStatement, 1, template);
+          readMarketStatement.setLong(index++, lastId);
+          readMarketStatement.setInt(index, chunkSize);
+          int rowCount = 0;
+          try (ResultSet resultSet = readMarketStatement.executeQuery()) {
+            while (resultSet.next()) {
+              lastId = encoder.writeRow(resultSet);
+              rowCount++;
+            }
+          }
+          return rowCount;
+        });
+        exhausted = count < chunkSize;
+      }
+      ByteString data = encoder.takeChunk();
+      if (data.isEmpty()) {
+        return null;
+      }
+      return ExportFarmersMarketsResponse.newBuilder()
+          .setData(data)
+          .setFarmersMarketCount(count)
+          .build();
+    }
   }
 
   @FunctionalInterface
   private interface FunctionalTransaction<T> {
 
-    T apply(Connection connection) throws SQLException;
+    T apply(PooledConnection connection) throws SQLException;
+  }
+
+  @FunctionalInterface
+  private interface FunctionalMutation<T> {
+
+    /** Applies the mutation, recording every market it creates, updates or deletes. */
+    T apply(PooledConnection connection, MarketsChangeSet.Builder changes) throws SQLException;
   }
 }
@@ -0,0 +1,80 @@
+package org.kbiying.farmersmarket.server;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the responses of a server-streaming call only while the transport is ready for them, so
+ * that a slow client causes the server to stop producing rather than to buffer.
+ *
+ * <p>Responses are pulled from the source one at a time from gRPC's ready callbacks, which are
+ * serialized per call, so the source does not need to be thread-safe.
+ */
+final class FlowControlledResponder<T> implements Runnable {
+
+  private static final Logger logger = Logger.getLogger(FlowControlledResponder.class.getName());
+
+  @FunctionalInterface
+  interface ResponseSource<T> {
+
+    /** Returns the next response, or null once the stream is complete. */
+    T next() throws Exception;
+  }
+
+  private final ServerCallStreamObserver<T> responseObserver;
+  private final ResponseSource<T> source;
+  private boolean done;
+
+  private FlowControlledResponder(ServerCallStreamObserver<T> responseObserver,
+      ResponseSource<T> source) {
+    this.responseObserver = responseObserver;
+    this.source = source;
+  }
+
+  /** Starts streaming responses from the source, which must be called from the call's handler. */
+  static <T> void start(StreamObserver<T> responseObserver, ResponseSource<T> source) {
+    ServerCallStreamObserver<T> serverCallStreamObserver =
+        (ServerCallStreamObserver<T>) responseObserver;
+    FlowControlledResponder<T> responder =
+        new FlowControlledResponder<>(serverCallStreamObserver, source);
+    serverCallStreamObserver.setOnCancelHandler(responder::cancel);
+    serverCallStreamObserver.setOnReadyHandler(responder);
+    // The transport may have become ready before the handler was registered.
+    responder.run();
+  }
+
+  @Override
+  public void run() {
+    while (!done && responseObserver.isReady()) {
+      if (responseObserver.isCancelled()) {
+        done = true;
+        return;
+      }
+      T response;
+      try {
+        response = source.next();
+      } catch (Exception e) {
+        done = true;
+        logger.log(Level.WARNING, e.getMessage(), e);
+        responseObserver.onError(Status.INTERNAL
+            .withDescription(e.getMessage())
+            .withCause(e)
+            .asRuntimeException());
+        return;
+      }
+      if (response == null) {
+        done = true;
+        responseObserver.onCompleted();
+        return;
+      }
+      responseObserver.onNext(response);
+    }
+  }
+
+  private void cancel() {
+    done = true;
+  }
+}
@@ -0,0 +1,53 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+import java.util.List;
+
+/** A secondary index over one or more columns of the {@code Markets} table. */
+@AutoValue
+abstract class IndexDefinition {
+
+  private static final List<String> INDEXABLE_COLUMNS = Arrays.asList(TemplateQueries.COLUMNS);
+
+  /** The indexes created when none are configured explicitly. */
+  static final ImmutableList<IndexDefinition> DEFAULT_INDEXES = ImmutableList.of(
+      of("State", "City"),
+      of("County"),
+      of("City"),
+      of("Zip"),
+      of("Name"));
+
+  abstract ImmutableList<String> getColumns();
+
+  String getName() {
+    return "Markets_" + Joiner.on('_').join(getColumns());
+  }
+
+  String getCreateSql() {
+    return "CREATE INDEX IF NOT EXISTS " + getName()
+        + " ON Markets (" + Joiner.on(", ").join(getColumns()) + ")";
+  }
+
+  static IndexDefinition of(String... columns) {
+    ImmutableList<String> columnList = ImmutableList.copyOf(columns);
+    if (columnList.isEmpty()) {
+      throw new IllegalArgumentException("An index needs at least one column");
+    }
+    for (String column : columnList) {
+      if (!INDEXABLE_COLUMNS.contains(column)) {
+        throw new IllegalArgumentException("Unknown Markets column: " + column);
+      }
+    }
+    return new AutoValue_IndexDefinition(columnList);
+  }
+
+  /** Parses a comma-separated column list such as {@code State,City}. */
+  static IndexDefinition parse(String columns) {
+    return of(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(columns)
+        .toArray(new String[0]));
+  }
+}
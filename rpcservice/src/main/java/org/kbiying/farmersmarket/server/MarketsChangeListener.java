@@ -0,0 +1,25 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.SQLException;
+
+/**
+ * Keeps a structure derived from the {@code Markets} table in step with the service's create,
+ * update and delete paths.
+ */
+interface MarketsChangeListener {
+
+  /**
+   * Called inside the write transaction, after the changes were applied to {@code Markets} and
+   * before they are committed. Throwing rolls the whole transaction back.
+   */
+  default void beforeCommit(PooledConnection connection, MarketsChangeSet changes)
+      throws SQLException {
+  }
+
+  /**
+   * Called once the write transaction has committed, before the next one starts, so that
+   * successive calls see the change sets in commit order.
+   */
+  default void afterCommit(MarketsChangeSet changes) {
+  }
+}
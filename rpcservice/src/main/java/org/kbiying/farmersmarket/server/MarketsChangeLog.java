@@ -0,0 +1,209 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Status;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketChange;
+import org.kbiying.farmersmarket.proto.FarmersMarketChangeType;
+
+/**
+ * A table recording every create, update and delete committed to {@code Markets}, in commit
+ * order, for WatchFarmersMarkets.
+ *
+ * <p>Changes are written in the same transaction as the markets they describe, so the log never
+ * shows a change that was rolled back and never misses one that was committed. Only the most
+ * recent changes are retained.
+ */
+final class MarketsChangeLog implements MarketsChangeListener {
+
+  private static final String INSERT_SQL =
+      "INSERT INTO MarketsChangeLog (Type, Id, Market, PreviousMarket) VALUES (?, ?, ?, ?)";
+  private static final String LATEST_SEQUENCE_SQL =
+      "SELECT seq FROM sqlite_sequence WHERE name = 'MarketsChangeLog'";
+  private static final String OLDEST_SEQUENCE_SQL = "SELECT MIN(Seq) FROM MarketsChangeLog";
+  private static final String PRUNE_SQL = "DELETE FROM MarketsChangeLog WHERE Seq <= ?";
+  private static final String READ_SQL = "SELECT Seq, Type, Id, Market, PreviousMarket "
+      + "FROM MarketsChangeLog WHERE Seq > ? ORDER BY Seq LIMIT ?";
+
+  /** Follows the log as changes are committed to it. */
+  interface Watcher {
+
+    /** Called on the committing thread after changes were appended, so it must not block. */
+    void onCommit();
+
+    /** Called when the server is shutting down, after which no more commits are reported. */
+    void onClose();
+  }
+
+  private final long retention;
+  private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+
+  MarketsChangeLog(long retention) {
+    this.retention = retention;
+  }
+
+  /** Creates the change log table if needed. */
+  void ensureTable(PooledConnection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE TABLE IF NOT EXISTS MarketsChangeLog ("
+          + "Seq INTEGER PRIMARY KEY AUTOINCREMENT, "
+          + "Type INTEGER NOT NULL, "
+          + "Id INTEGER NOT NULL, "
+          + "Market BLOB, "
+          + "PreviousMarket BLOB)");
+    }
+  }
+
+  /**
+   * Forgets every change, after {@code Markets} was written without going through the log. The
+   * sequence number moves on, so that even a watcher that had seen every change is told that the
+   * changes after it are no longer retained.
+   */
+  static void reset(Statement statement) throws SQLException {
+    // AUTOINCREMENT never hands out the placeholder's sequence number again.
+    statement.executeUpdate("INSERT INTO MarketsChangeLog (Type, Id) VALUES ("
+        + FarmersMarketChangeType.CHANGE_TYPE_UNSPECIFIED.getNumber() + ", 0)");
+    statement.executeUpdate("DELETE FROM MarketsChangeLog");
+  }
+
+  @Override
+  public void beforeCommit(PooledConnection connection, MarketsChangeSet changes)
+      throws SQLException {
+    PreparedStatement insert = connection.prepareCachedStatement(INSERT_SQL);
+    for (FarmersMarket farmersMarket : changes.getCreated()) {
+      addInsert(insert, FarmersMarketChangeType.CREATED, farmersMarket.getId(), farmersMarket,
+          null);
+    }
+    for (FarmersMarket farmersMarket : changes.getUpdated()) {
+      addInsert(insert, FarmersMarketChangeType.UPDATED, farmersMarket.getId(), farmersMarket,
+          changes.getPreviousValues().get(farmersMarket.getId()));
+    }
+    for (long id : changes.getDeletedIds()) {
+      addInsert(insert, FarmersMarketChangeType.DELETED, id, null,
+          changes.getPreviousValues().get(id));
+    }
+    insert.executeBatch();
+
+    // The range below the oldest retained change is empty after the first prune, so this is a
+    // single seek on the primary key for most commits.
+    PreparedStatement prune = connection.prepareCachedStatement(PRUNE_SQL);
+    prune.setLong(1, getLatestSequence(connection) - retention);
+    prune.executeUpdate();
+  }
+
+  private static void addInsert(PreparedStatement insert, FarmersMarketChangeType type, long id,
+      FarmersMarket farmersMarket, FarmersMarket previousMarket) throws SQLException {
+    insert.setInt(1, type.getNumber());
+    insert.setLong(2, id);
+    insert.setBytes(3, farmersMarket == null ? null : farmersMarket.toByteArray());
+    insert.setBytes(4, previousMarket == null ? null : previousMarket.toByteArray());
+    insert.addBatch();
+  }
+
+  @Override
+  public void afterCommit(MarketsChangeSet changes) {
+    for (Watcher watcher : watchers) {
+      watcher.onCommit();
+    }
+  }
+
+  void addWatcher(Watcher watcher) {
+    watchers.add(watcher);
+  }
+
+  void removeWatcher(Watcher watcher) {
+    watchers.remove(watcher);
+  }
+
+  int getWatcherCount() {
+    return watchers.size();
+  }
+
+  /** Tells every watcher that the server is shutting down. */
+  void closeWatchers() {
+    for (Watcher watcher : watchers) {
+      watcher.onClose();
+    }
+    watchers.clear();
+  }
+
+  /** Returns the sequence number of the most recent change, or zero if there has been none. */
+  long getLatestSequence(PooledConnection connection) throws SQLException {
+    PreparedStatement select = connection.prepareCachedStatement(LATEST_SEQUENCE_SQL);
+    try (ResultSet resultSet = select.executeQuery()) {
+      return resultSet.next() ? resultSet.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Checks that a watch can resume after the sequence number, which may be zero to start before
+   * the first change, and returns it.
+   *
+   * @throws io.grpc.StatusRuntimeException with OUT_OF_RANGE if changes after the sequence number
+   *     are no longer retained, or if it is ahead of the log
+   */
+  long getResumeSequence(PooledConnection connection, long afterSequence) throws SQLException {
+    long latestSequence = getLatestSequence(connection);
+    if (afterSequence > latestSequence) {
+      throw Status.OUT_OF_RANGE
+          .withDescription("Sequence number " + afterSequence
+              + " is ahead of the change log, which ends at " + latestSequence)
+          .asRuntimeException();
+    }
+    PreparedStatement select = connection.prepareCachedStatement(OLDEST_SEQUENCE_SQL);
+    long oldestSequence;
+    try (ResultSet resultSet = select.executeQuery()) {
+      resultSet.next();
+      oldestSequence = resultSet.getLong(1);
+      if (resultSet.wasNull()) {
+        oldestSequence = latestSequence + 1;
+      }
+    }
+    if (afterSequence < oldestSequence - 1) {
+      throw Status.OUT_OF_RANGE
+          .withDescription("Changes after sequence number " + afterSequence
+              + " are no longer retained; the oldest is " + oldestSequence)
+          .asRuntimeException();
+    }
+    return afterSequence;
+  }
+
+  /** Reads up to {@code limit} changes after the given sequence number, in sequence order. */
+  List<FarmersMarketChange> readChanges(PooledConnection connection, long afterSequence,
+      int limit) throws SQLException {
+    PreparedStatement select = connection.prepareCachedStatement(READ_SQL);
+    select.setLong(1, afterSequence);
+    select.setInt(2, limit);
+    List<FarmersMarketChange> changes = new ArrayList<>();
+    try (ResultSet resultSet = select.executeQuery()) {
+      while (resultSet.next()) {
+        FarmersMarketChange.Builder changeBuilder = FarmersMarketChange.newBuilder()
+            .setSequence(resultSet.getLong(1))
+            .setTypeValue(resultSet.getInt(2))
+            .setId(resultSet.getLong(3));
+        byte[] market = resultSet.getBytes(4);
+        byte[] previousMarket = resultSet.getBytes(5);
+        try {
+          if (market != null) {
+            changeBuilder.setFarmersMarket(FarmersMarket.parseFrom(market));
+          }
+          if (previousMarket != null) {
+            changeBuilder.setPreviousFarmersMarket(FarmersMarket.parseFrom(previousMarket));
+          }
+        } catch (InvalidProtocolBufferException e) {
+          throw new SQLException("Unreadable market in change " + changeBuilder.getSequence(), e);
+        }
+        changes.add(changeBuilder.build());
+      }
+    }
+    return changes;
+  }
+}
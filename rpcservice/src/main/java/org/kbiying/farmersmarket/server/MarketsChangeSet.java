@@ -0,0 +1,39 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+
+/** The markets created, updated and deleted by one write transaction. */
+@AutoValue
+abstract class MarketsChangeSet {
+
+  abstract ImmutableList<FarmersMarket> getCreated();
+
+  /** The updated markets, with their values after the update. */
+  abstract ImmutableList<FarmersMarket> getUpdated();
+
+  /** The values of the updated and deleted markets before the change, by Id. */
+  abstract ImmutableMap<Long, FarmersMarket> getPreviousValues();
+
+  abstract ImmutableList<Long> getDeletedIds();
+
+  boolean isEmpty() {
+    return getCreated().isEmpty() && getUpdated().isEmpty() && getDeletedIds().isEmpty();
+  }
+
+  static Builder builder() {
+    return new AutoValue_MarketsChangeSet.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+
+    abstract ImmutableList.Builder<FarmersMarket> createdBuilder();
+    abstract ImmutableList.Builder<FarmersMarket> updatedBuilder();
+    abstract ImmutableMap.Builder<Long, FarmersMarket> previousValuesBuilder();
+    abstract ImmutableList.Builder<Long> deletedIdsBuilder();
+    abstract MarketsChangeSet build();
+  }
+}
@@ -0,0 +1,440 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.StringValue;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+/**
+ * A columnar copy of the {@code Markets} table that serves template reads without touching
+ * SQLite.
+ *
+ * <p>Each market occupies one slot across the column arrays, and slots are kept in ascending Id
+ * order so that scans return markets in the same order as the SQL reads. Ids and coordinates are
+ * primitive arrays. String columns are dictionary-encoded, and every dictionary value has a
+ * sorted posting list of the slots holding it, so a template is matched by walking the shortest
+ * posting list among its string fields and checking the remaining fields on each slot.
+ *
+ * <p>Writes reach the store after SQLite commits them, in commit order. Deleted markets leave
+ * dead slots behind until enough accumulate to be worth compacting. Reads share a read lock and
+ * so run in parallel across cores.
+ */
+final class MarketsColumnStore implements MarketsChangeListener {
+
+  private static final Logger logger = Logger.getLogger(MarketsColumnStore.class.getName());
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MINIMUM_DEAD_SLOTS_TO_COMPACT = 1024;
+
+  private static final int NAME_COLUMN = 0;
+  private static final int ADDRESS_COLUMN = 1;
+  private static final int CITY_COLUMN = 2;
+  private static final int COUNTY_COLUMN = 3;
+  private static final int STATE_COLUMN = 4;
+  private static final int ZIP_COLUMN = 5;
+  private static final int STRING_COLUMN_COUNT = 6;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private int size;
+  private int deadCount;
+  private long[] ids = new long[INITIAL_CAPACITY];
+  private double[] lats = new double[INITIAL_CAPACITY];
+  private double[] longs = new double[INITIAL_CAPACITY];
+  private BitSet hasLat = new BitSet();
+  private BitSet hasLong = new BitSet();
+  private BitSet live = new BitSet();
+  private StringColumn[] stringColumns = newStringColumns(INITIAL_CAPACITY);
+
+  /** Replaces the contents of the store with the current contents of {@code Markets}. */
+  void load(PooledConnection connection) throws SQLException {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>();
+    PreparedStatement selectMarkets =
+        connection.prepareCachedStatement(TemplateQueries.SELECT_MARKETS + " ORDER BY Id");
+    try (ResultSet resultSet = selectMarkets.executeQuery()) {
+      while (resultSet.next()) {
+        farmersMarkets.add(FarmersMarketService.getFarmersMarketFromRow(resultSet));
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      rebuild(farmersMarkets);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    logger.log(Level.INFO, "Loaded {0} farmers'' markets into the column store",
+        farmersMarkets.size());
+  }
+
+  /**
+   * Returns up to {@code limit} markets matching the template with an Id greater than {@code
+   * afterId}, in Id order.
+   */
+  List<FarmersMarket> read(FarmersMarketTemplate template, long afterId, int limit) {
+    lock.readLock().lock();
+    try {
+      List<FarmersMarket> farmersMarkets = new ArrayList<>();
+      if (template.hasId()) {
+        int slot = findSlot(template.getId().getValue());
+        if (slot >= 0 && ids[slot] > afterId && matches(slot, template)) {
+          farmersMarkets.add(getFarmersMarket(slot));
+        }
+        return farmersMarkets;
+      }
+      Postings postings = findShortestPostings(template);
+      if (postings == null) {
+        for (int slot = firstSlotAfter(afterId); slot < size && farmersMarkets.size() < limit;
+            slot++) {
+          if (matches(slot, template)) {
+            farmersMarkets.add(getFarmersMarket(slot));
+          }
+        }
+      } else {
+        for (int i = postings.firstIndexAtOrAfter(firstSlotAfter(afterId));
+            i < postings.size && farmersMarkets.size() < limit; i++) {
+          int slot = postings.slots[i];
+          if (matches(slot, template)) {
+            farmersMarkets.add(getFarmersMarket(slot));
+          }
+        }
+      }
+      return farmersMarkets;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return size - deadCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void afterCommit(MarketsChangeSet changes) {
+    lock.writeLock().lock();
+    try {
+      for (long id : changes.getDeletedIds()) {
+        int slot = findSlot(id);
+        if (slot >= 0) {
+          live.clear(slot);
+          deadCount++;
+        }
+      }
+      for (FarmersMarket farmersMarket : changes.getUpdated()) {
+        int slot = findSlot(farmersMarket.getId());
+        if (slot >= 0) {
+          setSlot(slot, farmersMarket);
+        }
+      }
+      boolean inIdOrder = true;
+      for (FarmersMarket farmersMarket : changes.getCreated()) {
+        if (size > 0 && farmersMarket.getId() <= ids[size - 1]) {
+          inIdOrder = false;
+        } else {
+          append(farmersMarket);
+        }
+      }
+      if (!inIdOrder) {
+        // Change sets arrive in commit order, so only markets created with explicit Ids, as
+        // ApplyFarmersMarketChanges does, can land before the last slot.
+        List<FarmersMarket> farmersMarkets = getLiveFarmersMarkets();
+        for (FarmersMarket farmersMarket : changes.getCreated()) {
+          if (findSlot(farmersMarket.getId()) < 0) {
+            farmersMarkets.add(farmersMarket);
+          }
+        }
+        farmersMarkets.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+        rebuild(farmersMarkets);
+      } else if (deadCount >= MINIMUM_DEAD_SLOTS_TO_COMPACT && deadCount > size / 2) {
+        rebuild(getLiveFarmersMarkets());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private List<FarmersMarket> getLiveFarmersMarkets() {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>(size - deadCount);
+    for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+      farmersMarkets.add(getFarmersMarket(slot));
+    }
+    return farmersMarkets;
+  }
+
+  /** Rebuilds every column from markets in ascending Id order. */
+  private void rebuild(List<FarmersMarket> farmersMarkets) {
+    int capacity = Math.max(INITIAL_CAPACITY, farmersMarkets.size() * 2);
+    size = 0;
+    deadCount = 0;
+    ids = new long[capacity];
+    lats = new double[capacity];
+    longs = new double[capacity];
+    hasLat = new BitSet(capacity);
+    hasLong = new BitSet(capacity);
+    live = new BitSet(capacity);
+    stringColumns = newStringColumns(capacity);
+    for (FarmersMarket farmersMarket : farmersMarkets) {
+      append(farmersMarket);
+    }
+  }
+
+  private void append(FarmersMarket farmersMarket) {
+    if (size == ids.length) {
+      int capacity = ids.length * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      lats = Arrays.copyOf(lats, capacity);
+      longs = Arrays.copyOf(longs, capacity);
+      for (StringColumn stringColumn : stringColumns) {
+        stringColumn.grow(capacity);
+      }
+    }
+    int slot = size++;
+    ids[slot] = farmersMarket.getId();
+    for (StringColumn stringColumn : stringColumns) {
+      stringColumn.codes[slot] = StringColumn.NULL_CODE;
+    }
+    setSlot(slot, farmersMarket);
+  }
+
+  private void setSlot(int slot, FarmersMarket farmersMarket) {
+    live.set(slot);
+    stringColumns[NAME_COLUMN].set(slot, farmersMarket.getName());
+    stringColumns[ADDRESS_COLUMN].set(slot, getValue(farmersMarket.hasAddress(),
+        farmersMarket.getAddress()));
+    stringColumns[CITY_COLUMN].set(slot, getValue(farmersMarket.hasCity(),
+        farmersMarket.getCity()));
+    stringColumns[COUNTY_COLUMN].set(slot, getValue(farmersMarket.hasCounty(),
+        farmersMarket.getCounty()));
+    stringColumns[STATE_COLUMN].set(slot, getValue(farmersMarket.hasState(),
+        farmersMarket.getState()));
+    stringColumns[ZIP_COLUMN].set(slot, getValue(farmersMarket.hasZip(),
+        farmersMarket.getZip()));
+    hasLat.set(slot, farmersMarket.hasLat());
+    lats[slot] = farmersMarket.getLat().getValue();
+    hasLong.set(slot, farmersMarket.hasLong());
+    longs[slot] = farmersMarket.getLong().getValue();
+  }
+
+  private FarmersMarket getFarmersMarket(int slot) {
+    FarmersMarket.Builder farmersMarketBuilder = FarmersMarket.newBuilder()
+        .setId(ids[slot])
+        .setName(stringColumns[NAME_COLUMN].get(slot));
+    String address = stringColumns[ADDRESS_COLUMN].get(slot);
+    if (address != null) {
+      farmersMarketBuilder.setAddress(StringValue.newBuilder().setValue(address));
+    }
+    String city = stringColumns[CITY_COLUMN].get(slot);
+    if (city != null) {
+      farmersMarketBuilder.setCity(StringValue.newBuilder().setValue(city));
+    }
+    String county = stringColumns[COUNTY_COLUMN].get(slot);
+    if (county != null) {
+      farmersMarketBuilder.setCounty(StringValue.newBuilder().setValue(county));
+    }
+    String state = stringColumns[STATE_COLUMN].get(slot);
+    if (state != null) {
+      farmersMarketBuilder.setState(StringValue.newBuilder().setValue(state));
+    }
+    String zip = stringColumns[ZIP_COLUMN].get(slot);
+    if (zip != null) {
+      farmersMarketBuilder.setZip(StringValue.newBuilder().setValue(zip));
+    }
+    if (hasLat.get(slot)) {
+      farmersMarketBuilder.setLat(DoubleValue.newBuilder().setValue(lats[slot]));
+    }
+    if (hasLong.get(slot)) {
+      farmersMarketBuilder.setLong(DoubleValue.newBuilder().setValue(longs[slot]));
+    }
+    return farmersMarketBuilder.build();
+  }
+
+  private boolean matches(int slot, FarmersMarketTemplate template) {
+    if (!live.get(slot)) {
+      return false;
+    }
+    if (template.hasName() && !stringColumns[NAME_COLUMN].matches(slot, template.getName())) {
+      return false;
+    }
+    if (template.hasAddress()
+        && !stringColumns[ADDRESS_COLUMN].matches(slot, template.getAddress())) {
+      return false;
+    }
+    if (template.hasCity() && !stringColumns[CITY_COLUMN].matches(slot, template.getCity())) {
+      return false;
+    }
+    if (template.hasCounty()
+        && !stringColumns[COUNTY_COLUMN].matches(slot, template.getCounty())) {
+      return false;
+    }
+    if (template.hasState() && !stringColumns[STATE_COLUMN].matches(slot, template.getState())) {
+      return false;
+    }
+    if (template.hasZip() && !stringColumns[ZIP_COLUMN].matches(slot, template.getZip())) {
+      return false;
+    }
+    if (template.hasLat() && !(hasLat.get(slot) && lats[slot] == template.getLat().getValue())) {
+      return false;
+    }
+    return !template.hasLong()
+        || (hasLong.get(slot) && longs[slot] == template.getLong().getValue());
+  }
+
+  /**
+   * Returns the shortest posting list among the template's string fields, an empty one if a
+   * field's value does not occur at all, or null if the template has no string fields.
+   */
+  private Postings findShortestPostings(FarmersMarketTemplate template) {
+    Postings shortest = null;
+    shortest = shorter(shortest, template.hasName(), NAME_COLUMN, template.getName());
+    shortest = shorter(shortest, template.hasAddress(), ADDRESS_COLUMN, template.getAddress());
+    shortest = shorter(shortest, template.hasCity(), CITY_COLUMN, template.getCity());
+    shortest = shorter(shortest, template.hasCounty(), COUNTY_COLUMN, template.getCounty());
+    shortest = shorter(shortest, template.hasState(), STATE_COLUMN, template.getState());
+    shortest = shorter(shortest, template.hasZip(), ZIP_COLUMN, template.getZip());
+    return shortest;
+  }
+
+  private Postings shorter(Postings shortest, boolean hasValue, int column, StringValue value) {
+    if (!hasValue) {
+      return shortest;
+    }
+    Postings postings = stringColumns[column].getPostings(value.getValue());
+    return shortest == null || postings.size < shortest.size ? postings : shortest;
+  }
+
+  /** Returns the slot holding the Id, or a negative number if there is none. */
+  private int findSlot(long id) {
+    int slot = Arrays.binarySearch(ids, 0, size, id);
+    return slot >= 0 && live.get(slot) ? slot : -1;
+  }
+
+  private int firstSlotAfter(long afterId) {
+    if (afterId == Long.MAX_VALUE) {
+      return size;
+    }
+    int slot = Arrays.binarySearch(ids, 0, size, afterId + 1);
+    return slot >= 0 ? slot : -slot - 1;
+  }
+
+  private static String getValue(boolean hasValue, StringValue value) {
+    return hasValue ? value.getValue() : null;
+  }
+
+  private static StringColumn[] newStringColumns(int capacity) {
+    StringColumn[] stringColumns = new StringColumn[STRING_COLUMN_COUNT];
+    for (int column = 0; column < STRING_COLUMN_COUNT; column++) {
+      stringColumns[column] = new StringColumn(capacity);
+    }
+    return stringColumns;
+  }
+
+  /** A dictionary-encoded string column with a posting list per dictionary value. */
+  private static final class StringColumn {
+
+    static final int NULL_CODE = -1;
+
+    private static final Postings NO_POSTINGS = new Postings();
+
+    private final Map<String, Integer> codesByValue = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<Postings> postings = new ArrayList<>();
+    int[] codes;
+
+    StringColumn(int capacity) {
+      this.codes = new int[capacity];
+    }
+
+    void grow(int capacity) {
+      codes = Arrays.copyOf(codes, capacity);
+    }
+
+    String get(int slot) {
+      return codes[slot] == NULL_CODE ? null : values.get(codes[slot]);
+    }
+
+    boolean matches(int slot, StringValue value) {
+      Integer code = codesByValue.get(value.getValue());
+      return code != null && codes[slot] == code;
+    }
+
+    Postings getPostings(String value) {
+      Integer code = codesByValue.get(value);
+      return code == null ? NO_POSTINGS : postings.get(code);
+    }
+
+    void set(int slot, String value) {
+      int code = value == null ? NULL_CODE : encode(value);
+      if (codes[slot] == code) {
+        return;
+      }
+      if (codes[slot] != NULL_CODE) {
+        postings.get(codes[slot]).remove(slot);
+      }
+      codes[slot] = code;
+      if (code != NULL_CODE) {
+        postings.get(code).add(slot);
+      }
+    }
+
+    private int encode(String value) {
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = values.size();
+        codesByValue.put(value, code);
+        values.add(value);
+        postings.add(new Postings());
+      }
+      return code;
+    }
+  }
+
+  /** A sorted list of slots. */
+  private static final class Postings {
+
+    int[] slots = new int[4];
+    int size;
+
+    void add(int slot) {
+      int index = firstIndexAtOrAfter(slot);
+      if (index < size && slots[index] == slot) {
+        return;
+      }
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+      }
+      System.arraycopy(slots, index, slots, index + 1, size - index);
+      slots[index] = slot;
+      size++;
+    }
+
+    void remove(int slot) {
+      int index = firstIndexAtOrAfter(slot);
+      if (index < size && slots[index] == slot) {
+        System.arraycopy(slots, index + 1, slots, index, size - index - 1);
+        size--;
+      }
+    }
+
+    int firstIndexAtOrAfter(int slot) {
+      int index = Arrays.binarySearch(slots, 0, size, slot);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+}
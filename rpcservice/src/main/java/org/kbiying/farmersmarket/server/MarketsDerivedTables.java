@@ -0,0 +1,52 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The tables a server derives from {@code Markets}, for tools that write {@code Markets} directly
+ * rather than through a server.
+ *
+ * <p>A server only checks the spatial and text indexes against the row count of {@code Markets}
+ * when it starts, so it would keep the values of markets that were replaced in place. Tables a
+ * server has not created yet are left alone; it builds them from {@code Markets} when it does.
+ */
+public final class MarketsDerivedTables {
+
+  private static final String TABLE_EXISTS_SQL =
+      "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?";
+
+  private MarketsDerivedTables() {
+  }
+
+  /**
+   * Repopulates the spatial and text indexes from {@code Markets} and empties the change log, in
+   * the connection's current transaction. Watchers are not notified; one that resumes afterwards
+   * is told that its changes are no longer retained.
+   */
+  public static void rebuild(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      if (tableExists(connection, "MarketsRTree")) {
+        MarketsSpatialIndex.rebuild(statement);
+      }
+      if (tableExists(connection, "MarketsFts")) {
+        MarketsTextIndex.rebuild(statement);
+      }
+      if (tableExists(connection, "MarketsChangeLog")) {
+        MarketsChangeLog.reset(statement);
+      }
+    }
+  }
+
+  private static boolean tableExists(Connection connection, String table) throws SQLException {
+    try (PreparedStatement select = connection.prepareStatement(TABLE_EXISTS_SQL)) {
+      select.setString(1, table);
+      try (ResultSet resultSet = select.executeQuery()) {
+        return resultSet.next();
+      }
+    }
+  }
+}
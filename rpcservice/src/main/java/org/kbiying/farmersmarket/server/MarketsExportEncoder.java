@@ -0,0 +1,100 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.kbiying.farmersmarket.proto.ExportFormat;
+
+/**
+ * Encodes rows of {@code Markets}, selected as {@code Id, Name, Address, City, County, State,
+ * Zip, Lat, Long}, into an export buffer that is handed out a chunk at a time.
+ *
+ * <p>CSV lines are written straight from the columns of the result set without building a
+ * message per market.
+ */
+final class MarketsExportEncoder {
+
+  private static final String CSV_HEADER = "Id,Name,Address,City,County,State,Zip,Lat,Long\r\n";
+
+  private final ExportFormat format;
+  private final ByteString.Output output = ByteString.newOutput();
+  private final StringBuilder line = new StringBuilder();
+
+  MarketsExportEncoder(ExportFormat format) {
+    this.format = format;
+    if (format == ExportFormat.CSV) {
+      write(CSV_HEADER);
+    }
+  }
+
+  /** Appends the market in the current row of the result set and returns its Id. */
+  long writeRow(ResultSet resultSet) throws SQLException {
+    long id = resultSet.getLong(1);
+    if (format == ExportFormat.DELIMITED_PROTO) {
+      try {
+        FarmersMarketService.getFarmersMarketFromRow(resultSet).writeDelimitedTo(output);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return id;
+    }
+    line.setLength(0);
+    line.append(id);
+    for (int column = 2; column <= 7; column++) {
+      line.append(',');
+      appendCsvText(line, resultSet.getString(column));
+    }
+    for (int column = 8; column <= 9; column++) {
+      line.append(',');
+      double value = resultSet.getDouble(column);
+      if (!resultSet.wasNull()) {
+        // Double.toString switches to scientific notation below 10^-3.
+        line.append(BigDecimal.valueOf(value).toPlainString());
+      }
+    }
+    line.append("\r\n");
+    write(line);
+    return id;
+  }
+
+  /** Returns the bytes appended since the last call, which may be empty. */
+  ByteString takeChunk() {
+    ByteString chunk = output.toByteString();
+    output.reset();
+    return chunk;
+  }
+
+  private void write(CharSequence text) {
+    byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+    output.write(bytes, 0, bytes.length);
+  }
+
+  /** Appends the text, quoted if it contains a separator, a quote or a line break. */
+  private static void appendCsvText(StringBuilder line, String text) {
+    if (text == null) {
+      return;
+    }
+    boolean quoted = false;
+    for (int i = 0; i < text.length() && !quoted; i++) {
+      char c = text.charAt(i);
+      quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+    }
+    if (!quoted) {
+      line.append(text);
+      return;
+    }
+    line.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        line.append('"');
+      }
+      line.append(c);
+    }
+    line.append('"');
+  }
+}
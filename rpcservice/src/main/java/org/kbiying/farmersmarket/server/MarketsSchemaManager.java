@@ -0,0 +1,116 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Creates and checks the secondary indexes that the service expects on the {@code Markets}
+ * table, and keeps the planner's statistics fresh.
+ */
+final class MarketsSchemaManager {
+
+  private final ImmutableList<IndexDefinition> indexes;
+
+  MarketsSchemaManager(ImmutableList<IndexDefinition> indexes) {
+    this.indexes = indexes;
+  }
+
+  ImmutableList<IndexDefinition> getIndexes() {
+    return indexes;
+  }
+
+  /** Creates any configured index that does not exist yet. */
+  void createIndexes(PooledConnection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      for (IndexDefinition index : indexes) {
+        statement.executeUpdate(index.getCreateSql());
+      }
+    }
+  }
+
+  /** Gathers the statistics SQLite's planner uses to choose between indexes. */
+  void analyze(PooledConnection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("ANALYZE Markets");
+    }
+  }
+
+  /**
+   * Reports configured indexes that do not exist, indexes the planner would not pick for an
+   * equality lookup on their columns, and indexes on {@code Markets} nobody configured.
+   */
+  SchemaReport inspect(PooledConnection connection) throws SQLException {
+    Set<String> existingIndexes = new HashSet<>();
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("PRAGMA index_list(Markets)")) {
+      while (resultSet.next()) {
+        existingIndexes.add(resultSet.getString("name"));
+      }
+    }
+
+    SchemaReport.Builder report = SchemaReport.builder();
+    Set<String> configuredIndexes = new HashSet<>();
+    for (IndexDefinition index : indexes) {
+      configuredIndexes.add(index.getName());
+      if (!existingIndexes.contains(index.getName())) {
+        report.missingIndexesBuilder().add(index.getName());
+      } else if (!isUsedByPlanner(connection, index)) {
+        report.unusedIndexesBuilder().add(index.getName());
+      }
+    }
+    for (String existingIndex : existingIndexes) {
+      if (!configuredIndexes.contains(existingIndex)
+          && !existingIndex.startsWith("sqlite_autoindex_")) {
+        report.unmanagedIndexesBuilder().add(existingIndex);
+      }
+    }
+    return report.build();
+  }
+
+  private static boolean isUsedByPlanner(PooledConnection connection, IndexDefinition index)
+      throws SQLException {
+    String predicates = Joiner.on(" = '' AND ").join(index.getColumns()) + " = ''";
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "EXPLAIN QUERY PLAN SELECT Id FROM Markets WHERE " + predicates)) {
+      while (resultSet.next()) {
+        String detail = resultSet.getString("detail");
+        if (detail != null && detail.contains("INDEX " + index.getName() + " ")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @AutoValue
+  abstract static class SchemaReport {
+
+    abstract ImmutableList<String> getMissingIndexes();
+    abstract ImmutableList<String> getUnusedIndexes();
+    abstract ImmutableList<String> getUnmanagedIndexes();
+
+    boolean isHealthy() {
+      return getMissingIndexes().isEmpty() && getUnusedIndexes().isEmpty();
+    }
+
+    static Builder builder() {
+      return new AutoValue_MarketsSchemaManager_SchemaReport.Builder();
+    }
+
+    @AutoValue.Builder
+    abstract static class Builder {
+
+      abstract ImmutableList.Builder<String> missingIndexesBuilder();
+      abstract ImmutableList.Builder<String> unusedIndexesBuilder();
+      abstract ImmutableList.Builder<String> unmanagedIndexesBuilder();
+      abstract SchemaReport build();
+    }
+  }
+}
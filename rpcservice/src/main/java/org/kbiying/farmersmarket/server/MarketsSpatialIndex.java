@@ -0,0 +1,235 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.NearbyFarmersMarket;
+
+/**
+ * An SQLite R*Tree over the {@code Lat}/{@code Long} columns of {@code Markets}, kept in step by
+ * the service's write paths.
+ *
+ * <p>The R*Tree stores coordinates as 32-bit floats, so its boxes are only used to pick
+ * candidates. Every candidate is joined back to {@code Markets} and checked against its exact
+ * coordinates, which also drops any entry left behind by an out-of-band change to the table.
+ */
+final class MarketsSpatialIndex implements MarketsChangeListener {
+
+  private static final Logger logger = Logger.getLogger(MarketsSpatialIndex.class.getName());
+
+  /** Mean radius of the Earth in meters. */
+  static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+  /** Widens query boxes to cover float rounding in the R*Tree. */
+  private static final double BOX_SLACK_DEGREES = 1e-4;
+
+  private static final String UPSERT_SQL =
+      "INSERT OR REPLACE INTO MarketsRTree (Id, MinLat, MaxLat, MinLong, MaxLong) "
+          + "VALUES (?, ?, ?, ?, ?)";
+  private static final String DELETE_SQL = "DELETE FROM MarketsRTree WHERE Id = ?";
+  private static final String SELECT_IN_BOX_SQL =
+      "SELECT m.Id, m.Name, m.Address, m.City, m.County, m.State, m.Zip, m.Lat, m.Long "
+          + "FROM MarketsRTree r JOIN Markets m ON m.Id = r.Id "
+          + "WHERE r.MaxLat >= ? AND r.MinLat <= ? AND r.MaxLong >= ? AND r.MinLong <= ?";
+
+  /** Creates the R*Tree if needed and repopulates it if it has drifted from {@code Markets}. */
+  void ensureIndex(PooledConnection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS MarketsRTree "
+          + "USING rtree(Id, MinLat, MaxLat, MinLong, MaxLong)");
+      long indexedCount = queryCount(statement, "SELECT COUNT(*) FROM MarketsRTree");
+      long locatedCount = queryCount(statement,
+          "SELECT COUNT(*) FROM Markets WHERE Lat IS NOT NULL AND Long IS NOT NULL");
+      if (indexedCount != locatedCount) {
+        logger.log(Level.INFO, "Rebuilding spatial index over {0} farmers'' markets",
+            locatedCount);
+        rebuild(statement);
+      }
+    }
+  }
+
+  /** Repopulates the R*Tree from the located markets in {@code Markets}. */
+  static void rebuild(Statement statement) throws SQLException {
+    statement.executeUpdate("DELETE FROM MarketsRTree");
+    statement.executeUpdate("INSERT INTO MarketsRTree (Id, MinLat, MaxLat, MinLong, MaxLong) "
+        + "SELECT Id, Lat, Lat, Long, Long FROM Markets "
+        + "WHERE Lat IS NOT NULL AND Long IS NOT NULL");
+  }
+
+  @Override
+  public void beforeCommit(PooledConnection connection, MarketsChangeSet changes)
+      throws SQLException {
+    PreparedStatement upsert = null;
+    PreparedStatement delete = null;
+    List<FarmersMarket> upserted = new ArrayList<>(changes.getCreated());
+    upserted.addAll(changes.getUpdated());
+    for (FarmersMarket farmersMarket : upserted) {
+      if (farmersMarket.hasLat() && farmersMarket.hasLong()) {
+        if (upsert == null) {
+          upsert = connection.prepareCachedStatement(UPSERT_SQL);
+        }
+        upsert.setLong(1, farmersMarket.getId());
+        upsert.setDouble(2, farmersMarket.getLat().getValue());
+        upsert.setDouble(3, farmersMarket.getLat().getValue());
+        upsert.setDouble(4, farmersMarket.getLong().getValue());
+        upsert.setDouble(5, farmersMarket.getLong().getValue());
+        upsert.addBatch();
+      } else {
+        if (delete == null) {
+          delete = connection.prepareCachedStatement(DELETE_SQL);
+        }
+        delete.setLong(1, farmersMarket.getId());
+        delete.addBatch();
+      }
+    }
+    for (long id : changes.getDeletedIds()) {
+      if (delete == null) {
+        delete = connection.prepareCachedStatement(DELETE_SQL);
+      }
+      delete.setLong(1, id);
+      delete.addBatch();
+    }
+    if (upsert != null) {
+      upsert.executeBatch();
+    }
+    if (delete != null) {
+      delete.executeBatch();
+    }
+  }
+
+  /**
+   * Returns the markets within {@code radiusMeters} of the point, nearest first, at most {@code
+   * maxResults} of them unless it is zero.
+   */
+  List<NearbyFarmersMarket> findNearby(PooledConnection connection, double lat, double lng,
+      double radiusMeters, int maxResults) throws SQLException {
+    double angularRadius = radiusMeters / EARTH_RADIUS_METERS;
+    double latDelta = Math.toDegrees(angularRadius);
+    double minLat = Math.max(lat - latDelta, -90);
+    double maxLat = Math.min(lat + latDelta, 90);
+    double minLong;
+    double maxLong;
+    double cosLat = Math.cos(Math.toRadians(lat));
+    if (minLat <= -90 || maxLat >= 90 || angularRadius >= Math.PI
+        || cosLat < Math.sin(angularRadius)) {
+      // The circle reaches a pole, so it spans every longitude.
+      minLong = -180;
+      maxLong = 180;
+    } else {
+      double longDelta = Math.toDegrees(Math.asin(Math.sin(angularRadius) / cosLat));
+      minLong = normalizeLongitude(lng - longDelta);
+      maxLong = normalizeLongitude(lng + longDelta);
+    }
+
+    Comparator<NearbyFarmersMarket> byDistance =
+        Comparator.comparingDouble(NearbyFarmersMarket::getDistanceMeters);
+    // Holds the best results so far with the farthest on top, so it can be evicted first.
+    PriorityQueue<NearbyFarmersMarket> nearest = new PriorityQueue<>(byDistance.reversed());
+    for (FarmersMarket candidate : findCandidates(connection, minLat, maxLat, minLong, maxLong)) {
+      double distance = haversineMeters(
+          lat, lng, candidate.getLat().getValue(), candidate.getLong().getValue());
+      if (distance > radiusMeters) {
+        continue;
+      }
+      nearest.add(NearbyFarmersMarket.newBuilder()
+          .setFarmersMarket(candidate)
+          .setDistanceMeters(distance)
+          .build());
+      if (maxResults > 0 && nearest.size() > maxResults) {
+        nearest.poll();
+      }
+    }
+    List<NearbyFarmersMarket> result = new ArrayList<>(nearest);
+    result.sort(byDistance);
+    return result;
+  }
+
+  /**
+   * Returns the markets inside the box, in Id order, at most {@code maxResults} of them unless it
+   * is zero. A box with {@code minLong > maxLong} crosses the antimeridian.
+   */
+  List<FarmersMarket> findInBox(PooledConnection connection, double minLat, double maxLat,
+      double minLong, double maxLong, int maxResults) throws SQLException {
+    List<FarmersMarket> result = new ArrayList<>();
+    for (FarmersMarket candidate : findCandidates(connection, minLat, maxLat, minLong, maxLong)) {
+      double lat = candidate.getLat().getValue();
+      double lng = candidate.getLong().getValue();
+      boolean inLongRange = minLong <= maxLong
+          ? lng >= minLong && lng <= maxLong
+          : lng >= minLong || lng <= maxLong;
+      if (lat >= minLat && lat <= maxLat && inLongRange) {
+        result.add(candidate);
+      }
+    }
+    result.sort(Comparator.comparingLong(FarmersMarket::getId));
+    if (maxResults > 0 && result.size() > maxResults) {
+      return new ArrayList<>(result.subList(0, maxResults));
+    }
+    return result;
+  }
+
+  static double haversineMeters(double lat1, double long1, double lat2, double long2) {
+    double sinHalfDeltaLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+    double sinHalfDeltaLong = Math.sin(Math.toRadians(long2 - long1) / 2);
+    double a = sinHalfDeltaLat * sinHalfDeltaLat
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+        * sinHalfDeltaLong * sinHalfDeltaLong;
+    return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  private static List<FarmersMarket> findCandidates(PooledConnection connection,
+      double minLat, double maxLat, double minLong, double maxLong) throws SQLException {
+    if (minLong <= maxLong) {
+      return queryBox(connection, minLat, maxLat, minLong, maxLong);
+    }
+    // Split a box that crosses the antimeridian in two.
+    List<FarmersMarket> candidates = queryBox(connection, minLat, maxLat, minLong, 180);
+    candidates.addAll(queryBox(connection, minLat, maxLat, -180, maxLong));
+    return candidates;
+  }
+
+  private static List<FarmersMarket> queryBox(PooledConnection connection,
+      double minLat, double maxLat, double minLong, double maxLong) throws SQLException {
+    PreparedStatement selectInBox = connection.prepareCachedStatement(SELECT_IN_BOX_SQL);
+    selectInBox.setDouble(1, minLat - BOX_SLACK_DEGREES);
+    selectInBox.setDouble(2, maxLat + BOX_SLACK_DEGREES);
+    selectInBox.setDouble(3, minLong - BOX_SLACK_DEGREES);
+    selectInBox.setDouble(4, maxLong + BOX_SLACK_DEGREES);
+    List<FarmersMarket> candidates = new ArrayList<>();
+    try (ResultSet resultSet = selectInBox.executeQuery()) {
+      while (resultSet.next()) {
+        FarmersMarket candidate = FarmersMarketService.getFarmersMarketFromRow(resultSet);
+        // The R*Tree may still hold a market whose coordinates were cleared out of band.
+        if (candidate.hasLat() && candidate.hasLong()) {
+          candidates.add(candidate);
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static double normalizeLongitude(double lng) {
+    if (lng > 180) {
+      return lng - 360;
+    }
+    if (lng < -180) {
+      return lng + 360;
+    }
+    return lng;
+  }
+
+  private static long queryCount(Statement statement, String sql) throws SQLException {
+    try (ResultSet resultSet = statement.executeQuery(sql)) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+}
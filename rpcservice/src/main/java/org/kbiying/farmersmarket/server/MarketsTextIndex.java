@@ -0,0 +1,152 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+
+/**
+ * An SQLite FTS5 table over the {@code Name}, {@code Address} and {@code City} columns of {@code
+ * Markets}, keyed by market Id and kept in step by the service's write paths.
+ */
+final class MarketsTextIndex implements MarketsChangeListener {
+
+  private static final Logger logger = Logger.getLogger(MarketsTextIndex.class.getName());
+
+  private static final String DELETE_SQL = "DELETE FROM MarketsFts WHERE rowid = ?";
+  private static final String INSERT_SQL =
+      "INSERT INTO MarketsFts (rowid, Name, Address, City) VALUES (?, ?, ?, ?)";
+  // A match in the name counts for more than one in the city, which counts for more than one in
+  // the address.
+  private static final String SEARCH_SQL =
+      "SELECT m.Id, m.Name, m.Address, m.City, m.County, m.State, m.Zip, m.Lat, m.Long "
+          + "FROM MarketsFts f JOIN Markets m ON m.Id = f.rowid "
+          + "WHERE MarketsFts MATCH ? "
+          + "ORDER BY bm25(MarketsFts, 10.0, 1.0, 3.0) LIMIT ?";
+
+  /** Creates the FTS5 table if needed and repopulates it if it has drifted from Markets. */
+  void ensureIndex(PooledConnection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS MarketsFts "
+          + "USING fts5(Name, Address, City, tokenize = 'unicode61 remove_diacritics 1')");
+      long indexedCount = queryCount(statement, "SELECT COUNT(*) FROM MarketsFts");
+      long marketCount = queryCount(statement, "SELECT COUNT(*) FROM Markets");
+      if (indexedCount != marketCount) {
+        logger.log(Level.INFO, "Rebuilding text index over {0} farmers'' markets", marketCount);
+        rebuild(statement);
+      }
+    }
+  }
+
+  /** Repopulates the FTS5 table from {@code Markets}. */
+  static void rebuild(Statement statement) throws SQLException {
+    statement.executeUpdate("DELETE FROM MarketsFts");
+    statement.executeUpdate("INSERT INTO MarketsFts (rowid, Name, Address, City) "
+        + "SELECT Id, Name, Address, City FROM Markets");
+  }
+
+  @Override
+  public void beforeCommit(PooledConnection connection, MarketsChangeSet changes)
+      throws SQLException {
+    if (!changes.getUpdated().isEmpty() || !changes.getDeletedIds().isEmpty()) {
+      PreparedStatement delete = connection.prepareCachedStatement(DELETE_SQL);
+      for (FarmersMarket farmersMarket : changes.getUpdated()) {
+        delete.setLong(1, farmersMarket.getId());
+        delete.addBatch();
+      }
+      for (long id : changes.getDeletedIds()) {
+        delete.setLong(1, id);
+        delete.addBatch();
+      }
+      delete.executeBatch();
+    }
+
+    List<FarmersMarket> inserted = new ArrayList<>(changes.getCreated());
+    inserted.addAll(changes.getUpdated());
+    if (inserted.isEmpty()) {
+      return;
+    }
+    PreparedStatement insert = connection.prepareCachedStatement(INSERT_SQL);
+    for (FarmersMarket farmersMarket : inserted) {
+      insert.setLong(1, farmersMarket.getId());
+      insert.setString(2, farmersMarket.getName());
+      insert.setString(3,
+          farmersMarket.hasAddress() ? farmersMarket.getAddress().getValue() : null);
+      insert.setString(4, farmersMarket.hasCity() ? farmersMarket.getCity().getValue() : null);
+      insert.addBatch();
+    }
+    insert.executeBatch();
+  }
+
+  /**
+   * Returns up to {@code maxResults} markets whose name, address or city contain every word of
+   * the query, best match first. The last word also matches as a prefix, so that a query can be
+   * searched as it is typed.
+   */
+  List<FarmersMarket> search(PooledConnection connection, String query, int maxResults)
+      throws SQLException {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>();
+    String matchExpression = toMatchExpression(query);
+    if (matchExpression.isEmpty()) {
+      return farmersMarkets;
+    }
+    PreparedStatement search = connection.prepareCachedStatement(SEARCH_SQL);
+    search.setString(1, matchExpression);
+    search.setInt(2, maxResults);
+    try (ResultSet resultSet = search.executeQuery()) {
+      while (resultSet.next()) {
+        farmersMarkets.add(FarmersMarketService.getFarmersMarketFromRow(resultSet));
+      }
+    }
+    return farmersMarkets;
+  }
+
+  /**
+   * Turns free text into an FTS5 query that ANDs its words together as quoted strings, so that
+   * no user input is read as FTS5 syntax. The last word becomes a prefix query unless the text
+   * ends with a separator, meaning the user finished typing it.
+   */
+  static String toMatchExpression(String query) {
+    StringBuilder matchExpression = new StringBuilder();
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < query.length(); ) {
+      int codePoint = query.codePointAt(i);
+      if (Character.isLetterOrDigit(codePoint)) {
+        word.appendCodePoint(codePoint);
+      } else {
+        appendWord(matchExpression, word);
+      }
+      i += Character.charCount(codePoint);
+    }
+    boolean lastWordIsPrefix = word.length() > 0;
+    appendWord(matchExpression, word);
+    if (lastWordIsPrefix) {
+      matchExpression.append('*');
+    }
+    return matchExpression.toString();
+  }
+
+  private static void appendWord(StringBuilder matchExpression, StringBuilder word) {
+    if (word.length() == 0) {
+      return;
+    }
+    if (matchExpression.length() > 0) {
+      matchExpression.append(' ');
+    }
+    // Words only hold letters and digits, so they need no escaping inside the quotes.
+    matchExpression.append('"').append(word).append('"');
+    word.setLength(0);
+  }
+
+  private static long queryCount(Statement statement, String sql) throws SQLException {
+    try (ResultSet resultSet = statement.executeQuery(sql)) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.protobuf.Message;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketChange;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsResponse;
+
+/**
+ * Sends the changes of the change log that match a template to one WatchFarmersMarkets call.
+ *
+ * <p>Like {@link FlowControlledResponder}, changes are only read while the transport is ready
+ * for them, so a slow watcher falls behind in the change log rather than buffering on the server.
+ * Commits wake the watch on an executor instead of the committing thread, and a burst of commits
+ * wakes it once.
+ */
+final class MarketsWatch implements MarketsChangeLog.Watcher {
+
+  private static final Logger logger = Logger.getLogger(MarketsWatch.class.getName());
+
+  @FunctionalInterface
+  interface ChangeSource {
+
+    /** Returns the next changes after the sequence number, or an empty list if there are none. */
+    List<FarmersMarketChange> read(long afterSequence) throws Exception;
+  }
+
+  private final ServerCallStreamObserver<WatchFarmersMarketsResponse> responseObserver;
+  private final FarmersMarketTemplate template;
+  private final ChangeSource source;
+  private final Executor executor;
+  private final MarketsChangeLog changeLog;
+  private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+  private long lastSequence;
+  private boolean done;
+
+  private MarketsWatch(ServerCallStreamObserver<WatchFarmersMarketsResponse> responseObserver,
+      FarmersMarketTemplate template, long afterSequence, ChangeSource source, Executor executor,
+      MarketsChangeLog changeLog) {
+    this.responseObserver = responseObserver;
+    this.template = template;
+    this.lastSequence = afterSequence;
+    this.source = source;
+    this.executor = executor;
+    this.changeLog = changeLog;
+  }
+
+  /**
+   * Starts sending the changes after the sequence number, which must be called from the call's
+   * handler. The first response has no changes and confirms the sequence number to resume from.
+   */
+  static void start(StreamObserver<WatchFarmersMarketsResponse> responseObserver,
+      FarmersMarketTemplate template, long afterSequence, ChangeSource source, Executor executor,
+      MarketsChangeLog changeLog) {
+    ServerCallStreamObserver<WatchFarmersMarketsResponse> serverCallStreamObserver =
+        (ServerCallStreamObserver<WatchFarmersMarketsResponse>) responseObserver;
+    MarketsWatch watch = new MarketsWatch(
+        serverCallStreamObserver, template, afterSequence, source, executor, changeLog);
+    serverCallStreamObserver.setOnCancelHandler(watch::cancel);
+    serverCallStreamObserver.setOnReadyHandler(watch::drain);
+    serverCallStreamObserver.onNext(
+        WatchFarmersMarketsResponse.newBuilder().setLastSequence(afterSequence).build());
+    // Changes committed before the watcher was added are picked up by this first drain.
+    changeLog.addWatcher(watch);
+    watch.drain();
+  }
+
+  @Override
+  public void onCommit() {
+    if (!wakeScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        wakeScheduled.set(false);
+        drain();
+      });
+    } catch (RejectedExecutionException e) {
+      wakeScheduled.set(false);
+    }
+  }
+
+  @Override
+  public synchronized void onClose() {
+    if (done) {
+      return;
+    }
+    done = true;
+    responseObserver.onError(Status.UNAVAILABLE
+        .withDescription("Server shutting down; resume after sequence number " + lastSequence)
+        .asRuntimeException());
+  }
+
+  /** Sends the changes the transport is ready for, until the change log has no more. */
+  private synchronized void drain() {
+    while (!done && responseObserver.isReady()) {
+      if (responseObserver.isCancelled()) {
+        cancel();
+        return;
+      }
+      List<FarmersMarketChange> changes;
+      try {
+        changes = source.read(lastSequence);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, e.getMessage(), e);
+        stop();
+        responseObserver.onError(Status.INTERNAL
+            .withDescription(e.getMessage())
+            .withCause(e)
+            .asRuntimeException());
+        return;
+      }
+      if (changes.isEmpty()) {
+        return;
+      }
+      WatchFarmersMarketsResponse.Builder responseBuilder =
+          WatchFarmersMarketsResponse.newBuilder();
+      for (FarmersMarketChange change : changes) {
+        if (isVisible(change)) {
+          responseBuilder.addChange(change);
+        }
+      }
+      // Sent even when every change was filtered out, so that a watcher whose template rarely
+      // matches still advances the sequence number it would resume from.
+      lastSequence = changes.get(changes.size() - 1).getSequence();
+      responseObserver.onNext(responseBuilder.setLastSequence(lastSequence).build());
+    }
+  }
+
+  /**
+   * Whether the watcher is told about the change. Updates are sent when the market matched the
+   * template before them, too, so the watcher learns when one no longer does, and deletions when
+   * the deleted market matched it.
+   */
+  private boolean isVisible(FarmersMarketChange change) {
+    switch (change.getType()) {
+      case DELETED:
+        return matches(change.getPreviousFarmersMarket(), template);
+      case UPDATED:
+        return matches(change.getFarmersMarket(), template)
+            || (change.hasPreviousFarmersMarket()
+                && matches(change.getPreviousFarmersMarket(), template));
+      default:
+        return matches(change.getFarmersMarket(), template);
+    }
+  }
+
+  private synchronized void cancel() {
+    stop();
+  }
+
+  private void stop() {
+    done = true;
+    changeLog.removeWatcher(this);
+  }
+
+  /** Whether the market has every value the template sets, as ReadFarmersMarket matches them. */
+  static boolean matches(FarmersMarket farmersMarket, FarmersMarketTemplate template) {
+    if (template.hasId() && farmersMarket.getId() != template.getId().getValue()) {
+      return false;
+    }
+    if (template.hasName() && !farmersMarket.getName().equals(template.getName().getValue())) {
+      return false;
+    }
+    return matches(farmersMarket.hasAddress(), farmersMarket.getAddress(),
+            template.hasAddress(), template.getAddress())
+        && matches(farmersMarket.hasCity(), farmersMarket.getCity(),
+            template.hasCity(), template.getCity())
+        && matches(farmersMarket.hasCounty(), farmersMarket.getCounty(),
+            template.hasCounty(), template.getCounty())
+        && matches(farmersMarket.hasState(), farmersMarket.getState(),
+            template.hasState(), template.getState())
+        && matches(farmersMarket.hasZip(), farmersMarket.getZip(),
+            template.hasZip(), template.getZip())
+        && matches(farmersMarket.hasLat(), farmersMarket.getLat(),
+            template.hasLat(), template.getLat())
+        && matches(farmersMarket.hasLong(), farmersMarket.getLong(),
+            template.hasLong(), template.getLong());
+  }
+
+  /** A set template field only matches a market field that is set to the same value. */
+  private static boolean matches(boolean hasValue, Message value, boolean hasTemplateValue,
+      Message templateValue) {
+    return !hasTemplateValue || (hasValue && value.equals(templateValue));
+  }
+}
@@ -0,0 +1,62 @@
+package org.kbiying.farmersmarket.server;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records the latency, in-flight count and status of every call in {@link ServerMetrics}, along
+ * with the time spent serializing each response message.
+ */
+final class MetricsInterceptor implements ServerInterceptor {
+
+  private final ServerMetrics metrics;
+
+  MetricsInterceptor(ServerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+      Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    String fullMethodName = call.getMethodDescriptor().getFullMethodName();
+    ServerMetrics.MethodMetrics methodMetrics = metrics.getMethodMetrics(
+        fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1));
+    long startNanos = System.nanoTime();
+    AtomicBoolean finished = new AtomicBoolean();
+    methodMetrics.callStarted();
+
+    ServerCall<ReqT, RespT> measuredCall = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+      @Override
+      public void sendMessage(RespT message) {
+        long sendStartNanos = System.nanoTime();
+        super.sendMessage(message);
+        metrics.recordStoragePhase(
+            StoragePhase.SERIALIZATION, System.nanoTime() - sendStartNanos);
+      }
+
+      @Override
+      public void close(Status status, Metadata trailers) {
+        super.close(status, trailers);
+        if (finished.compareAndSet(false, true)) {
+          methodMetrics.callFinished(status, System.nanoTime() - startNanos);
+        }
+      }
+    };
+    return new SimpleForwardingServerCallListener<ReqT>(next.startCall(measuredCall, headers)) {
+      @Override
+      public void onCancel() {
+        // A cancelled call is never closed by the service.
+        if (finished.compareAndSet(false, true)) {
+          methodMetrics.callFinished(Status.CANCELLED, System.nanoTime() - startNanos);
+        }
+        super.onCancel();
+      }
+    };
+  }
+}
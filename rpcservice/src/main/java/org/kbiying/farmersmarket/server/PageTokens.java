@@ -0,0 +1,49 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketPageToken;
+
+/**
+ * Encodes the position of a keyset-paginated read as an opaque page token. A token is bound to
+ * the template it was issued for, so it cannot be replayed against a different query.
+ */
+final class PageTokens {
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  private PageTokens() {
+  }
+
+  static String encode(long lastId, FarmersMarketTemplate template) {
+    return ENCODING.encode(ReadFarmersMarketPageToken.newBuilder()
+        .setLastId(lastId)
+        .setTemplateFingerprint(fingerprint(template))
+        .build()
+        .toByteArray());
+  }
+
+  /**
+   * Returns the last Id recorded in the token.
+   *
+   * @throws IllegalArgumentException if the token is malformed or was issued for another template
+   */
+  static long decodeLastId(String pageToken, FarmersMarketTemplate template) {
+    ReadFarmersMarketPageToken token;
+    try {
+      token = ReadFarmersMarketPageToken.parseFrom(ENCODING.decode(pageToken));
+    } catch (IllegalArgumentException | InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException("Malformed page token", e);
+    }
+    if (token.getTemplateFingerprint() != fingerprint(template)) {
+      throw new IllegalArgumentException("Page token was issued for a different template");
+    }
+    return token.getLastId();
+  }
+
+  private static int fingerprint(FarmersMarketTemplate template) {
+    return Hashing.murmur3_32().hashBytes(template.toByteArray()).asInt();
+  }
+}
@@ -0,0 +1,123 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A SQLite connection on loan from a {@link SqliteConnectionPool}. Closing it hands the
+ * underlying connection back to the pool rather than closing it.
+ *
+ * <p>Each connection keeps the statements prepared through {@link #prepareCachedStatement} for
+ * as long as it stays open, so that hot queries are compiled once per connection.
+ */
+final class PooledConnection implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(PooledConnection.class.getName());
+
+  private static final int MAXIMUM_CACHED_STATEMENTS = 1024;
+
+  private final SqliteConnectionPool pool;
+  private final Connection connection;
+  private final Map<String, PreparedStatement> statementCache =
+      new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+          if (size() <= MAXIMUM_CACHED_STATEMENTS) {
+            return false;
+          }
+          closeStatement(eldest.getValue());
+          return true;
+        }
+      };
+  private long idleSinceNanos;
+  private boolean broken;
+
+  PooledConnection(SqliteConnectionPool pool, Connection connection) {
+    this.pool = pool;
+    this.connection = connection;
+    this.idleSinceNanos = System.nanoTime();
+  }
+
+  PreparedStatement prepareStatement(String sql) throws SQLException {
+    return connection.prepareStatement(sql);
+  }
+
+  /**
+   * Returns a prepared statement for the SQL, reusing the one prepared earlier on this connection
+   * if there is one. The statement stays owned by the connection: callers must close the result
+   * sets they open but not the statement itself.
+   */
+  PreparedStatement prepareCachedStatement(String sql) throws SQLException {
+    PreparedStatement statement = statementCache.get(sql);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+      statementCache.put(sql, statement);
+    } else {
+      statement.clearParameters();
+    }
+    return statement;
+  }
+
+  Statement createStatement() throws SQLException {
+    return connection.createStatement();
+  }
+
+  void setAutoCommit(boolean autoCommit) throws SQLException {
+    connection.setAutoCommit(autoCommit);
+  }
+
+  void commit() throws SQLException {
+    connection.commit();
+  }
+
+  void rollback() throws SQLException {
+    connection.rollback();
+  }
+
+  /** Marks the connection as unusable so that the pool discards it on release. */
+  void markBroken() {
+    broken = true;
+  }
+
+  boolean isBroken() {
+    return broken;
+  }
+
+  long getIdleSinceNanos() {
+    return idleSinceNanos;
+  }
+
+  void setIdleSinceNanos(long idleSinceNanos) {
+    this.idleSinceNanos = idleSinceNanos;
+  }
+
+  Connection getConnection() {
+    return connection;
+  }
+
+  void closeCachedStatements() {
+    for (PreparedStatement statement : statementCache.values()) {
+      closeStatement(statement);
+    }
+    statementCache.clear();
+  }
+
+  private static void closeStatement(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.release(this);
+  }
+}
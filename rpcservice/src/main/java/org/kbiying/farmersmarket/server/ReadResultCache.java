@@ -0,0 +1,72 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+
+/**
+ * Caches ReadFarmersMarket responses by the serialized request, which covers the template as well
+ * as the page size and page token. Entries are weighed by the number of markets they hold and
+ * evicted in approximately least-recently-used order.
+ *
+ * <p>Every committed create, update or delete empties the cache. A generation counter, bumped on
+ * each commit, keeps a read that overlapped a commit from storing a result that the commit may
+ * already have made stale.
+ */
+final class ReadResultCache implements MarketsChangeListener {
+
+  @FunctionalInterface
+  interface Loader {
+
+    ReadFarmersMarketResponse load() throws SQLException;
+  }
+
+  private final Cache<ByteString, ReadFarmersMarketResponse> cache;
+  private final AtomicLong generation = new AtomicLong();
+
+  ReadResultCache(long maximumMarkets) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maximumMarkets)
+        .weigher((ByteString request, ReadFarmersMarketResponse response) ->
+            response.getFarmersMarketCount() + 1)
+        .recordStats()
+        .build();
+  }
+
+  /** Returns the cached response to the request, loading and caching it if needed. */
+  ReadFarmersMarketResponse get(ReadFarmersMarketRequest request, Loader loader)
+      throws SQLException {
+    ByteString key = request.toByteString();
+    ReadFarmersMarketResponse response = cache.getIfPresent(key);
+    if (response != null) {
+      return response;
+    }
+    long loadGeneration = generation.get();
+    response = loader.load();
+    cache.put(key, response);
+    // A commit that raced with the load may have emptied the cache before the put above.
+    if (generation.get() != loadGeneration) {
+      cache.invalidate(key);
+    }
+    return response;
+  }
+
+  CacheStats getStats() {
+    return cache.stats();
+  }
+
+  long size() {
+    return cache.size();
+  }
+
+  @Override
+  public void afterCommit(MarketsChangeSet changes) {
+    generation.incrementAndGet();
+    cache.invalidateAll();
+  }
+}
@@ -0,0 +1,144 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executor that gRPC runs the service's handlers on, which is where all of its blocking
+ * SQLite work happens.
+ *
+ * <p>gRPC runs every callback of a call through this executor, not only its start, so tasks are
+ * never rejected: a message or half-close of a call already in progress must run for the call to
+ * finish. In {@link FarmersMarketServerOptions.ExecutorMode#FIXED} mode the backlog is bounded
+ * instead by {@link AdmissionControlInterceptor}, which fails calls that start while the queue
+ * holds its capacity of tasks. Tasks are counted as they are queued, started and finished, so
+ * that every mode reports the same statistics.
+ */
+final class RequestExecutor implements Executor, AutoCloseable {
+
+  private final FarmersMarketServerOptions.ExecutorMode mode;
+  private final ExecutorService delegate;
+  private final int maximumThreads;
+  private final int queueCapacity;
+  private final AtomicInteger queuedTasks = new AtomicInteger();
+  private final AtomicInteger activeTasks = new AtomicInteger();
+  private final AtomicInteger largestActiveTasks = new AtomicInteger();
+  private final AtomicLong completedTasks = new AtomicLong();
+  private final AtomicLong rejectedCalls = new AtomicLong();
+
+  RequestExecutor(FarmersMarketServerOptions options) {
+    this.mode = options.getExecutorMode();
+    ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setNameFormat("farmers-market-request-%d")
+        .setDaemon(true)
+        .build();
+    switch (mode) {
+      case FIXED:
+        this.maximumThreads = getFixedThreadCount(options);
+        this.queueCapacity = options.getExecutorQueueCapacity();
+        this.delegate = new ThreadPoolExecutor(maximumThreads, maximumThreads,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        break;
+      case VIRTUAL_THREADS:
+        this.maximumThreads = 0;
+        this.queueCapacity = 0;
+        this.delegate = newVirtualThreadPerTaskExecutor();
+        break;
+      case CACHED:
+        this.maximumThreads = 0;
+        this.queueCapacity = 0;
+        this.delegate = Executors.newCachedThreadPool(threadFactory);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown executor mode: " + mode);
+    }
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    queuedTasks.incrementAndGet();
+    delegate.execute(() -> {
+      queuedTasks.decrementAndGet();
+      int active = activeTasks.incrementAndGet();
+      largestActiveTasks.accumulateAndGet(active, Math::max);
+      try {
+        task.run();
+      } finally {
+        activeTasks.decrementAndGet();
+        completedTasks.incrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Returns whether a call starting now may proceed, which in FIXED mode it may not while the
+   * queue holds its capacity of tasks. Refused calls are counted.
+   */
+  boolean admitCall() {
+    if (queueCapacity == 0 || queuedTasks.get() < queueCapacity) {
+      return true;
+    }
+    rejectedCalls.incrementAndGet();
+    return false;
+  }
+
+  RequestExecutorStats getStats() {
+    return RequestExecutorStats.builder()
+        .setMode(mode)
+        .setMaximumThreads(maximumThreads)
+        .setQueueCapacity(queueCapacity)
+        .setQueueDepth(queuedTasks.get())
+        .setActiveThreads(activeTasks.get())
+        .setLargestActiveThreads(largestActiveTasks.get())
+        .setCompletedTaskCount(completedTasks.get())
+        .setRejectedCallCount(rejectedCalls.get())
+        .build();
+  }
+
+  @Override
+  public void close() {
+    delegate.shutdown();
+    try {
+      delegate.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the configured number of threads or, by default, one per read connection plus one for
+   * calls waiting on the WAL writer thread. More threads would only wait for a connection.
+   */
+  private static int getFixedThreadCount(FarmersMarketServerOptions options) {
+    if (options.getExecutorThreads() > 0) {
+      return options.getExecutorThreads();
+    }
+    return options.getConnectionPoolSize()
+        + (options.getStorageMode() == FarmersMarketServerOptions.StorageMode.WAL ? 1 : 0);
+  }
+
+  /**
+   * Returns {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up reflectively because
+   * the service is built for Java 8.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("Virtual threads need Java 21 or later", e);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("Could not create a virtual thread executor", e);
+    }
+  }
+}
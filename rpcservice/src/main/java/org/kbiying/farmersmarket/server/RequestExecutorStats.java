@@ -0,0 +1,39 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+abstract class RequestExecutorStats {
+
+  abstract FarmersMarketServerOptions.ExecutorMode getMode();
+
+  /** Maximum number of tasks run at once, or zero if unbounded. */
+  abstract int getMaximumThreads();
+
+  /** Number of waiting tasks at which new calls are refused, or zero if never. */
+  abstract int getQueueCapacity();
+
+  abstract int getQueueDepth();
+  abstract int getActiveThreads();
+  abstract int getLargestActiveThreads();
+  abstract long getCompletedTaskCount();
+  abstract long getRejectedCallCount();
+
+  static Builder builder() {
+    return new AutoValue_RequestExecutorStats.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+
+    abstract Builder setMode(FarmersMarketServerOptions.ExecutorMode mode);
+    abstract Builder setMaximumThreads(int maximumThreads);
+    abstract Builder setQueueCapacity(int queueCapacity);
+    abstract Builder setQueueDepth(int queueDepth);
+    abstract Builder setActiveThreads(int activeThreads);
+    abstract Builder setLargestActiveThreads(int largestActiveThreads);
+    abstract Builder setCompletedTaskCount(long completedTaskCount);
+    abstract Builder setRejectedCallCount(long rejectedCallCount);
+    abstract RequestExecutorStats build();
+  }
+}
@@ -0,0 +1,222 @@
+package org.kbiying.farmersmarket.server;
+
+import io.grpc.Status;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import org.kbiying.farmersmarket.metrics.LatencyHistogram;
+
+/**
+ * Latency histograms, in-flight counts and error counts per RPC method, latency histograms per
+ * {@link StoragePhase}, and gauges read from the server's components when the metrics are
+ * exported.
+ */
+final class ServerMetrics {
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String PREFIX = "farmers_market_";
+
+  // Row mapping happens inside static helpers, so it is summed per thread and collected by the
+  // transaction that did it.
+  private static final ThreadLocal<long[]> rowMappingNanos =
+      ThreadLocal.withInitial(() -> new long[1]);
+
+  /** The metrics of one RPC method. */
+  static final class MethodMetrics {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder callCount = new LongAdder();
+    private final ConcurrentMap<Status.Code, LongAdder> errorCounts = new ConcurrentHashMap<>();
+
+    void callStarted() {
+      inFlight.incrementAndGet();
+      callCount.increment();
+    }
+
+    void callFinished(Status status, long nanos) {
+      inFlight.decrementAndGet();
+      latency.record(nanos);
+      if (!status.isOk()) {
+        errorCounts.computeIfAbsent(status.getCode(), code -> new LongAdder()).increment();
+      }
+    }
+
+    LatencyHistogram.Snapshot getLatency() {
+      return latency.snapshot();
+    }
+
+    int getInFlight() {
+      return inFlight.get();
+    }
+
+    long getCallCount() {
+      return callCount.sum();
+    }
+
+    long getErrorCount() {
+      long errorCount = 0;
+      for (LongAdder count : errorCounts.values()) {
+        errorCount += count.sum();
+      }
+      return errorCount;
+    }
+  }
+
+  private static final class Gauge {
+
+    final String type;
+    final String help;
+    final DoubleSupplier value;
+
+    Gauge(String type, String help, DoubleSupplier value) {
+      this.type = type;
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private final ConcurrentSkipListMap<String, MethodMetrics> methods =
+      new ConcurrentSkipListMap<>();
+  private final Map<StoragePhase, LatencyHistogram> storagePhases =
+      new EnumMap<>(StoragePhase.class);
+  private final SortedMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+  ServerMetrics() {
+    for (StoragePhase phase : StoragePhase.values()) {
+      storagePhases.put(phase, new LatencyHistogram());
+    }
+  }
+
+  MethodMetrics getMethodMetrics(String method) {
+    return methods.computeIfAbsent(method, name -> new MethodMetrics());
+  }
+
+  /** Returns the metrics of every method called so far, by method name. */
+  SortedMap<String, MethodMetrics> getAllMethodMetrics() {
+    return methods;
+  }
+
+  void recordStoragePhase(StoragePhase phase, long nanos) {
+    storagePhases.get(phase).record(nanos);
+  }
+
+  LatencyHistogram.Snapshot getStoragePhase(StoragePhase phase) {
+    return storagePhases.get(phase).snapshot();
+  }
+
+  /** Registers a value that can go up and down, read each time the metrics are exported. */
+  void registerGauge(String name, String help, DoubleSupplier value) {
+    gauges.put(name, new Gauge("gauge", help, value));
+  }
+
+  /** Registers a value that only goes up, read each time the metrics are exported. */
+  void registerCounter(String name, String help, DoubleSupplier value) {
+    gauges.put(name, new Gauge("counter", help, value));
+  }
+
+  /** Returns the current value of every registered gauge and counter, by name. */
+  SortedMap<String, Double> getGaugeValues() {
+    SortedMap<String, Double> values = new TreeMap<>();
+    for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().value.getAsDouble());
+    }
+    return values;
+  }
+
+  static void addRowMappingNanos(long nanos) {
+    rowMappingNanos.get()[0] += nanos;
+  }
+
+  /** Returns the row mapping time summed on this thread since the last call, and resets it. */
+  static long takeRowMappingNanos() {
+    long[] nanos = rowMappingNanos.get();
+    long taken = nanos[0];
+    nanos[0] = 0;
+    return taken;
+  }
+
+  /** Renders every metric in the Prometheus text exposition format. */
+  String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+
+    String latencyName = PREFIX + "rpc_latency_seconds";
+    appendHeader(text, latencyName, "summary", "Latency of completed calls by method.");
+    for (Map.Entry<String, MethodMetrics> method : methods.entrySet()) {
+      appendSummary(text, latencyName, "method", method.getKey(),
+          method.getValue().getLatency());
+    }
+
+    String inFlightName = PREFIX + "rpc_in_flight";
+    appendHeader(text, inFlightName, "gauge", "Calls started and not yet finished by method.");
+    for (Map.Entry<String, MethodMetrics> method : methods.entrySet()) {
+      appendSample(text, inFlightName, "method=\"" + method.getKey() + "\"",
+          method.getValue().getInFlight());
+    }
+
+    String callsName = PREFIX + "rpc_calls_total";
+    appendHeader(text, callsName, "counter", "Calls started by method.");
+    for (Map.Entry<String, MethodMetrics> method : methods.entrySet()) {
+      appendSample(text, callsName, "method=\"" + method.getKey() + "\"",
+          method.getValue().getCallCount());
+    }
+
+    String errorsName = PREFIX + "rpc_errors_total";
+    appendHeader(text, errorsName, "counter", "Calls finished with a status other than OK.");
+    for (Map.Entry<String, MethodMetrics> method : methods.entrySet()) {
+      for (Map.Entry<Status.Code, LongAdder> error
+          : method.getValue().errorCounts.entrySet()) {
+        appendSample(text, errorsName,
+            "method=\"" + method.getKey() + "\",code=\"" + error.getKey() + "\"",
+            error.getValue().sum());
+      }
+    }
+
+    String phaseName = PREFIX + "storage_phase_seconds";
+    appendHeader(text, phaseName, "summary", "Time spent in each storage phase.");
+    for (StoragePhase phase : StoragePhase.values()) {
+      appendSummary(text, phaseName, "phase", phase.name().toLowerCase(Locale.ROOT),
+          getStoragePhase(phase));
+    }
+
+    for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+      String name = PREFIX + gauge.getKey();
+      appendHeader(text, name, gauge.getValue().type, gauge.getValue().help);
+      appendSample(text, name, null, gauge.getValue().value.getAsDouble());
+    }
+    return text.toString();
+  }
+
+  private static void appendHeader(StringBuilder text, String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void appendSummary(StringBuilder text, String name, String labelName,
+      String labelValue, LatencyHistogram.Snapshot snapshot) {
+    String label = labelName + "=\"" + labelValue + "\"";
+    for (double quantile : QUANTILES) {
+      appendSample(text, name, label + ",quantile=\"" + quantile + "\"",
+          snapshot.getValueAtQuantile(quantile) / 1e9);
+    }
+    appendSample(text, name + "_sum", label, snapshot.getSumNanos() / 1e9);
+    appendSample(text, name + "_count", label, snapshot.getCount());
+  }
+
+  private static void appendSample(StringBuilder text, String name, String labels,
+      double value) {
+    text.append(name);
+    if (labels != null) {
+      text.append('{').append(labels).append('}');
+    }
+    text.append(' ').append(value).append('\n');
+  }
+}
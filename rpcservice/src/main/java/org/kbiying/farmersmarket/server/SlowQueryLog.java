@@ -0,0 +1,99 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.collect.ImmutableList;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the most recent statements that ran longer than a threshold in a fixed-size ring buffer,
+ * each with the query plan SQLite chose for it.
+ *
+ * <p>The plan is captured on the same connection right after the slow statement, so only slow
+ * statements pay for the extra {@code EXPLAIN QUERY PLAN}. Fast statements cost one clock read.
+ */
+final class SlowQueryLog {
+
+  private static final Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+
+  private final long thresholdNanos;
+  private final int capacity;
+  private final ArrayDeque<SlowQueryRecord> slowQueries;
+
+  SlowQueryLog(Duration threshold, int capacity) {
+    this.thresholdNanos = threshold.toNanos();
+    this.capacity = capacity;
+    this.slowQueries = new ArrayDeque<>(capacity);
+  }
+
+  /**
+   * Records the statement if it has run for longer than the threshold since {@code startNanos}.
+   * The statement's parameters are not needed, since SQLite plans a statement before binding.
+   */
+  void recordIfSlow(PooledConnection connection, String sql, int fieldMask, long rowCount,
+      long startNanos) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    if (capacity == 0 || elapsedNanos < thresholdNanos) {
+      return;
+    }
+    ImmutableList<String> queryPlan;
+    try {
+      queryPlan = explainQueryPlan(connection, sql);
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Could not explain slow query: " + sql, e);
+      queryPlan = ImmutableList.of();
+    }
+    SlowQueryRecord slowQuery = SlowQueryRecord.create(
+        Instant.now().minusNanos(elapsedNanos),
+        sql,
+        fieldMask,
+        rowCount,
+        Duration.ofNanos(elapsedNanos),
+        queryPlan);
+    logger.log(Level.INFO, "Slow query: {0}", slowQuery);
+    synchronized (slowQueries) {
+      if (slowQueries.size() == capacity) {
+        slowQueries.removeFirst();
+      }
+      slowQueries.addLast(slowQuery);
+    }
+  }
+
+  /** Returns the recorded slow queries, most recent first, and optionally forgets them. */
+  List<SlowQueryRecord> getSlowQueries(boolean clear) {
+    synchronized (slowQueries) {
+      List<SlowQueryRecord> mostRecentFirst = new ArrayList<>(slowQueries.size());
+      slowQueries.descendingIterator().forEachRemaining(mostRecentFirst::add);
+      if (clear) {
+        slowQueries.clear();
+      }
+      return mostRecentFirst;
+    }
+  }
+
+  private static ImmutableList<String> explainQueryPlan(PooledConnection connection, String sql)
+      throws SQLException {
+    ImmutableList.Builder<String> queryPlan = ImmutableList.builder();
+    // The SQLite bundled with sqlite-jdbc 3.20.1 returns rows of (selectid, order, from, detail),
+    // where selectid numbers the subquery a row belongs to, starting at zero for the outer query.
+    try (PreparedStatement explain = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+        ResultSet resultSet = explain.executeQuery()) {
+      while (resultSet.next()) {
+        int depth = resultSet.getInt(1);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+          line.append("  ");
+        }
+        queryPlan.add(line.append(resultSet.getString(4)).toString());
+      }
+    }
+    return queryPlan.build();
+  }
+}
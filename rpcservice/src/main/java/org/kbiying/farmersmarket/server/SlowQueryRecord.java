@@ -0,0 +1,30 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.time.Instant;
+
+/** A statement that took longer than the slow query threshold, with SQLite's plan for it. */
+@AutoValue
+abstract class SlowQueryRecord {
+
+  abstract Instant getStartTime();
+  abstract String getSql();
+
+  /** The template fields bound into the statement, as a {@link TemplateQueries} field mask. */
+  abstract int getFieldMask();
+
+  /** Rows returned by a query, or changed by an update, delete or batch. */
+  abstract long getRowCount();
+
+  abstract Duration getElapsed();
+
+  /** The {@code EXPLAIN QUERY PLAN} lines for the statement, indented by depth. */
+  abstract ImmutableList<String> getQueryPlan();
+
+  static SlowQueryRecord create(Instant startTime, String sql, int fieldMask, long rowCount,
+      Duration elapsed, ImmutableList<String> queryPlan) {
+    return new AutoValue_SlowQueryRecord(startTime, sql, fieldMask, rowCount, elapsed, queryPlan);
+  }
+}
@@ -0,0 +1,220 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of SQLite connections to a single database file.
+ *
+ * <p>Connections are opened lazily up to the maximum size, have their PRAGMAs applied once when
+ * opened, and are reused most-recently-released first so that hot connections keep a warm page
+ * cache. Idle connections above the configured minimum are closed once they have been idle for
+ * longer than the idle timeout.
+ */
+final class SqliteConnectionPool implements AutoCloseable {
+
+  private static final Logger logger = Logger.getLogger(SqliteConnectionPool.class.getName());
+
+  private static final Duration MINIMUM_EVICTION_PERIOD = Duration.ofSeconds(1);
+
+  private final String url;
+  private final Properties connectionProperties;
+  private final ImmutableList<String> pragmas;
+  private final int maximumSize;
+  private final int minimumIdle;
+  private final long idleTimeoutNanos;
+  private final long acquireTimeoutNanos;
+
+  private final Semaphore permits;
+  private final BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final AtomicInteger pendingAcquires = new AtomicInteger();
+  private final LongAdder acquireCount = new LongAdder();
+  private final LongAdder createdCount = new LongAdder();
+  private final LongAdder closedCount = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maximumWaitNanos = new AtomicLong();
+  private final ScheduledExecutorService evictor;
+  private volatile boolean closed;
+
+  SqliteConnectionPool(
+      String sqliteDbPath,
+      Properties connectionProperties,
+      List<String> pragmas,
+      int maximumSize,
+      int minimumIdle,
+      Duration idleTimeout,
+      Duration acquireTimeout) throws SQLException {
+    this.url = "jdbc:sqlite:" + sqliteDbPath;
+    this.connectionProperties = connectionProperties;
+    this.pragmas = ImmutableList.copyOf(pragmas);
+    this.maximumSize = maximumSize;
+    this.minimumIdle = minimumIdle;
+    this.idleTimeoutNanos = idleTimeout.toNanos();
+    this.acquireTimeoutNanos = acquireTimeout.toNanos();
+    this.permits = new Semaphore(maximumSize, true);
+
+    for (int i = 0; i < minimumIdle; i++) {
+      idleConnections.offerFirst(openConnection());
+    }
+
+    this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("sqlite-pool-evictor-%d")
+        .setDaemon(true)
+        .build());
+    long evictionPeriodNanos = Math.max(idleTimeoutNanos / 2, MINIMUM_EVICTION_PERIOD.toNanos());
+    evictor.scheduleWithFixedDelay(
+        this::evictIdleConnections, evictionPeriodNanos, evictionPeriodNanos,
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Borrows a connection from the pool, waiting up to the acquire timeout for one to become free.
+   * The connection must be returned by closing it.
+   */
+  PooledConnection acquire() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+    long startNanos = System.nanoTime();
+    pendingAcquires.incrementAndGet();
+    try {
+      if (!permits.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS)) {
+        throw new SQLTimeoutException(
+            "Timed out waiting for a connection from a pool of " + maximumSize);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", e);
+    } finally {
+      pendingAcquires.decrementAndGet();
+    }
+    recordWait(System.nanoTime() - startNanos);
+
+    try {
+      PooledConnection connection = idleConnections.pollFirst();
+      return connection != null ? connection : openConnection();
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  void release(PooledConnection connection) {
+    try {
+      if (!connection.isBroken() && !closed) {
+        Connection underlyingConnection = connection.getConnection();
+        if (!underlyingConnection.getAutoCommit()) {
+          underlyingConnection.rollback();
+          underlyingConnection.setAutoCommit(true);
+        }
+        connection.setIdleSinceNanos(System.nanoTime());
+        idleConnections.offerFirst(connection);
+      } else {
+        closeConnection(connection);
+      }
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Discarding connection that could not be reset", e);
+      closeConnection(connection);
+    } finally {
+      permits.release();
+    }
+  }
+
+  ConnectionPoolStats getStats() {
+    int idle = idleConnections.size();
+    return ConnectionPoolStats.builder()
+        .setMaximumSize(maximumSize)
+        .setOpenConnections(openConnections.get())
+        .setIdleConnections(idle)
+        .setActiveConnections(maximumSize - permits.availablePermits())
+        .setPendingAcquires(pendingAcquires.get())
+        .setAcquireCount(acquireCount.sum())
+        .setCreatedCount(createdCount.sum())
+        .setClosedCount(closedCount.sum())
+        .setTotalWaitTime(Duration.ofNanos(totalWaitNanos.sum()))
+        .setMaximumWaitTime(Duration.ofNanos(maximumWaitNanos.get()))
+        .build();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    evictor.shutdownNow();
+    PooledConnection connection;
+    while ((connection = idleConnections.pollFirst()) != null) {
+      closeConnection(connection);
+    }
+  }
+
+  private PooledConnection openConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(url, connectionProperties);
+    try (Statement statement = connection.createStatement()) {
+      for (String pragma : pragmas) {
+        statement.execute(pragma);
+      }
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+    openConnections.incrementAndGet();
+    createdCount.increment();
+    return new PooledConnection(this, connection);
+  }
+
+  private void closeConnection(PooledConnection connection) {
+    connection.closeCachedStatements();
+    try {
+      connection.getConnection().close();
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, e.getMessage(), e);
+    }
+    openConnections.decrementAndGet();
+    closedCount.increment();
+  }
+
+  private void recordWait(long waitNanos) {
+    acquireCount.increment();
+    totalWaitNanos.add(waitNanos);
+    long currentMaximum;
+    do {
+      currentMaximum = maximumWaitNanos.get();
+    } while (waitNanos > currentMaximum
+        && !maximumWaitNanos.compareAndSet(currentMaximum, waitNanos));
+  }
+
+  private void evictIdleConnections() {
+    long now = System.nanoTime();
+    // The oldest idle connections sit at the tail of the deque.
+    while (idleConnections.size() > minimumIdle) {
+      PooledConnection connection = idleConnections.pollLast();
+      if (connection == null) {
+        return;
+      }
+      if (now - connection.getIdleSinceNanos() < idleTimeoutNanos) {
+        idleConnections.offerLast(connection);
+        return;
+      }
+      closeConnection(connection);
+    }
+  }
+}
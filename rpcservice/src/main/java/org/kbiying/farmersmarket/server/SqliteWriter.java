@@ -0,0 +1,61 @@
+package org.kbiying.farmersmarket.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes all database mutations onto one dedicated thread, so that writers queue up in the
+ * JVM instead of contending for SQLite's database lock.
+ */
+final class SqliteWriter implements AutoCloseable {
+
+  private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      1, 1, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<>(),
+      new ThreadFactoryBuilder().setNameFormat("sqlite-writer-%d").setDaemon(true).build());
+
+  /** Runs the write on the writer thread and blocks until it has completed. */
+  <T> T submit(Callable<T> write) throws SQLException {
+    Future<T> future = executor.submit(write);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the writer thread", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SQLException(cause);
+    }
+  }
+
+  /** Number of writes waiting for the writer thread. */
+  int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package org.kbiying.farmersmarket.server;
+
+/** The parts of serving a call that {@link ServerMetrics} times separately. */
+enum StoragePhase {
+  /** Waiting for a pooled SQLite connection, once per transaction. */
+  CONNECTION_ACQUIRE,
+  /** Running a transaction's statements and committing it, less the time spent mapping rows. */
+  SQL_EXECUTE,
+  /** Turning rows into FarmersMarket messages, summed over each transaction that read rows. */
+  ROW_MAPPING,
+  /** Serializing and framing a response message, once per message sent. */
+  SERIALIZATION
+}
@@ -0,0 +1,236 @@
+package org.kbiying.farmersmarket.server;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+/**
+ * Builds SQL for {@link FarmersMarketTemplate} lookups that only mentions the fields a template
+ * actually sets, so that SQLite can plan each shape against the matching index.
+ *
+ * <p>A template's shape is captured by its field mask, with one bit per column in {@link
+ * #COLUMNS} order. The SQL for each of the 512 possible masks is rendered once, and since pooled
+ * connections cache their prepared statements by SQL text, each shape is prepared at most once
+ * per connection.
+ */
+final class TemplateQueries {
+
+  static final String[] COLUMNS = {
+      "Id", "Name", "Address", "City", "County", "State", "Zip", "Lat", "Long"};
+
+  static final int ID = 1;
+  static final int NAME = 1 << 1;
+  static final int ADDRESS = 1 << 2;
+  static final int CITY = 1 << 3;
+  static final int COUNTY = 1 << 4;
+  static final int STATE = 1 << 5;
+  static final int ZIP = 1 << 6;
+  static final int LAT = 1 << 7;
+  static final int LONG = 1 << 8;
+
+  static final int FIELD_MASK_COUNT = 1 << COLUMNS.length;
+
+  static final String SELECT_MARKETS =
+      "SELECT Id, Name, Address, City, County, State, Zip, Lat, Long FROM Markets";
+
+  /** Number of Ids bound per statement when looking markets up by a list of Ids. */
+  static final int ID_CHUNK_SIZE = 100;
+
+  private static final String ID_CHUNK_PARAMETERS = renderIdChunkParameters();
+  private static final String SELECT_BY_IDS_SQL =
+      SELECT_MARKETS + " WHERE Id IN (" + ID_CHUNK_PARAMETERS + ") ORDER BY Id";
+
+  private static final String[] WHERE_CLAUSES = new String[FIELD_MASK_COUNT];
+  private static final String[] SET_CLAUSES = new String[FIELD_MASK_COUNT];
+  private static final String[] SELECT_SQL = new String[FIELD_MASK_COUNT];
+  private static final String[] SELECT_AFTER_ID_SQL = new String[FIELD_MASK_COUNT];
+  private static final String[] DELETE_SQL = new String[FIELD_MASK_COUNT];
+
+  static {
+    for (int fieldMask = 0; fieldMask < FIELD_MASK_COUNT; fieldMask++) {
+      WHERE_CLAUSES[fieldMask] = renderWhereClause(fieldMask);
+      SELECT_SQL[fieldMask] = SELECT_MARKETS + " WHERE " + WHERE_CLAUSES[fieldMask];
+      SELECT_AFTER_ID_SQL[fieldMask] = SELECT_SQL[fieldMask] + " AND Id > ? ORDER BY Id LIMIT ?";
+      DELETE_SQL[fieldMask] = "DELETE FROM Markets WHERE " + WHERE_CLAUSES[fieldMask];
+      SET_CLAUSES[fieldMask] = renderSetClause(fieldMask);
+    }
+  }
+
+  private TemplateQueries() {
+  }
+
+  static int getFieldMask(FarmersMarketTemplate template) {
+    int fieldMask = 0;
+    if (template.hasId()) {
+      fieldMask |= ID;
+    }
+    if (template.hasName()) {
+      fieldMask |= NAME;
+    }
+    if (template.hasAddress()) {
+      fieldMask |= ADDRESS;
+    }
+    if (template.hasCity()) {
+      fieldMask |= CITY;
+    }
+    if (template.hasCounty()) {
+      fieldMask |= COUNTY;
+    }
+    if (template.hasState()) {
+      fieldMask |= STATE;
+    }
+    if (template.hasZip()) {
+      fieldMask |= ZIP;
+    }
+    if (template.hasLat()) {
+      fieldMask |= LAT;
+    }
+    if (template.hasLong()) {
+      fieldMask |= LONG;
+    }
+    return fieldMask;
+  }
+
+  /**
+   * Returns the conjunction of equality predicates for the fields in the mask, or {@code 1} when
+   * the mask is empty, with one positional parameter per field in {@link #COLUMNS} order.
+   */
+  static String getWhereClause(int fieldMask) {
+    return WHERE_CLAUSES[fieldMask];
+  }
+
+  /** Returns {@link #SELECT_MARKETS} filtered by {@link #getWhereClause}. */
+  static String getSelectSql(int fieldMask) {
+    return SELECT_SQL[fieldMask];
+  }
+
+  /**
+   * Returns {@link #getSelectSql} restricted to rows with an Id greater than a bound, in Id order
+   * and up to a row limit. The bound and the limit are the two parameters after the template's.
+   * Walking a result set with it costs the same per chunk no matter how deep into the result.
+   */
+  static String getSelectAfterIdSql(int fieldMask) {
+    return SELECT_AFTER_ID_SQL[fieldMask];
+  }
+
+  /** Returns a DELETE of the markets matching {@link #getWhereClause}. */
+  static String getDeleteSql(int fieldMask) {
+    return DELETE_SQL[fieldMask];
+  }
+
+  /**
+   * Returns {@link #SELECT_MARKETS} for the markets whose Id is among {@link #ID_CHUNK_SIZE}
+   * parameters, in Id order. Bind the parameters with {@link #bindIdChunk}.
+   */
+  static String getSelectByIdsSql() {
+    return SELECT_BY_IDS_SQL;
+  }
+
+  /**
+   * Returns an UPDATE of the columns in {@code updateMask} for the markets matching the columns
+   * in {@code conditionMask}. The new values are bound first, then the conditions, both in
+   * {@link #COLUMNS} order. The update mask must not be empty.
+   */
+  static String getUpdateSql(int updateMask, int conditionMask) {
+    if (updateMask == 0) {
+      throw new IllegalArgumentException("An update needs at least one column");
+    }
+    return "UPDATE Markets SET " + SET_CLAUSES[updateMask]
+        + " WHERE " + WHERE_CLAUSES[conditionMask];
+  }
+
+  /**
+   * Binds up to {@link #ID_CHUNK_SIZE} Ids starting at {@code chunkStart} to the parameters of
+   * an {@code IN} list, padding the rest of the list with NULL, which matches nothing.
+   */
+  static void bindIdChunk(PreparedStatement statement, List<Long> ids, int chunkStart)
+      throws SQLException {
+    for (int i = 0; i < ID_CHUNK_SIZE; i++) {
+      if (chunkStart + i < ids.size()) {
+        statement.setLong(i + 1, ids.get(chunkStart + i));
+      } else {
+        statement.setNull(i + 1, Types.INTEGER);
+      }
+    }
+  }
+
+  /**
+   * Binds the fields set in the template to consecutive parameters starting at {@code
+   * firstIndex}, matching the order of {@link #getWhereClause}, and returns the index of the next
+   * unbound parameter.
+   */
+  static int bindTemplate(PreparedStatement statement, int firstIndex,
+      FarmersMarketTemplate template) throws SQLException {
+    int index = firstIndex;
+    if (template.hasId()) {
+      statement.setLong(index++, template.getId().getValue());
+    }
+    if (template.hasName()) {
+      statement.setString(index++, template.getName().getValue());
+    }
+    if (template.hasAddress()) {
+      statement.setString(index++, template.getAddress().getValue());
+    }
+    if (template.hasCity()) {
+      statement.setString(index++, template.getCity().getValue());
+    }
+    if (template.hasCounty()) {
+      statement.setString(index++, template.getCounty().getValue());
+    }
+    if (template.hasState()) {
+      statement.setString(index++, template.getState().getValue());
+    }
+    if (template.hasZip()) {
+      statement.setString(index++, template.getZip().getValue());
+    }
+    if (template.hasLat()) {
+      statement.setDouble(index++, template.getLat().getValue());
+    }
+    if (template.hasLong()) {
+      statement.setDouble(index++, template.getLong().getValue());
+    }
+    return index;
+  }
+
+  private static String renderSetClause(int fieldMask) {
+    StringBuilder setClause = new StringBuilder();
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if ((fieldMask & (1 << column)) != 0) {
+        if (setClause.length() > 0) {
+          setClause.append(", ");
+        }
+        setClause.append(COLUMNS[column]).append(" = ?");
+      }
+    }
+    return setClause.toString();
+  }
+
+  private static String renderIdChunkParameters() {
+    StringBuilder parameters = new StringBuilder();
+    for (int i = 0; i < ID_CHUNK_SIZE; i++) {
+      if (i > 0) {
+        parameters.append(", ");
+      }
+      parameters.append('?');
+    }
+    return parameters.toString();
+  }
+
+  private static String renderWhereClause(int fieldMask) {
+    if (fieldMask == 0) {
+      return "1";
+    }
+    StringBuilder whereClause = new StringBuilder();
+    for (int column = 0; column < COLUMNS.length; column++) {
+      if ((fieldMask & (1 << column)) != 0) {
+        if (whereClause.length() > 0) {
+          whereClause.append(" AND ");
+        }
+        whereClause.append(COLUMNS[column]).append(" = ?");
+      }
+    }
+    return whereClause.toString();
+  }
+}
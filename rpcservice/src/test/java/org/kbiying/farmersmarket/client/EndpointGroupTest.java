@@ -0,0 +1,88 @@
+package org.kbiying.farmersmarket.client;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
+
+@RunWith(JUnit4.class)
+public class EndpointGroupTest {
+
+  private final BlockingQueue<StreamObserver<EchoFarmersMarketResponse>> heldEchoes =
+      new LinkedBlockingQueue<>();
+
+  private Server server;
+  private EndpointGroup endpoints;
+
+  @Before
+  public void setUp() throws Exception {
+    // A server that answers echoes only when the test tells it to, so they stay outstanding.
+    server = ServerBuilder.forPort(0)
+        .addService(new FarmersMarketServiceGrpc.FarmersMarketServiceImplBase() {
+          @Override
+          public void echoFarmersMarket(EchoFarmersMarketRequest request,
+              StreamObserver<EchoFarmersMarketResponse> responseObserver) {
+            heldEchoes.add(responseObserver);
+          }
+        })
+        .build()
+        .start();
+    FarmersMarketServerAddress address =
+        FarmersMarketServerAddress.of("localhost", server.getPort());
+    // Both replicas are the same server, but each has its own channel and call count.
+    endpoints = new EndpointGroup(FarmersMarketClientOptions.builder(address)
+        .setReplicas(ImmutableList.of(address, address))
+        .setLoadBalancingPolicy(FarmersMarketClientOptions.LoadBalancingPolicy.LEAST_OUTSTANDING)
+        .setHealthCheckInterval(Duration.ZERO)
+        .build());
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    endpoints.shutdown(Duration.ofSeconds(5));
+    server.shutdownNow();
+  }
+
+  @Test(timeout = 30_000)
+  public void testLeastOutstandingPicksTheLeastBusyReplica() throws Exception {
+    Endpoint busy = endpoints.pickReplica();
+    ListenableFuture<EchoFarmersMarketResponse> echo = busy.getFutureStub()
+        .echoFarmersMarket(EchoFarmersMarketRequest.getDefaultInstance());
+    assertThat(busy.getOutstandingCalls()).isEqualTo(1);
+
+    // Round-robin would send every other read to the busy replica.
+    Endpoint idle = endpoints.pickReplica();
+    assertThat(idle).isNotSameAs(busy);
+    assertThat(idle).isNotSameAs(endpoints.getPrimary());
+    for (int i = 0; i < 10; i++) {
+      assertThat(endpoints.pickReplica()).isSameAs(idle);
+    }
+
+    // Once the call completes the replicas are tied, and reads rotate between them again.
+    StreamObserver<EchoFarmersMarketResponse> heldEcho = heldEchoes.poll(10, TimeUnit.SECONDS);
+    if (heldEcho == null) {
+      throw new AssertionError("Expected the echo to reach the server");
+    }
+    heldEcho.onNext(EchoFarmersMarketResponse.getDefaultInstance());
+    heldEcho.onCompleted();
+    echo.get(10, TimeUnit.SECONDS);
+    assertThat(busy.getOutstandingCalls()).isEqualTo(0);
+    Endpoint picked = endpoints.pickReplica();
+    assertThat(endpoints.pickReplica()).isNotSameAs(picked);
+  }
+}
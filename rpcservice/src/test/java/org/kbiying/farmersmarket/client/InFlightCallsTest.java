@@ -0,0 +1,152 @@
+package org.kbiying.farmersmarket.client;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
+
+/**
+ * Tests that the future-based methods of {@link FarmersMarketClient} hold back calls beyond the
+ * maximum in flight, against a server that answers only when the test tells it to.
+ */
+@RunWith(JUnit4.class)
+public class InFlightCallsTest {
+
+  private static final int MAX_IN_FLIGHT_CALLS = 2;
+  private static final Duration DEADLINE = Duration.ofSeconds(30);
+  // How long a call that should be held back is given to reach the server anyway.
+  private static final long HELD_BACK_MILLIS = 200;
+
+  private final BlockingQueue<PendingEcho> pendingEchoes = new LinkedBlockingQueue<>();
+  private final ExecutorService caller = Executors.newSingleThreadExecutor();
+
+  private Server server;
+  private FarmersMarketClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = ServerBuilder.forPort(0)
+        .addService(new FarmersMarketServiceGrpc.FarmersMarketServiceImplBase() {
+          @Override
+          public void echoFarmersMarket(EchoFarmersMarketRequest request,
+              StreamObserver<EchoFarmersMarketResponse> responseObserver) {
+            pendingEchoes.add(new PendingEcho(request, responseObserver));
+          }
+        })
+        .build()
+        .start();
+    client = new FarmersMarketClient(
+        FarmersMarketServerAddress.of("localhost", server.getPort()), MAX_IN_FLIGHT_CALLS);
+  }
+
+  @After
+  public void tearDown() {
+    caller.shutdownNow();
+    client.shutdown(Duration.ofSeconds(5));
+    server.shutdownNow();
+  }
+
+  @Test(timeout = 30_000)
+  public void testCallsBeyondTheMaximumWaitForAPermit() throws Exception {
+    ListenableFuture<FarmersMarket> first = client.echoAsync(newFarmersMarket("first"), DEADLINE);
+    ListenableFuture<FarmersMarket> second =
+        client.echoAsync(newFarmersMarket("second"), DEADLINE);
+    Map<String, PendingEcho> started = takePendingEchoes(MAX_IN_FLIGHT_CALLS);
+
+    // The third call blocks its caller until one of the first two completes.
+    Future<ListenableFuture<FarmersMarket>> third =
+        caller.submit(() -> client.echoAsync(newFarmersMarket("third"), DEADLINE));
+    assertHeldBack(third);
+
+    // A call that fails gives its permit back too.
+    started.get("first").responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+    started.putAll(takePendingEchoes(1));
+    ListenableFuture<FarmersMarket> thirdResponse = third.get(10, TimeUnit.SECONDS);
+    try {
+      first.get();
+      throw new AssertionError("Expected the first call to fail");
+    } catch (ExecutionException e) {
+      assertThat(Status.fromThrowable(e.getCause()).getCode())
+          .isEqualTo(Status.Code.UNAVAILABLE);
+    }
+
+    Future<ListenableFuture<FarmersMarket>> fourth =
+        caller.submit(() -> client.echoAsync(newFarmersMarket("fourth"), DEADLINE));
+    assertHeldBack(fourth);
+
+    started.get("second").complete();
+    started.putAll(takePendingEchoes(1));
+    ListenableFuture<FarmersMarket> fourthResponse = fourth.get(10, TimeUnit.SECONDS);
+    started.get("third").complete();
+    started.get("fourth").complete();
+
+    assertThat(second.get().getName()).isEqualTo("second");
+    assertThat(thirdResponse.get().getName()).isEqualTo("third");
+    assertThat(fourthResponse.get().getName()).isEqualTo("fourth");
+  }
+
+  /** Checks that a call started on the caller thread neither returns nor reaches the server. */
+  private void assertHeldBack(Future<?> call) throws InterruptedException {
+    assertThat(pendingEchoes.poll(HELD_BACK_MILLIS, TimeUnit.MILLISECONDS)).isNull();
+    assertThat(call.isDone()).isFalse();
+  }
+
+  /** Waits for the server to receive the calls and returns them by market name. */
+  private Map<String, PendingEcho> takePendingEchoes(int count) throws InterruptedException {
+    Map<String, PendingEcho> taken = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      PendingEcho pendingEcho = pendingEchoes.poll(10, TimeUnit.SECONDS);
+      if (pendingEcho == null) {
+        throw new AssertionError("Expected a call to reach the server");
+      }
+      taken.put(pendingEcho.request.getFarmersMarket().getName(), pendingEcho);
+    }
+    return taken;
+  }
+
+  private static FarmersMarket newFarmersMarket(String name) {
+    return FarmersMarket.newBuilder().setName(name).build();
+  }
+
+  /** An echo call the server has received but not yet answered. */
+  private static final class PendingEcho {
+
+    final EchoFarmersMarketRequest request;
+    final StreamObserver<EchoFarmersMarketResponse> responseObserver;
+
+    PendingEcho(EchoFarmersMarketRequest request,
+        StreamObserver<EchoFarmersMarketResponse> responseObserver) {
+      this.request = request;
+      this.responseObserver = responseObserver;
+    }
+
+    void complete() {
+      responseObserver.onNext(EchoFarmersMarketResponse.newBuilder()
+          .setFarmersMarket(request.getFarmersMarket())
+          .build());
+      responseObserver.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.kbiying.farmersmarket.client;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.client.LoadGenerator.LoadOptions;
+import org.kbiying.farmersmarket.client.LoadGenerator.ReadTemplate;
+
+@RunWith(JUnit4.class)
+public class LoadGeneratorTest {
+
+  @Test
+  public void testParseReadTemplateWeights() {
+    assertThat(LoadOptions.parseReadTemplateWeights("id=60, City=30,state_and_city = 10"))
+        .containsExactly(
+            ReadTemplate.ID, 60, ReadTemplate.CITY, 30, ReadTemplate.STATE_AND_CITY, 10);
+    // A template without a weight has a weight of one.
+    assertThat(LoadOptions.parseReadTemplateWeights("name"))
+        .containsExactly(ReadTemplate.NAME, 1);
+  }
+
+  @Test
+  public void testParseReadTemplateWeightsRejectsUnknownTemplates() {
+    try {
+      LoadOptions.parseReadTemplateWeights("id=1,zip=2");
+      throw new AssertionError("Expected the unknown template to be rejected");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      LoadOptions.parseReadTemplateWeights("id=many");
+      throw new AssertionError("Expected the malformed weight to be rejected");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testLoadOptionsDefaults() {
+    LoadOptions options = LoadOptions.builder().build();
+    assertThat(options.getReadTemplateWeights()).containsExactly(ReadTemplate.ID, 1);
+    assertThat(options.getKeyDistribution()).isEqualTo(LoadGenerator.KeyDistribution.UNIFORM);
+  }
+
+  @Test
+  public void testLoadOptionsValidation() {
+    assertInvalid(LoadOptions.builder().setRate(0), "Rate must be positive");
+    assertInvalid(LoadOptions.builder().setRate(Double.NaN), "Rate must be positive");
+    assertInvalid(LoadOptions.builder().setDuration(Duration.ZERO), "Duration must be positive");
+    assertInvalid(LoadOptions.builder().setConcurrency(0), "Concurrency must be positive");
+    assertInvalid(LoadOptions.builder().setReadFraction(1.5),
+        "Read fraction must be between 0 and 1");
+    assertInvalid(LoadOptions.builder().setReadTemplateWeights(ImmutableMap.of()),
+        "Read template weights must not be negative and not all zero");
+    assertInvalid(LoadOptions.builder().setReadTemplateWeights(
+        ImmutableMap.of(ReadTemplate.ID, 0, ReadTemplate.CITY, 0)),
+        "Read template weights must not be negative and not all zero");
+    assertInvalid(LoadOptions.builder().setReadTemplateWeights(
+        ImmutableMap.of(ReadTemplate.ID, 2, ReadTemplate.CITY, -1)),
+        "Read template weights must not be negative and not all zero");
+    assertInvalid(LoadOptions.builder().setSampleSize(0), "Sample size must be positive");
+
+    // A zero weight is fine as long as another template has some.
+    LoadOptions.builder()
+        .setReadTemplateWeights(ImmutableMap.of(ReadTemplate.ID, 0, ReadTemplate.CITY, 1))
+        .setReadFraction(0)
+        .build();
+  }
+
+  @Test
+  public void testZipfDistribution() {
+    double[] cumulative = LoadGenerator.getZipfDistribution(1000);
+
+    assertThat(cumulative).hasLength(1000);
+    assertThat(cumulative[999]).isWithin(1e-9).of(1.0);
+    for (int i = 1; i < cumulative.length; i++) {
+      assertThat(cumulative[i]).isGreaterThan(cumulative[i - 1]);
+    }
+    // The probability of each rank falls off as a power of the rank.
+    double first = cumulative[0];
+    double second = cumulative[1] - cumulative[0];
+    double tenth = cumulative[9] - cumulative[8];
+    assertThat(second / first).isWithin(1e-9).of(Math.pow(2, -0.99));
+    assertThat(tenth / first).isWithin(1e-9).of(Math.pow(10, -0.99));
+    // The first of 1000 ranks takes more than a tenth of the picks.
+    assertThat(first).isGreaterThan(0.1);
+  }
+
+  @Test
+  public void testZipfDistributionOfOneRank() {
+    double[] cumulative = LoadGenerator.getZipfDistribution(1);
+    assertThat(cumulative).hasLength(1);
+    assertThat(cumulative[0]).isEqualTo(1.0);
+  }
+
+  private static void assertInvalid(LoadOptions.Builder builder, String message) {
+    try {
+      builder.build();
+      throw new AssertionError("Expected the options to be rejected: " + message);
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).isEqualTo(message);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package org.kbiying.farmersmarket.etl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MarketsCsvImporterTest {
+
+  private static final String CSV = "\uFEFFFMID,MarketName,street,city,County,State,zip,x,y\n"
+      + "1001,MAIN STREET FARMERS MARKET,Main Street ,  st  louis ,DEKALB,Missouri,63101,"
+      + "-90.19,38.62\n"
+      + "1002,Riverside Market,,Springfield,,Illinois,,not a number,\n"
+      + ",Market Without An Id,,,,,,,\n";
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Connection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    connection = DriverManager.getConnection(
+        "jdbc:sqlite:" + temporaryFolder.newFile().getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  public void testImportAppliesRecordedCleaningSteps() throws Exception {
+    MarketsCsvImporter.ImportResult result = importCsv(CSV, false);
+    assertThat(result.getImportedCount()).isEqualTo(2);
+    assertThat(result.getSkippedCount()).isEqualTo(1);
+
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "SELECT Name, Address, City, County, State, Zip, Lat, Long FROM Markets "
+                + "WHERE Id = 1001")) {
+      assertThat(resultSet.next()).isTrue();
+      assertThat(resultSet.getString(1)).isEqualTo("Main Street Farmers Market");
+      assertThat(resultSet.getString(2)).isEqualTo("Main Street");
+      assertThat(resultSet.getString(3)).isEqualTo("ST. LOUIS");
+      assertThat(resultSet.getString(4)).isEqualTo("DeKalb");
+      assertThat(resultSet.getString(5)).isEqualTo("Missouri");
+      assertThat(resultSet.getString(6)).isEqualTo("63101");
+      assertThat(resultSet.getDouble(7)).isEqualTo(38.62);
+      assertThat(resultSet.getDouble(8)).isEqualTo(-90.19);
+    }
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "SELECT Address, County, Long FROM Markets WHERE Id = 1002")) {
+      assertThat(resultSet.next()).isTrue();
+      assertThat(resultSet.getString(1)).isNull();
+      assertThat(resultSet.getString(2)).isNull();
+      resultSet.getDouble(3);
+      assertThat(resultSet.wasNull()).isTrue();
+    }
+  }
+
+  @Test
+  public void testReplaceDeletesMarketsMissingFromCsv() throws Exception {
+    importCsv(CSV, false);
+    importCsv("FMID,MarketName,street,city,County,State,zip,x,y\n"
+        + "1002,Riverside Market,,Springfield,,Illinois,,,\n", true);
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT Id FROM Markets")) {
+      assertThat(resultSet.next()).isTrue();
+      assertThat(resultSet.getLong(1)).isEqualTo(1002);
+      assertThat(resultSet.next()).isFalse();
+    }
+  }
+
+  @Test
+  public void testReimportRebuildsDerivedTables() throws Exception {
+    importCsv(CSV, false);
+    try (Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE VIRTUAL TABLE MarketsFts USING fts5(Name, Address, City)");
+      statement.executeUpdate("INSERT INTO MarketsFts (rowid, Name, Address, City) "
+          + "SELECT Id, Name, Address, City FROM Markets");
+    }
+    importCsv("FMID,MarketName,street,city,County,State,zip,x,y\n"
+        + "1002,Lakeside Market,,Springfield,,Illinois,,,\n", false);
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "SELECT rowid FROM MarketsFts WHERE MarketsFts MATCH 'lakeside'")) {
+      assertThat(resultSet.next()).isTrue();
+      assertThat(resultSet.getLong(1)).isEqualTo(1002);
+    }
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "SELECT COUNT(*) FROM MarketsFts WHERE MarketsFts MATCH 'riverside'")) {
+      assertThat(resultSet.next()).isTrue();
+      assertThat(resultSet.getLong(1)).isEqualTo(0);
+    }
+  }
+
+  private MarketsCsvImporter.ImportResult importCsv(String csv, boolean replace)
+      throws IOException, SQLException {
+    try (Reader history = new InputStreamReader(
+        MarketsCsvImporter.class.getResourceAsStream(MarketsCsvImporter.HISTORY_RESOURCE),
+        StandardCharsets.UTF_8)) {
+      return new MarketsCsvImporter(MarketsCsvImporter.DEFAULT_BATCH_SIZE)
+          .importCsv(new StringReader(csv), history, connection, replace);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package org.kbiying.farmersmarket.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+
+  @Test
+  public void testLatencyHistogramQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 1; nanos <= 1000; nanos++) {
+      histogram.record(nanos * 1000);
+    }
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertThat(snapshot.getCount()).isEqualTo(1000);
+    assertThat(snapshot.getMaxNanos()).isEqualTo(1_000_000);
+    // Buckets are within about 6% of the values they hold.
+    assertThat((double) snapshot.getValueAtQuantile(0.5)).isWithin(500_000 * 0.07).of(500_000);
+    assertThat((double) snapshot.getValueAtQuantile(0.99)).isWithin(990_000 * 0.07).of(990_000);
+    assertThat(snapshot.getValueAtQuantile(1.0)).isEqualTo(1_000_000);
+  }
+
+  @Test
+  public void testBucketsCoverEveryValue() {
+    for (long value : new long[] {0, 1, 15, 16, 17, 1000, 1L << 40, Long.MAX_VALUE}) {
+      int index = LatencyHistogram.getBucketIndex(value);
+      assertThat(LatencyHistogram.getBucketUpperBound(index)).isAtLeast(value);
+      if (index > 0) {
+        assertThat(LatencyHistogram.getBucketUpperBound(index - 1)).isLessThan(value);
+      }
+    }
+  }
+}
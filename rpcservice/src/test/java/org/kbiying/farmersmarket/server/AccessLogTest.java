@@ -0,0 +1,96 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.StringValue;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class AccessLogTest {
+
+  // Successful calls are only logged when the client asks for it.
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setAccessLogSampleRate(0));
+
+  private static final Logger accessLogger = Logger.getLogger(AccessLog.class.getName());
+
+  private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      lines.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    accessLogger.addHandler(handler);
+  }
+
+  @After
+  public void tearDown() {
+    accessLogger.removeHandler(handler);
+  }
+
+  @Test
+  public void testPayloadLoggingWritesRequestAndRowCount() throws InterruptedException {
+    FarmersMarketTemplate template = FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+        .setCity(StringValue.newBuilder().setValue("Springfield"))
+        .build();
+    fixture.getClient().create(template);
+    fixture.getClient().create(template);
+
+    fixture.getClient().withPayloadLogging().read(template);
+
+    String line = lines.poll(5, TimeUnit.SECONDS);
+    assertThat(line).startsWith("ReadFarmersMarket status=OK ");
+    assertThat(line).contains(" rows=2 ");
+    assertThat(line).contains("request={farmers_market {");
+    assertThat(line).contains("Springfield");
+  }
+
+  @Test
+  public void testOnlyFailedCallsAreLoggedWhenNotSampled() throws InterruptedException {
+    fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance());
+    try {
+      fixture.getClient().applyChanges(
+          ImmutableList.of(FarmersMarket.newBuilder().setName("Farmers' Market").build()),
+          ImmutableList.of());
+      throw new AssertionError("Expected the changes to be rejected");
+    } catch (StatusRuntimeException e) {
+      // Expected.
+    }
+
+    String line = lines.poll(5, TimeUnit.SECONDS);
+    assertThat(line).startsWith("ApplyFarmersMarketChanges status=INVALID_ARGUMENT ");
+    assertThat(line).doesNotContain("request=");
+    assertThat(lines.poll(100, TimeUnit.MILLISECONDS)).isNull();
+  }
+}
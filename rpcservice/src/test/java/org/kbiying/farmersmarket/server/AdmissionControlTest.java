@@ -0,0 +1,133 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.StringValue;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsRequest;
+import org.kbiying.farmersmarket.proto.BatchCreateFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketRequest;
+import org.kbiying.farmersmarket.proto.EchoFarmersMarketResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarketServiceGrpc;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class AdmissionControlTest {
+
+  private static final int QUEUE_CAPACITY = 2;
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options
+          .setExecutorMode(FarmersMarketServerOptions.ExecutorMode.FIXED)
+          .setExecutorThreads(1)
+          .setExecutorQueueCapacity(QUEUE_CAPACITY)
+          .setBatchCommitSize(1));
+
+  @Test(timeout = 30_000)
+  public void testStreamingCallFinishesWhileNewCallsAreRefused() throws Exception {
+    RequestExecutor executor = fixture.getExecutor();
+    ManagedChannel channel = ManagedChannelBuilder
+        .forAddress(fixture.getServerAddress().getHost(), fixture.getServerAddress().getPort())
+        .usePlaintext(true)
+        .build();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      SettableFuture<BatchCreateFarmersMarketsResponse> batchResponse = SettableFuture.create();
+      StreamObserver<BatchCreateFarmersMarketsRequest> batch =
+          FarmersMarketServiceGrpc.newStub(channel).batchCreateFarmersMarkets(
+              new StreamObserver<BatchCreateFarmersMarketsResponse>() {
+                @Override
+                public void onNext(BatchCreateFarmersMarketsResponse response) {
+                  batchResponse.set(response);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                  batchResponse.setException(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+              });
+      batch.onNext(newRequest("Farmers' Market 1"));
+      while (fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance()).isEmpty()) {
+        Thread.sleep(10);
+      }
+
+      // Occupy the only thread and fill the queue.
+      executor.execute(() -> awaitUninterruptibly(release));
+      awaitQueueDepth(executor, depth -> depth == 0);
+      for (int i = 0; i < QUEUE_CAPACITY; i++) {
+        executor.execute(() -> { });
+      }
+
+      // The rest of the stream is queued behind the full queue rather than rejected.
+      batch.onNext(newRequest("Farmers' Market 2"));
+      batch.onCompleted();
+      awaitQueueDepth(executor, depth -> depth > QUEUE_CAPACITY);
+
+      // A call that starts now finds the queue behind it full once it runs.
+      int depthBeforeEcho = executor.getStats().getQueueDepth();
+      ListenableFuture<EchoFarmersMarketResponse> echo = FarmersMarketServiceGrpc
+          .newFutureStub(channel)
+          .echoFarmersMarket(EchoFarmersMarketRequest.getDefaultInstance());
+      awaitQueueDepth(executor, depth -> depth > depthBeforeEcho);
+      for (int i = 0; i < QUEUE_CAPACITY; i++) {
+        executor.execute(() -> { });
+      }
+      release.countDown();
+
+      assertThat(batchResponse.get(10, TimeUnit.SECONDS).getIdCount()).isEqualTo(2);
+      try {
+        echo.get(10, TimeUnit.SECONDS);
+        throw new AssertionError("Expected the call to be refused");
+      } catch (ExecutionException e) {
+        assertThat(Status.fromThrowable(e.getCause()).getCode())
+            .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+        assertThat(e.getCause()).isInstanceOf(StatusRuntimeException.class);
+      }
+      assertThat(executor.getStats().getRejectedCallCount()).isAtLeast(1L);
+    } finally {
+      release.countDown();
+      channel.shutdownNow();
+    }
+  }
+
+  private static BatchCreateFarmersMarketsRequest newRequest(String name) {
+    return BatchCreateFarmersMarketsRequest.newBuilder()
+        .addFarmersMarket(FarmersMarketTemplate.newBuilder()
+            .setName(StringValue.newBuilder().setValue(name)))
+        .build();
+  }
+
+  private static void awaitQueueDepth(RequestExecutor executor, IntPredicate condition)
+      throws InterruptedException {
+    while (!condition.test(executor.getStats().getQueueDepth())) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.ApplyFarmersMarketChangesResponse;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class ApplyFarmersMarketChangesTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setBatchCommitSize(3));
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testApplyChangesInsertsUpdatesAndDeletes() {
+    List<FarmersMarket> farmersMarkets = new ArrayList<>();
+    for (long id = 1001; id <= 1005; id++) {
+      farmersMarkets.add(newFarmersMarket(id, "Farmers' Market " + id));
+    }
+    ApplyFarmersMarketChangesResponse response =
+        fixture.getClient().applyChanges(farmersMarkets, ImmutableList.of());
+    assertThat(response.getInsertedCount()).isEqualTo(5);
+    assertThat(response.getUpdatedCount()).isEqualTo(0);
+
+    response = fixture.getClient().applyChanges(
+        ImmutableList.of(
+            newFarmersMarket(1002, "Renamed Market"),
+            newFarmersMarket(1006, "New Market")),
+        ImmutableList.of(1004L, 1005L, 9999L));
+
+    assertThat(response.getInsertedCount()).isEqualTo(1);
+    assertThat(response.getUpdatedCount()).isEqualTo(1);
+    assertThat(response.getDeletedCount()).isEqualTo(2);
+    assertThat(fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance()))
+        .containsExactly(
+            newFarmersMarket(1001, "Farmers' Market 1001"),
+            newFarmersMarket(1002, "Renamed Market"),
+            newFarmersMarket(1003, "Farmers' Market 1003"),
+            newFarmersMarket(1006, "New Market"))
+        .inOrder();
+    assertThat(fixture.getClient().search("renamed", 0)).hasSize(1);
+  }
+
+  @Test
+  public void testApplyChangesRejectsMarketWithoutId() {
+    try {
+      fixture.getClient().applyChanges(
+          ImmutableList.of(FarmersMarket.newBuilder().setName("Farmers' Market").build()),
+          ImmutableList.of());
+      throw new AssertionError("Expected the changes to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+    assertThat(fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance())).isEmpty();
+  }
+
+  private static FarmersMarket newFarmersMarket(long id, String name) {
+    return FarmersMarket.newBuilder()
+        .setId(id)
+        .setName(name)
+        .setCity(StringValue.newBuilder().setValue("Springfield"))
+        .build();
+  }
+}
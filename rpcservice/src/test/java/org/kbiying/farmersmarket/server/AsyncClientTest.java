@@ -0,0 +1,71 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class AsyncClientTest {
+
+  private static final Duration DEADLINE = Duration.ofSeconds(10);
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testPipelinedCreatesAndReads() throws Exception {
+    List<ListenableFuture<FarmersMarket>> creates = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      creates.add(fixture.getClient().createAsync(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build(), DEADLINE));
+    }
+    List<FarmersMarket> created = Futures.allAsList(creates).get();
+
+    List<ListenableFuture<List<FarmersMarket>>> reads = new ArrayList<>();
+    for (FarmersMarket farmersMarket : created) {
+      reads.add(fixture.getClient().readAsync(FarmersMarketTemplate.newBuilder()
+          .setId(Int64Value.newBuilder().setValue(farmersMarket.getId()))
+          .build(), DEADLINE));
+    }
+    for (int i = 0; i < created.size(); i++) {
+      assertThat(reads.get(i).get()).containsExactly(created.get(i));
+    }
+  }
+
+  @Test
+  public void testExpiredDeadlineFailsCall() throws InterruptedException {
+    try {
+      fixture.getClient()
+          .readAsync(FarmersMarketTemplate.getDefaultInstance(), Duration.ofNanos(1))
+          .get();
+      throw new AssertionError("Expected the call to miss its deadline");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(StatusRuntimeException.class);
+      assertThat(((StatusRuntimeException) e.getCause()).getStatus().getCode())
+          .isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+    }
+  }
+}
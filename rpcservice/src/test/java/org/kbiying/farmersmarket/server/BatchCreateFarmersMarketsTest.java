@@ -0,0 +1,73 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class BatchCreateFarmersMarketsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setBatchCommitSize(7));
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testBatchCreateFarmersMarkets() {
+    List<FarmersMarketTemplate> templates = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      templates.add(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .setZip(StringValue.newBuilder().setValue(String.format("%05d", i)))
+          .build());
+    }
+
+    List<Long> ids = fixture.getClient().batchCreate(templates);
+
+    assertThat(ids).hasSize(20);
+    for (int i = 0; i < ids.size(); i++) {
+      List<FarmersMarket> farmersMarkets = fixture.getClient().read(
+          FarmersMarketTemplate.newBuilder()
+              .setId(Int64Value.newBuilder().setValue(ids.get(i)))
+              .build());
+      assertThat(farmersMarkets).hasSize(1);
+      assertThat(farmersMarkets.get(0).getName()).isEqualTo("Farmers' Market " + i);
+    }
+  }
+
+  @Test
+  public void testBatchCreateRejectsTemplateWithoutName() {
+    List<FarmersMarketTemplate> templates = new ArrayList<>();
+    templates.add(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+        .build());
+    templates.add(FarmersMarketTemplate.newBuilder()
+        .setCity(StringValue.newBuilder().setValue("City"))
+        .build());
+
+    try {
+      fixture.getClient().batchCreate(templates);
+      throw new AssertionError("Expected the batch to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+    assertThat(fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance())).isEmpty();
+  }
+}
@@ -0,0 +1,80 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class ColumnStoreConsistencyTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setReadMode(FarmersMarketServerOptions.ReadMode.COLUMN_STORE));
+
+  private static final int THREADS = 8;
+  private static final int MUTATIONS_PER_THREAD = 100;
+  private static final int IDS = 10;
+
+  @Test
+  public void testConcurrentMutationsLeaveColumnStoreEqualToSqlite() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> mutators = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        int seed = thread;
+        mutators.add(executor.submit(() -> mutate(new Random(seed), "Market " + seed)));
+      }
+      for (Future<?> mutator : mutators) {
+        mutator.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // Reads are served by the column store, streams by SQLite.
+    FarmersMarketTemplate all = FarmersMarketTemplate.getDefaultInstance();
+    assertThat(fixture.getClient().read(all))
+        .containsExactlyElementsIn(Lists.newArrayList(fixture.getClient().stream(all, 0)))
+        .inOrder();
+  }
+
+  /** Creates, updates and deletes markets among a few Ids, so that threads race on each one. */
+  private static void mutate(Random random, String name) {
+    for (int i = 0; i < MUTATIONS_PER_THREAD; i++) {
+      long id = 1 + random.nextInt(IDS);
+      switch (random.nextInt(3)) {
+        case 0:
+          fixture.getClient().applyChanges(ImmutableList.of(FarmersMarket.newBuilder()
+              .setId(id)
+              .setName(name + " " + i)
+              .build()), ImmutableList.of());
+          break;
+        case 1:
+          fixture.getClient().update(FarmersMarketTemplate.newBuilder()
+              .setName(StringValue.newBuilder().setValue(name + " " + i))
+              .build(), FarmersMarketTemplate.newBuilder()
+              .setId(Int64Value.newBuilder().setValue(id))
+              .build());
+          break;
+        default:
+          fixture.getClient().applyChanges(ImmutableList.of(), ImmutableList.of(id));
+          break;
+      }
+    }
+  }
+}
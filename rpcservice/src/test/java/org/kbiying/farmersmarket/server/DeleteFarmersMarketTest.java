@@ -0,0 +1,61 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class DeleteFarmersMarketTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  private static final FarmersMarketTemplate CALIFORNIA = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("CA"))
+      .build();
+  private static final FarmersMarketTemplate OREGON = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("OR"))
+      .build();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    for (int i = 0; i < 5; i++) {
+      fixture.getClient().create((i < 3 ? CALIFORNIA : OREGON).toBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build());
+    }
+  }
+
+  @Test
+  public void testDeleteReturnsDeletedFarmersMarkets() {
+    List<FarmersMarket> deletedFarmersMarkets = fixture.getClient().delete(CALIFORNIA);
+    assertThat(deletedFarmersMarkets).hasSize(3);
+    assertThat(fixture.getClient().read(CALIFORNIA)).isEmpty();
+    assertThat(fixture.getClient().read(OREGON)).hasSize(2);
+  }
+
+  @Test
+  public void testDeleteCountOnly() {
+    assertThat(fixture.getClient().deleteCount(OREGON)).isEqualTo(2);
+    assertThat(fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance())).hasSize(3);
+  }
+
+  @Test
+  public void testDeleteWithoutMatches() {
+    FarmersMarketTemplate nevada = FarmersMarketTemplate.newBuilder()
+        .setState(StringValue.newBuilder().setValue("NV"))
+        .build();
+    assertThat(fixture.getClient().delete(nevada)).isEmpty();
+    assertThat(fixture.getClient().deleteCount(nevada)).isEqualTo(0);
+  }
+}
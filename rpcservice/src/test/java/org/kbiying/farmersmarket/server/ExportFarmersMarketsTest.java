@@ -0,0 +1,116 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.StringValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.ExportFarmersMarketsResponse;
+import org.kbiying.farmersmarket.proto.ExportFormat;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class ExportFarmersMarketsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testExportAsDelimitedProto() throws IOException {
+    List<FarmersMarket> createdFarmersMarkets = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      createdFarmersMarkets.add(fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .setLat(DoubleValue.newBuilder().setValue(i))
+          .build()));
+    }
+
+    ExportedData exported = export(ExportFormat.DELIMITED_PROTO, 10);
+
+    assertThat(exported.farmersMarketCount).isEqualTo(25);
+    List<FarmersMarket> exportedFarmersMarkets = new ArrayList<>();
+    InputStream input = exported.data.newInput();
+    FarmersMarket farmersMarket;
+    while ((farmersMarket = FarmersMarket.parseDelimitedFrom(input)) != null) {
+      exportedFarmersMarkets.add(farmersMarket);
+    }
+    assertThat(exportedFarmersMarkets).containsExactlyElementsIn(createdFarmersMarkets).inOrder();
+  }
+
+  @Test
+  public void testExportAsCsv() {
+    FarmersMarket quoted = fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("The \"Original\" Market, Downtown"))
+        .setCity(StringValue.newBuilder().setValue("Springfield"))
+        .setLong(DoubleValue.newBuilder().setValue(-89.5))
+        .build());
+
+    ExportedData exported = export(ExportFormat.CSV, 0);
+
+    assertThat(exported.farmersMarketCount).isEqualTo(1);
+    assertThat(exported.data.toString(StandardCharsets.UTF_8)).isEqualTo(
+        "Id,Name,Address,City,County,State,Zip,Lat,Long\r\n"
+            + quoted.getId()
+            + ",\"The \"\"Original\"\" Market, Downtown\",,Springfield,,,,,-89.5\r\n");
+  }
+
+  @Test
+  public void testExportAsCsvWritesCoordinatesWithoutExponents() {
+    FarmersMarket nearZero = fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Null Island Market"))
+        .setLat(DoubleValue.newBuilder().setValue(0.000123))
+        .setLong(DoubleValue.newBuilder().setValue(-45.0))
+        .build());
+
+    ExportedData exported = export(ExportFormat.CSV, 0);
+
+    assertThat(exported.data.toString(StandardCharsets.UTF_8)).isEqualTo(
+        "Id,Name,Address,City,County,State,Zip,Lat,Long\r\n"
+            + nearZero.getId() + ",Null Island Market,,,,,,0.000123,-45.0\r\n");
+  }
+
+  @Test
+  public void testExportOfNoMarketsIsJustTheHeader() {
+    ExportedData exported = export(ExportFormat.CSV, 0);
+
+    assertThat(exported.farmersMarketCount).isEqualTo(0);
+    assertThat(exported.data.toString(StandardCharsets.UTF_8))
+        .isEqualTo("Id,Name,Address,City,County,State,Zip,Lat,Long\r\n");
+  }
+
+  private static ExportedData export(ExportFormat format, int chunkSize) {
+    ExportedData exported = new ExportedData();
+    Iterator<ExportFarmersMarketsResponse> responses = fixture.getClient()
+        .export(FarmersMarketTemplate.getDefaultInstance(), format, chunkSize);
+    while (responses.hasNext()) {
+      ExportFarmersMarketsResponse response = responses.next();
+      exported.data = exported.data.concat(response.getData());
+      exported.farmersMarketCount += response.getFarmersMarketCount();
+    }
+    return exported;
+  }
+
+  private static final class ExportedData {
+
+    ByteString data = ByteString.EMPTY;
+    long farmersMarketCount;
+  }
+}
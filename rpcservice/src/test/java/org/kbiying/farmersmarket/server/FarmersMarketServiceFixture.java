@@ -2,9 +2,12 @@ package org.kbiying.farmersmarket.server;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.rules.TemporaryFolder;
@@ -20,14 +23,41 @@ class FarmersMarketServiceFixture extends TemporaryFolder {
       .of("localhost", 7777);
   private static final Duration CLIENT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
 
+  /** Tables the server derives from Markets, emptied along with it. */
+  private static final String[] DERIVED_TABLES =
+      {"MarketsRTree", "MarketsFts", "MarketsChangeLog"};
+
+  private final UnaryOperator<FarmersMarketServerOptions.Builder> optionsCustomizer;
+
   private String sqliteDbPath;
   private FarmersMarketServer server;
   private FarmersMarketClient client;
 
+  FarmersMarketServiceFixture() {
+    this(UnaryOperator.identity());
+  }
+
+  FarmersMarketServiceFixture(
+      UnaryOperator<FarmersMarketServerOptions.Builder> optionsCustomizer) {
+    this.optionsCustomizer = optionsCustomizer;
+  }
+
   FarmersMarketClient getClient() {
     return client;
   }
 
+  FarmersMarketServerAddress getServerAddress() {
+    return SERVER_ADDRESS;
+  }
+
+  FarmersMarketService getService() {
+    return server.getService();
+  }
+
+  RequestExecutor getExecutor() {
+    return server.getExecutor();
+  }
+
   void resetDb() throws SQLException {
     try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqliteDbPath);
         Statement statement = connection.createStatement()) {
@@ -42,6 +72,23 @@ class FarmersMarketServiceFixture extends TemporaryFolder {
           + "Zip TEXT, "
           + "Lat REAL, "
           + "Long REAL)");
+      for (String derivedTable : DERIVED_TABLES) {
+        if (tableExists(connection, derivedTable)) {
+          statement.executeUpdate("DELETE FROM " + derivedTable);
+        }
+      }
+      // Start the change log over from the first sequence number too.
+      statement.executeUpdate("DELETE FROM sqlite_sequence WHERE name = 'MarketsChangeLog'");
+    }
+  }
+
+  private static boolean tableExists(Connection connection, String table) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(
+        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+      statement.setString(1, table);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next();
+      }
     }
   }
 
@@ -50,8 +97,12 @@ class FarmersMarketServiceFixture extends TemporaryFolder {
     super.before();
     sqliteDbPath = newFile().getAbsolutePath();
     resetDb();
-    server = new FarmersMarketServer(
-        FarmersMarketServerOptions.of(SERVER_ADDRESS.getPort(), sqliteDbPath));
+    // resetDb changes the database behind the server's back, which a read cache would not notice,
+    // so tests that want the cache enable it explicitly.
+    server = new FarmersMarketServer(optionsCustomizer
+        .apply(FarmersMarketServerOptions.of(SERVER_ADDRESS.getPort(), sqliteDbPath).toBuilder()
+            .setReadCacheMaxMarkets(0))
+        .build());
     server.start();
     client = new FarmersMarketClient(SERVER_ADDRESS);
   }
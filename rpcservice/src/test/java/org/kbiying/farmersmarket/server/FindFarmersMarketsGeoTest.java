@@ -0,0 +1,109 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.NearbyFarmersMarket;
+
+@RunWith(JUnit4.class)
+public class FindFarmersMarketsGeoTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  private static final double SAN_FRANCISCO_LAT = 37.7749;
+  private static final double SAN_FRANCISCO_LONG = -122.4194;
+
+  private FarmersMarket ferryBuilding;
+  private FarmersMarket oakland;
+  private FarmersMarket portland;
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    ferryBuilding = create("Ferry Plaza", 37.7955, -122.3937);
+    oakland = create("Jack London Square", 37.7946, -122.2772);
+    portland = create("Portland State University", 45.5122, -122.6587);
+    fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Nowhere in particular"))
+        .build());
+  }
+
+  @Test
+  public void testFindNearbyOrdersByDistance() {
+    List<NearbyFarmersMarket> nearby = fixture.getClient()
+        .findNearby(SAN_FRANCISCO_LAT, SAN_FRANCISCO_LONG, 20_000, 0);
+    assertThat(nearby).hasSize(2);
+    assertThat(nearby.get(0).getFarmersMarket()).isEqualTo(ferryBuilding);
+    assertThat(nearby.get(1).getFarmersMarket()).isEqualTo(oakland);
+    assertThat(nearby.get(0).getDistanceMeters()).isWithin(100).of(3_200);
+  }
+
+  @Test
+  public void testFindNearbyHonorsMaxResults() {
+    List<NearbyFarmersMarket> nearby = fixture.getClient()
+        .findNearby(SAN_FRANCISCO_LAT, SAN_FRANCISCO_LONG, 1_000_000, 1);
+    assertThat(nearby).hasSize(1);
+    assertThat(nearby.get(0).getFarmersMarket()).isEqualTo(ferryBuilding);
+  }
+
+  @Test
+  public void testFindInBox() {
+    assertThat(fixture.getClient().findInBox(37, 38, -123, -122, 0))
+        .containsExactly(ferryBuilding, oakland)
+        .inOrder();
+    assertThat(fixture.getClient().findInBox(40, 50, -123, -122, 0))
+        .containsExactly(portland);
+  }
+
+  @Test
+  public void testIndexFollowsUpdatesAndDeletes() {
+    FarmersMarketTemplate byId = FarmersMarketTemplate.newBuilder()
+        .setId(Int64Value.newBuilder().setValue(oakland.getId()))
+        .build();
+    fixture.getClient().update(FarmersMarketTemplate.newBuilder()
+        .setLat(DoubleValue.newBuilder().setValue(45.5))
+        .setLong(DoubleValue.newBuilder().setValue(-122.6))
+        .build(), byId);
+    assertThat(fixture.getClient().findInBox(37, 38, -123, -122, 0))
+        .containsExactly(ferryBuilding);
+
+    fixture.getClient().deleteCount(FarmersMarketTemplate.newBuilder()
+        .setId(Int64Value.newBuilder().setValue(portland.getId()))
+        .build());
+    List<FarmersMarket> inOregon = fixture.getClient().findInBox(40, 50, -123, -122, 0);
+    assertThat(inOregon).hasSize(1);
+    assertThat(inOregon.get(0).getId()).isEqualTo(oakland.getId());
+  }
+
+  @Test
+  public void testFindNearbyRejectsNonPositiveRadius() {
+    try {
+      fixture.getClient().findNearby(SAN_FRANCISCO_LAT, SAN_FRANCISCO_LONG, 0, 0);
+      throw new AssertionError("Expected the radius to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+  }
+
+  private static FarmersMarket create(String name, double lat, double lng) {
+    return fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue(name))
+        .setLat(DoubleValue.newBuilder().setValue(lat))
+        .setLong(DoubleValue.newBuilder().setValue(lng))
+        .build());
+  }
+}
@@ -0,0 +1,81 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.GetServerStatsResponse;
+import org.kbiying.farmersmarket.proto.MethodStats;
+import org.kbiying.farmersmarket.proto.StoragePhaseStats;
+
+@RunWith(JUnit4.class)
+public class GetServerStatsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testGetServerStatsCountsCallsAndErrors() {
+    for (int i = 0; i < 3; i++) {
+      fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build());
+    }
+    fixture.getClient().read(FarmersMarketTemplate.getDefaultInstance());
+    try {
+      fixture.getClient().readPage(FarmersMarketTemplate.getDefaultInstance(), -1, "");
+      throw new AssertionError("Expected the read to be rejected");
+    } catch (StatusRuntimeException e) {
+      // Expected.
+    }
+
+    GetServerStatsResponse response = fixture.getClient().getServerStats();
+
+    MethodStats createStats = getMethodStats(response, "CreateFarmersMarket");
+    assertThat(createStats.getCallCount()).isEqualTo(3);
+    assertThat(createStats.getErrorCount()).isEqualTo(0);
+    assertThat(createStats.getInFlight()).isEqualTo(0);
+    assertThat(createStats.getLatency().getCount()).isEqualTo(3);
+    assertThat(createStats.getLatency().getMaxMillis())
+        .isAtLeast(createStats.getLatency().getP50Millis());
+    MethodStats readStats = getMethodStats(response, "ReadFarmersMarket");
+    assertThat(readStats.getCallCount()).isEqualTo(2);
+    assertThat(readStats.getErrorCount()).isEqualTo(1);
+    // The stats call itself is still in flight.
+    assertThat(getMethodStats(response, "GetServerStats").getInFlight()).isEqualTo(1);
+
+    for (StoragePhaseStats phaseStats : response.getStoragePhaseStatsList()) {
+      assertThat(phaseStats.getLatency().getCount()).isGreaterThan(0L);
+    }
+    assertThat(response.getGaugeMap()).containsKey("read_pool_active_connections");
+    assertThat(response.getGaugeMap()).containsKey("executor_queue_depth");
+    assertThat(response.getPrometheusText()).contains(
+        "farmers_market_rpc_calls_total{method=\"CreateFarmersMarket\"} 3.0\n");
+    assertThat(response.getPrometheusText()).contains(
+        "farmers_market_rpc_errors_total{method=\"ReadFarmersMarket\",code=\"INVALID_ARGUMENT\"}"
+            + " 1.0\n");
+    assertThat(response.getPrometheusText()).contains(
+        "# TYPE farmers_market_storage_phase_seconds summary\n");
+  }
+
+  private static MethodStats getMethodStats(GetServerStatsResponse response, String method) {
+    for (MethodStats methodStats : response.getMethodStatsList()) {
+      if (methodStats.getMethod().equals(method)) {
+        return methodStats;
+      }
+    }
+    throw new AssertionError("No stats for " + method);
+  }
+}
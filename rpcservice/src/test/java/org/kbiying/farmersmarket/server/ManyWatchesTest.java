@@ -0,0 +1,67 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import io.grpc.Context;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarketChange;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsResponse;
+
+@RunWith(JUnit4.class)
+public class ManyWatchesTest {
+
+  private static final int CONNECTION_POOL_SIZE = 2;
+  private static final int WATCHES = 50;
+  private static final int MARKETS = 5;
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setConnectionPoolSize(CONNECTION_POOL_SIZE));
+
+  @Test(timeout = 30_000)
+  public void testManyWatchesAreWokenOnFewThreads() throws Exception {
+    Context.CancellableContext context = Context.current().withCancellation();
+    try {
+      context.call(() -> {
+        List<Iterator<WatchFarmersMarketsResponse>> watches = new ArrayList<>();
+        for (int i = 0; i < WATCHES; i++) {
+          Iterator<WatchFarmersMarketsResponse> responses =
+              fixture.getClient().watchFromNow(FarmersMarketTemplate.getDefaultInstance());
+          responses.next();
+          watches.add(responses);
+        }
+
+        for (int i = 0; i < MARKETS; i++) {
+          fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+              .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+              .build());
+        }
+
+        for (Iterator<WatchFarmersMarketsResponse> responses : watches) {
+          List<FarmersMarketChange> changes = new ArrayList<>();
+          while (changes.size() < MARKETS) {
+            changes.addAll(responses.next().getChangeList());
+          }
+          assertThat(changes).hasSize(MARKETS);
+        }
+        return null;
+      });
+    } finally {
+      context.cancel(null);
+    }
+
+    // The writers share the connection pool in ROLLBACK_JOURNAL mode, so one is left for them.
+    long watchThreads = Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().startsWith("markets-watch-"))
+        .count();
+    assertThat(watchThreads).isAtMost((long) CONNECTION_POOL_SIZE - 1);
+  }
+}
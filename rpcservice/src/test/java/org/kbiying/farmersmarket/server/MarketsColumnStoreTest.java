@@ -0,0 +1,106 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.DoubleValue;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class MarketsColumnStoreTest {
+
+  private static final FarmersMarketTemplate ALL = FarmersMarketTemplate.getDefaultInstance();
+  private static final FarmersMarketTemplate CALIFORNIA = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("CA"))
+      .build();
+
+  private MarketsColumnStore columnStore;
+
+  @Before
+  public void setUp() {
+    columnStore = new MarketsColumnStore();
+    MarketsChangeSet.Builder changes = MarketsChangeSet.builder();
+    for (int id = 1; id <= 6; id++) {
+      changes.createdBuilder().add(market(id, id % 2 == 0 ? "CA" : "OR", "City " + id % 3));
+    }
+    columnStore.afterCommit(changes.build());
+  }
+
+  @Test
+  public void testReadMatchesEveryField() {
+    assertThat(ids(columnStore.read(CALIFORNIA, Long.MIN_VALUE, Integer.MAX_VALUE)))
+        .containsExactly(2L, 4L, 6L)
+        .inOrder();
+    assertThat(ids(columnStore.read(CALIFORNIA.toBuilder()
+        .setCity(StringValue.newBuilder().setValue("City 1"))
+        .build(), Long.MIN_VALUE, Integer.MAX_VALUE)))
+        .containsExactly(4L);
+    assertThat(ids(columnStore.read(FarmersMarketTemplate.newBuilder()
+        .setLat(DoubleValue.newBuilder().setValue(3))
+        .build(), Long.MIN_VALUE, Integer.MAX_VALUE)))
+        .containsExactly(3L);
+    assertThat(columnStore.read(FarmersMarketTemplate.newBuilder()
+        .setState(StringValue.newBuilder().setValue("NV"))
+        .build(), Long.MIN_VALUE, Integer.MAX_VALUE))
+        .isEmpty();
+  }
+
+  @Test
+  public void testReadAfterIdWithLimit() {
+    assertThat(ids(columnStore.read(ALL, 2, 3))).containsExactly(3L, 4L, 5L).inOrder();
+    assertThat(ids(columnStore.read(CALIFORNIA, 2, 1))).containsExactly(4L);
+  }
+
+  @Test
+  public void testAppliesUpdatesAndDeletes() {
+    MarketsChangeSet.Builder changes = MarketsChangeSet.builder();
+    changes.updatedBuilder().add(market(1, "CA", "City 1"));
+    changes.deletedIdsBuilder().add(2L);
+    columnStore.afterCommit(changes.build());
+
+    assertThat(ids(columnStore.read(CALIFORNIA, Long.MIN_VALUE, Integer.MAX_VALUE)))
+        .containsExactly(1L, 4L, 6L)
+        .inOrder();
+    assertThat(columnStore.read(FarmersMarketTemplate.newBuilder()
+        .setId(Int64Value.newBuilder().setValue(2))
+        .build(), Long.MIN_VALUE, Integer.MAX_VALUE))
+        .isEmpty();
+    assertThat(columnStore.size()).isEqualTo(5);
+  }
+
+  @Test
+  public void testKeepsIdOrderForExplicitIds() {
+    MarketsChangeSet.Builder changes = MarketsChangeSet.builder();
+    changes.deletedIdsBuilder().add(3L);
+    columnStore.afterCommit(changes.build());
+    changes = MarketsChangeSet.builder();
+    changes.createdBuilder().add(market(3, "CA", "City 0"));
+    columnStore.afterCommit(changes.build());
+
+    assertThat(ids(columnStore.read(CALIFORNIA, Long.MIN_VALUE, Integer.MAX_VALUE)))
+        .containsExactly(2L, 3L, 4L, 6L)
+        .inOrder();
+  }
+
+  private static FarmersMarket market(long id, String state, String city) {
+    return FarmersMarket.newBuilder()
+        .setId(id)
+        .setName("Farmers' Market " + id)
+        .setState(StringValue.newBuilder().setValue(state))
+        .setCity(StringValue.newBuilder().setValue(city))
+        .setLat(DoubleValue.newBuilder().setValue(id))
+        .build();
+  }
+
+  private static List<Long> ids(List<FarmersMarket> farmersMarkets) {
+    return farmersMarkets.stream().map(FarmersMarket::getId).collect(Collectors.toList());
+  }
+}
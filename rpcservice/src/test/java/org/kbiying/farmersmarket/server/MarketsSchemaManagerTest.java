@@ -0,0 +1,82 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MarketsSchemaManagerTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SqliteConnectionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SqliteConnectionPool(
+        temporaryFolder.newFile().getAbsolutePath(),
+        new Properties(),
+        ImmutableList.of(),
+        1,
+        1,
+        Duration.ofMinutes(1),
+        Duration.ofSeconds(1));
+    try (PooledConnection connection = pool.acquire();
+        Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE TABLE Markets ("
+          + "Id INTEGER PRIMARY KEY AUTOINCREMENT, "
+          + "Name TEXT NOT NULL, "
+          + "Address TEXT, "
+          + "City TEXT, "
+          + "County TEXT, "
+          + "State TEXT, "
+          + "Zip TEXT, "
+          + "Lat REAL, "
+          + "Long REAL)");
+      statement.executeUpdate("CREATE INDEX Markets_Legacy ON Markets (Address)");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void testReportsMissingIndexesBeforeCreation() throws SQLException {
+    MarketsSchemaManager schemaManager = new MarketsSchemaManager(
+        ImmutableList.of(IndexDefinition.of("Zip")));
+    try (PooledConnection connection = pool.acquire()) {
+      MarketsSchemaManager.SchemaReport report = schemaManager.inspect(connection);
+      assertThat(report.getMissingIndexes()).containsExactly("Markets_Zip");
+      assertThat(report.getUnmanagedIndexes()).containsExactly("Markets_Legacy");
+      assertThat(report.isHealthy()).isFalse();
+    }
+  }
+
+  @Test
+  public void testCreatedIndexesAreUsed() throws SQLException {
+    MarketsSchemaManager schemaManager = new MarketsSchemaManager(
+        ImmutableList.of(IndexDefinition.of("State", "City"), IndexDefinition.of("Zip")));
+    try (PooledConnection connection = pool.acquire()) {
+      schemaManager.createIndexes(connection);
+      schemaManager.analyze(connection);
+      MarketsSchemaManager.SchemaReport report = schemaManager.inspect(connection);
+      assertThat(report.getMissingIndexes()).isEmpty();
+      assertThat(report.getUnusedIndexes()).isEmpty();
+      assertThat(report.isHealthy()).isTrue();
+    }
+  }
+}
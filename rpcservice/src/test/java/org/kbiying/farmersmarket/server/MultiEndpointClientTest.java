@@ -0,0 +1,75 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.StringValue;
+import io.grpc.StatusRuntimeException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.SQLException;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.client.FarmersMarketClient;
+import org.kbiying.farmersmarket.client.FarmersMarketClientOptions;
+import org.kbiying.farmersmarket.client.FarmersMarketServerAddress;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class MultiEndpointClientTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testUnhealthyReplicaIsTakenOutOfRotation() throws Exception {
+    FarmersMarketClient client = new FarmersMarketClient(
+        FarmersMarketClientOptions.builder(fixture.getServerAddress())
+            .setReplicas(ImmutableList.of(fixture.getServerAddress(), getUnusedAddress()))
+            .setLoadBalancingPolicy(FarmersMarketClientOptions.LoadBalancingPolicy.ROUND_ROBIN)
+            .setHealthCheckInterval(Duration.ofMillis(50))
+            .setHealthCheckTimeout(Duration.ofMillis(500))
+            .setUnhealthyThreshold(1)
+            .build());
+    try {
+      FarmersMarket created = client.create(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+          .build());
+
+      // Until its first health check fails, every other read goes to the missing replica.
+      long deadlineNanos = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+      int consecutiveReads = 0;
+      while (consecutiveReads < 10) {
+        if (System.nanoTime() > deadlineNanos) {
+          throw new AssertionError("Expected the missing replica to be taken out of rotation");
+        }
+        try {
+          assertThat(client.read(FarmersMarketTemplate.getDefaultInstance()))
+              .containsExactly(created);
+          consecutiveReads++;
+        } catch (StatusRuntimeException e) {
+          consecutiveReads = 0;
+          Thread.sleep(50);
+        }
+      }
+    } finally {
+      client.shutdown(Duration.ofSeconds(5));
+    }
+  }
+
+  private static FarmersMarketServerAddress getUnusedAddress() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return FarmersMarketServerAddress.of("localhost", socket.getLocalPort());
+    }
+  }
+}
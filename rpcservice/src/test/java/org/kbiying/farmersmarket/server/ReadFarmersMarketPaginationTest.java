@@ -0,0 +1,76 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.ReadFarmersMarketResponse;
+
+@RunWith(JUnit4.class)
+public class ReadFarmersMarketPaginationTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  private static final FarmersMarketTemplate CALIFORNIA = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("CA"))
+      .build();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testReadAllPages() {
+    List<FarmersMarket> createdFarmersMarkets = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      createdFarmersMarkets.add(fixture.getClient().create(CALIFORNIA.toBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build()));
+    }
+
+    List<FarmersMarket> pagedFarmersMarkets = new ArrayList<>();
+    String pageToken = "";
+    int pages = 0;
+    do {
+      ReadFarmersMarketResponse page = fixture.getClient().readPage(CALIFORNIA, 3, pageToken);
+      assertThat(page.getFarmersMarketCount()).isAtMost(3);
+      pagedFarmersMarkets.addAll(page.getFarmersMarketList());
+      pageToken = page.getNextPageToken();
+      pages++;
+    } while (!pageToken.isEmpty());
+
+    assertThat(pages).isEqualTo(3);
+    assertThat(pagedFarmersMarkets).containsExactlyElementsIn(createdFarmersMarkets).inOrder();
+  }
+
+  @Test
+  public void testPageTokenIsBoundToTemplate() {
+    for (int i = 0; i < 2; i++) {
+      fixture.getClient().create(CALIFORNIA.toBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build());
+    }
+    String pageToken = fixture.getClient().readPage(CALIFORNIA, 1, "").getNextPageToken();
+    assertThat(pageToken).isNotEmpty();
+
+    try {
+      fixture.getClient().readPage(FarmersMarketTemplate.getDefaultInstance(), 1, pageToken);
+      throw new AssertionError("Expected the page token to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class ReadResultCacheTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setReadCacheMaxMarkets(1000));
+
+  private static final FarmersMarketTemplate CALIFORNIA = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("CA"))
+      .build();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    createInCalifornia("Farmers' Market 0");
+  }
+
+  @Test
+  public void testRepeatedReadIsServedFromCache() {
+    CacheStats before = fixture.getService().getReadCacheStats();
+    assertThat(fixture.getClient().read(CALIFORNIA)).hasSize(1);
+    assertThat(fixture.getClient().read(CALIFORNIA)).hasSize(1);
+    CacheStats delta = fixture.getService().getReadCacheStats().minus(before);
+    assertThat(delta.missCount()).isEqualTo(1);
+    assertThat(delta.hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testWritesInvalidateCachedReads() {
+    assertThat(fixture.getClient().read(CALIFORNIA)).hasSize(1);
+    createInCalifornia("Farmers' Market 1");
+    assertThat(fixture.getClient().read(CALIFORNIA)).hasSize(2);
+
+    fixture.getClient().update(
+        FarmersMarketTemplate.newBuilder()
+            .setState(StringValue.newBuilder().setValue("OR"))
+            .build(),
+        FarmersMarketTemplate.newBuilder()
+            .setName(StringValue.newBuilder().setValue("Farmers' Market 1"))
+            .build());
+    assertThat(fixture.getClient().read(CALIFORNIA)).hasSize(1);
+
+    fixture.getClient().deleteCount(CALIFORNIA);
+    assertThat(fixture.getClient().read(CALIFORNIA)).isEmpty();
+  }
+
+  private static void createInCalifornia(String name) {
+    fixture.getClient().create(CALIFORNIA.toBuilder()
+        .setName(StringValue.newBuilder().setValue(name))
+        .build());
+  }
+}
@@ -0,0 +1,79 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RequestExecutorTest {
+
+  @Test
+  public void testFixedExecutorRefusesCallsButQueuesTasksBeyondQueueCapacity() throws Exception {
+    RequestExecutor executor = new RequestExecutor(FarmersMarketServerOptions.of(0, "unused")
+        .toBuilder()
+        .setExecutorMode(FarmersMarketServerOptions.ExecutorMode.FIXED)
+        .setExecutorThreads(1)
+        .setExecutorQueueCapacity(1)
+        .build());
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(3);
+    try {
+      executor.execute(() -> {
+        started.countDown();
+        awaitUninterruptibly(release);
+        finished.countDown();
+      });
+      assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(executor.admitCall()).isTrue();
+      executor.execute(finished::countDown);
+
+      RequestExecutorStats stats = executor.getStats();
+      assertThat(stats.getMaximumThreads()).isEqualTo(1);
+      assertThat(stats.getActiveThreads()).isEqualTo(1);
+      assertThat(stats.getQueueDepth()).isEqualTo(1);
+
+      // A full queue refuses new calls, but callbacks of calls in progress are still queued.
+      assertThat(executor.admitCall()).isFalse();
+      executor.execute(finished::countDown);
+      assertThat(executor.getStats().getQueueDepth()).isEqualTo(2);
+      release.countDown();
+      assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      release.countDown();
+      executor.close();
+    }
+
+    RequestExecutorStats stats = executor.getStats();
+    assertThat(stats.getQueueDepth()).isEqualTo(0);
+    assertThat(stats.getActiveThreads()).isEqualTo(0);
+    assertThat(stats.getCompletedTaskCount()).isEqualTo(3);
+    assertThat(stats.getRejectedCallCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFixedExecutorIsSizedToConnectionPoolByDefault() {
+    RequestExecutor executor = new RequestExecutor(FarmersMarketServerOptions.of(0, "unused")
+        .toBuilder()
+        .setStorageMode(FarmersMarketServerOptions.StorageMode.WAL)
+        .setConnectionPoolSize(4)
+        .build());
+    try {
+      assertThat(executor.getStats().getMaximumThreads()).isEqualTo(5);
+    } finally {
+      executor.close();
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
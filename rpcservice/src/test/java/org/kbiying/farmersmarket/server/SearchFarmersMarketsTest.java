@@ -0,0 +1,71 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class SearchFarmersMarketsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  private FarmersMarket mainStreet;
+  private FarmersMarket riverside;
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    mainStreet = create("Main Street Farmers Market", "100 Elm Avenue", "Springfield");
+    riverside = create("Riverside Market", "12 Main Street", "Shelbyville");
+  }
+
+  @Test
+  public void testSearchRanksNameMatchesFirst() {
+    List<FarmersMarket> results = fixture.getClient().search("main street", 0);
+    assertThat(results).containsExactly(mainStreet, riverside).inOrder();
+  }
+
+  @Test
+  public void testSearchMatchesLastWordAsPrefix() {
+    assertThat(fixture.getClient().search("rivers", 0)).containsExactly(riverside);
+    assertThat(fixture.getClient().search("rivers ", 0)).isEmpty();
+    assertThat(fixture.getClient().search("spring", 0)).containsExactly(mainStreet);
+  }
+
+  @Test
+  public void testSearchFollowsUpdates() {
+    fixture.getClient().update(
+        FarmersMarketTemplate.newBuilder()
+            .setName(StringValue.newBuilder().setValue("Lakeside Market"))
+            .build(),
+        FarmersMarketTemplate.newBuilder()
+            .setId(Int64Value.newBuilder().setValue(riverside.getId()))
+            .build());
+    assertThat(fixture.getClient().search("riverside", 0)).isEmpty();
+    assertThat(fixture.getClient().search("lakeside", 0)).hasSize(1);
+  }
+
+  @Test
+  public void testSearchTreatsOperatorsAsText() {
+    assertThat(fixture.getClient().search("\"main\" OR NOT (", 0)).isEmpty();
+  }
+
+  private static FarmersMarket create(String name, String address, String city) {
+    return fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue(name))
+        .setAddress(StringValue.newBuilder().setValue(address))
+        .setCity(StringValue.newBuilder().setValue(city))
+        .build());
+  }
+}
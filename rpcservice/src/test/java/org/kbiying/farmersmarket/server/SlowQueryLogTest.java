@@ -0,0 +1,76 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.SlowQuery;
+
+@RunWith(JUnit4.class)
+public class SlowQueryLogTest {
+
+  // Every statement counts as slow, and the log only keeps the last few.
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setSlowQueryThreshold(Duration.ZERO).setSlowQueryLogSize(3));
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+    fixture.getClient().getSlowQueries(true);
+  }
+
+  @Test
+  public void testSlowReadIsRecordedWithQueryPlan() {
+    fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+        .setCity(StringValue.newBuilder().setValue("Springfield"))
+        .build());
+    fixture.getClient().read(FarmersMarketTemplate.newBuilder()
+        .setCity(StringValue.newBuilder().setValue("Springfield"))
+        .build());
+
+    List<SlowQuery> slowQueries = fixture.getClient().getSlowQueries(false);
+
+    SlowQuery read = slowQueries.get(0);
+    assertThat(read.getSql()).isEqualTo(TemplateQueries.getSelectSql(TemplateQueries.CITY));
+    assertThat(read.getFieldMask()).isEqualTo(TemplateQueries.CITY);
+    assertThat(read.getBoundFieldList()).containsExactly("City");
+    assertThat(read.getRowCount()).isEqualTo(1);
+    assertThat(read.getQueryPlanList()).isNotEmpty();
+  }
+
+  @Test
+  public void testSlowQueryLogKeepsMostRecentAndClears() {
+    for (int i = 0; i < 5; i++) {
+      fixture.getClient().read(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build());
+    }
+    fixture.getClient().update(
+        FarmersMarketTemplate.newBuilder()
+            .setState(StringValue.newBuilder().setValue("IL"))
+            .build(),
+        FarmersMarketTemplate.newBuilder()
+            .setCity(StringValue.newBuilder().setValue("Springfield"))
+            .build());
+
+    List<SlowQuery> slowQueries = fixture.getClient().getSlowQueries(true);
+
+    // The update is followed by the read of the updated markets.
+    assertThat(slowQueries).hasSize(3);
+    assertThat(slowQueries.get(0).getSql()).startsWith("SELECT");
+    assertThat(slowQueries.get(1).getSql()).startsWith("UPDATE Markets");
+    assertThat(slowQueries.get(1).getFieldMask()).isEqualTo(TemplateQueries.CITY);
+    assertThat(slowQueries.get(2).getBoundFieldList()).containsExactly("Name");
+    assertThat(fixture.getClient().getSlowQueries(false)).isEmpty();
+  }
+}
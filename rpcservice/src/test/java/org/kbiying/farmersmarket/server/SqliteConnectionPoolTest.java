@@ -0,0 +1,70 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SqliteConnectionPoolTest {
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SqliteConnectionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new SqliteConnectionPool(
+        temporaryFolder.newFile().getAbsolutePath(),
+        new Properties(),
+        ImmutableList.of("PRAGMA busy_timeout = 100"),
+        2,
+        1,
+        Duration.ofMinutes(1),
+        Duration.ofMillis(100));
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws SQLException {
+    PooledConnection first = pool.acquire();
+    first.close();
+    PooledConnection second = pool.acquire();
+    second.close();
+
+    assertThat(second).isSameAs(first);
+    assertThat(pool.getStats().getCreatedCount()).isEqualTo(1);
+    assertThat(pool.getStats().getAcquireCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testPoolIsBounded() throws SQLException {
+    try (PooledConnection first = pool.acquire();
+        PooledConnection second = pool.acquire()) {
+      assertThat(pool.getStats().getUtilization()).isWithin(1e-9).of(1.0);
+      try {
+        pool.acquire();
+        throw new AssertionError("Expected the pool to be exhausted");
+      } catch (SQLTimeoutException expected) {
+        // The pool only holds two connections.
+      }
+    }
+    assertThat(pool.getStats().getActiveConnections()).isEqualTo(0);
+    assertThat(pool.getStats().getIdleConnections()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,49 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class StreamFarmersMarketsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testStreamFarmersMarketsInChunks() {
+    List<FarmersMarket> createdFarmersMarkets = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      createdFarmersMarkets.add(fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .setState(StringValue.newBuilder().setValue(i % 2 == 0 ? "CA" : "OR"))
+          .build()));
+    }
+
+    List<FarmersMarket> streamedFarmersMarkets = ImmutableList.copyOf(
+        fixture.getClient().stream(FarmersMarketTemplate.getDefaultInstance(), 10));
+    assertThat(streamedFarmersMarkets).containsExactlyElementsIn(createdFarmersMarkets).inOrder();
+
+    List<FarmersMarket> streamedCaliforniaMarkets = ImmutableList.copyOf(
+        fixture.getClient().stream(FarmersMarketTemplate.newBuilder()
+            .setState(StringValue.newBuilder().setValue("CA"))
+            .build(), 4));
+    assertThat(streamedCaliforniaMarkets).hasSize(13);
+  }
+}
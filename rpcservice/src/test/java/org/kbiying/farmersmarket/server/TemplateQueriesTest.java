@@ -0,0 +1,35 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class TemplateQueriesTest {
+
+  @Test
+  public void testEmptyTemplateMatchesEverything() {
+    int fieldMask = TemplateQueries.getFieldMask(FarmersMarketTemplate.getDefaultInstance());
+    assertThat(fieldMask).isEqualTo(0);
+    assertThat(TemplateQueries.getWhereClause(fieldMask)).isEqualTo("1");
+  }
+
+  @Test
+  public void testOnlySetFieldsArePredicates() {
+    FarmersMarketTemplate template = FarmersMarketTemplate.newBuilder()
+        .setId(Int64Value.newBuilder().setValue(42))
+        .setState(StringValue.newBuilder().setValue("CA"))
+        .setZip(StringValue.newBuilder().setValue("94110"))
+        .build();
+    int fieldMask = TemplateQueries.getFieldMask(template);
+    assertThat(fieldMask)
+        .isEqualTo(TemplateQueries.ID | TemplateQueries.STATE | TemplateQueries.ZIP);
+    assertThat(TemplateQueries.getSelectSql(fieldMask))
+        .isEqualTo(TemplateQueries.SELECT_MARKETS + " WHERE Id = ? AND State = ? AND Zip = ?");
+  }
+}
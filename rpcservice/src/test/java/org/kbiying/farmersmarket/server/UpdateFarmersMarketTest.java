@@ -66,6 +66,42 @@ public class UpdateFarmersMarketTest {
     assertThat(updatedFarmersMarket.get(0).toBuilder().setId(0).build()).isEqualTo(farmersMarketUpdated);
   }
 
+  @Test
+  public void testUpdateManyFarmersMarkets() {
+    for (int i = 0; i < 150; i++) {
+      fixture.getClient().create(FarmersMarketTemplate.newBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmer's Market " + i))
+          .setState(StringValue.newBuilder().setValue(i % 3 == 0 ? "OR" : "CA"))
+          .build());
+    }
+    FarmersMarketTemplate california = FarmersMarketTemplate.newBuilder()
+        .setState(StringValue.newBuilder().setValue("CA"))
+        .build();
+    FarmersMarketTemplate nevada = FarmersMarketTemplate.newBuilder()
+        .setState(StringValue.newBuilder().setValue("NV"))
+        .build();
+
+    // The updated column is not among the conditions.
+    List<FarmersMarket> updatedCounty = fixture.getClient().update(
+        FarmersMarketTemplate.newBuilder()
+            .setCounty(StringValue.newBuilder().setValue("County"))
+            .build(),
+        california);
+    assertThat(updatedCounty).hasSize(100);
+    for (FarmersMarket farmersMarket : updatedCounty) {
+      assertThat(farmersMarket.getCounty().getValue()).isEqualTo("County");
+    }
+
+    // The updated column is among the conditions, so they no longer match afterwards.
+    List<FarmersMarket> updatedState = fixture.getClient().update(nevada, california);
+    assertThat(updatedState).hasSize(100);
+    for (FarmersMarket farmersMarket : updatedState) {
+      assertThat(farmersMarket.getState().getValue()).isEqualTo("NV");
+    }
+    assertThat(fixture.getClient().read(california)).isEmpty();
+    assertThat(fixture.getClient().read(nevada)).hasSize(100);
+  }
+
 
   private static FarmersMarketTemplate convertFarmersMarketToTemplate(FarmersMarket farmersMarket) {
     FarmersMarketTemplate.Builder templateBuilder = FarmersMarketTemplate.newBuilder();
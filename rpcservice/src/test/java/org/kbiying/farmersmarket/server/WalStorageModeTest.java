@@ -0,0 +1,58 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.StringValue;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+
+@RunWith(JUnit4.class)
+public class WalStorageModeTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setStorageMode(FarmersMarketServerOptions.StorageMode.WAL));
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test
+  public void testConcurrentWritesAndReads() throws Exception {
+    FarmersMarketTemplate template = FarmersMarketTemplate.newBuilder()
+        .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+        .setState(StringValue.newBuilder().setValue("CA"))
+        .build();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<FarmersMarket>> creates = new ArrayList<>();
+      List<Future<List<FarmersMarket>>> reads = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        creates.add(executor.submit(() -> fixture.getClient().create(template)));
+        reads.add(executor.submit(() -> fixture.getClient().read(template)));
+      }
+      for (Future<FarmersMarket> create : creates) {
+        assertThat(create.get().getName()).isEqualTo("Farmers' Market");
+      }
+      for (Future<List<FarmersMarket>> read : reads) {
+        assertThat(read.get().size()).isAtMost(32);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(fixture.getClient().read(template)).hasSize(32);
+  }
+}
@@ -0,0 +1,229 @@
+package org.kbiying.farmersmarket.server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.StringValue;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.kbiying.farmersmarket.proto.FarmersMarket;
+import org.kbiying.farmersmarket.proto.FarmersMarketChange;
+import org.kbiying.farmersmarket.proto.FarmersMarketChangeType;
+import org.kbiying.farmersmarket.proto.FarmersMarketTemplate;
+import org.kbiying.farmersmarket.proto.WatchFarmersMarketsResponse;
+
+@RunWith(JUnit4.class)
+public class WatchFarmersMarketsTest {
+
+  @ClassRule
+  public static final FarmersMarketServiceFixture fixture = new FarmersMarketServiceFixture(
+      options -> options.setChangeLogRetention(4));
+
+  private static final FarmersMarketTemplate CALIFORNIA = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("CA"))
+      .build();
+  private static final FarmersMarketTemplate OREGON = FarmersMarketTemplate.newBuilder()
+      .setState(StringValue.newBuilder().setValue("OR"))
+      .build();
+
+  @Before
+  public void setUp() throws SQLException {
+    fixture.resetDb();
+  }
+
+  @Test(timeout = 10_000)
+  public void testWatchSendsMatchingChangesAndResumes() throws Exception {
+    Context.CancellableContext context = Context.current().withCancellation();
+    List<FarmersMarketChange> changes = new ArrayList<>();
+    long startSequence;
+    try {
+      startSequence = context.call(() -> {
+        Iterator<WatchFarmersMarketsResponse> responses =
+            fixture.getClient().watchFromNow(CALIFORNIA);
+        long sequence = responses.next().getLastSequence();
+
+        FarmersMarket created = fixture.getClient().create(CALIFORNIA.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+            .build());
+        FarmersMarket oregonMarket = fixture.getClient().create(OREGON.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Oregon Market"))
+            .build());
+        FarmersMarketTemplate byId = FarmersMarketTemplate.newBuilder()
+            .setId(Int64Value.newBuilder().setValue(created.getId()))
+            .build();
+        fixture.getClient().update(CALIFORNIA.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Renamed Market"))
+            .build(), byId);
+        fixture.getClient().delete(FarmersMarketTemplate.newBuilder()
+            .setId(Int64Value.newBuilder().setValue(oregonMarket.getId()))
+            .build());
+        fixture.getClient().delete(byId);
+
+        while (changes.size() < 3) {
+          changes.addAll(responses.next().getChangeList());
+        }
+        return sequence;
+      });
+    } finally {
+      context.cancel(null);
+    }
+
+    assertThat(changes).hasSize(3);
+    assertThat(changes.get(0).getType()).isEqualTo(FarmersMarketChangeType.CREATED);
+    assertThat(changes.get(0).getFarmersMarket().getName()).isEqualTo("Farmers' Market");
+    assertThat(changes.get(1).getType()).isEqualTo(FarmersMarketChangeType.UPDATED);
+    assertThat(changes.get(1).getFarmersMarket().getName()).isEqualTo("Renamed Market");
+    assertThat(changes.get(2).getType()).isEqualTo(FarmersMarketChangeType.DELETED);
+    assertThat(changes.get(2).hasFarmersMarket()).isFalse();
+    assertThat(changes.get(2).getPreviousFarmersMarket().getName()).isEqualTo("Renamed Market");
+    assertThat(changes.get(0).getSequence()).isGreaterThan(startSequence);
+    assertThat(changes.get(1).getSequence()).isGreaterThan(changes.get(0).getSequence());
+    assertThat(changes.get(2).getSequence()).isGreaterThan(changes.get(1).getSequence());
+
+    // Resuming from the start replays the same changes from the log.
+    Context.CancellableContext resumeContext = Context.current().withCancellation();
+    List<FarmersMarketChange> resumedChanges = new ArrayList<>();
+    try {
+      resumeContext.run(() -> {
+        Iterator<WatchFarmersMarketsResponse> responses =
+            fixture.getClient().watch(CALIFORNIA, startSequence);
+        assertThat(responses.next().getLastSequence()).isEqualTo(startSequence);
+        while (resumedChanges.size() < 3) {
+          resumedChanges.addAll(responses.next().getChangeList());
+        }
+      });
+    } finally {
+      resumeContext.cancel(null);
+    }
+    assertThat(resumedChanges).isEqualTo(changes);
+  }
+
+  @Test(timeout = 10_000)
+  public void testWatchSendsUpdatesMovingMarketsOutOfTemplate() throws Exception {
+    Context.CancellableContext context = Context.current().withCancellation();
+    List<FarmersMarketChange> changes = new ArrayList<>();
+    try {
+      context.run(() -> {
+        Iterator<WatchFarmersMarketsResponse> responses =
+            fixture.getClient().watchFromNow(CALIFORNIA);
+        responses.next();
+
+        FarmersMarket created = fixture.getClient().create(CALIFORNIA.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+            .build());
+        FarmersMarketTemplate byId = FarmersMarketTemplate.newBuilder()
+            .setId(Int64Value.newBuilder().setValue(created.getId()))
+            .build();
+        fixture.getClient().update(OREGON, byId);
+        // Once the market is out of the template, its updates are no longer sent.
+        fixture.getClient().update(FarmersMarketTemplate.newBuilder()
+            .setName(StringValue.newBuilder().setValue("Renamed Market"))
+            .build(), byId);
+        fixture.getClient().create(CALIFORNIA.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Last Market"))
+            .build());
+
+        while (changes.size() < 3) {
+          changes.addAll(responses.next().getChangeList());
+        }
+      });
+    } finally {
+      context.cancel(null);
+    }
+
+    assertThat(changes).hasSize(3);
+    assertThat(changes.get(0).getType()).isEqualTo(FarmersMarketChangeType.CREATED);
+    assertThat(changes.get(1).getType()).isEqualTo(FarmersMarketChangeType.UPDATED);
+    assertThat(changes.get(1).getFarmersMarket().getState().getValue()).isEqualTo("OR");
+    assertThat(changes.get(1).getPreviousFarmersMarket().getState().getValue())
+        .isEqualTo("CA");
+    assertThat(changes.get(2).getFarmersMarket().getName()).isEqualTo("Last Market");
+  }
+
+  @Test(timeout = 10_000)
+  public void testWatchAdvancesPastChangesNotMatchingTemplate() throws Exception {
+    Context.CancellableContext context = Context.current().withCancellation();
+    try {
+      context.run(() -> {
+        Iterator<WatchFarmersMarketsResponse> responses =
+            fixture.getClient().watchFromNow(CALIFORNIA);
+        long startSequence = responses.next().getLastSequence();
+
+        fixture.getClient().create(OREGON.toBuilder()
+            .setName(StringValue.newBuilder().setValue("Oregon Market"))
+            .build());
+
+        WatchFarmersMarketsResponse response = responses.next();
+        assertThat(response.getChangeList()).isEmpty();
+        assertThat(response.getLastSequence()).isGreaterThan(startSequence);
+      });
+    } finally {
+      context.cancel(null);
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testWatchFromZeroStartsBeforeFirstChange() throws Exception {
+    FarmersMarket created = fixture.getClient().create(OREGON.toBuilder()
+        .setName(StringValue.newBuilder().setValue("Farmers' Market"))
+        .build());
+    Context.CancellableContext context = Context.current().withCancellation();
+    List<FarmersMarketChange> changes = new ArrayList<>();
+    try {
+      context.run(() -> {
+        Iterator<WatchFarmersMarketsResponse> responses =
+            fixture.getClient().watch(OREGON, 0);
+        assertThat(responses.next().getLastSequence()).isEqualTo(0);
+        while (changes.isEmpty()) {
+          changes.addAll(responses.next().getChangeList());
+        }
+      });
+    } finally {
+      context.cancel(null);
+    }
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).getType()).isEqualTo(FarmersMarketChangeType.CREATED);
+    assertThat(changes.get(0).getId()).isEqualTo(created.getId());
+  }
+
+  @Test
+  public void testWatchRejectsSequenceNoLongerRetained() throws Exception {
+    Context.CancellableContext context = Context.current().withCancellation();
+    long startSequence;
+    try {
+      startSequence = context.call(() -> fixture.getClient()
+          .watchFromNow(FarmersMarketTemplate.getDefaultInstance())
+          .next()
+          .getLastSequence());
+    } finally {
+      context.cancel(null);
+    }
+    for (int i = 0; i < 6; i++) {
+      fixture.getClient().create(OREGON.toBuilder()
+          .setName(StringValue.newBuilder().setValue("Farmers' Market " + i))
+          .build());
+    }
+    try {
+      fixture.getClient().watch(OREGON, startSequence).next();
+      throw new AssertionError("Expected the watch to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.OUT_OF_RANGE);
+    }
+    try {
+      fixture.getClient().watch(OREGON, startSequence + 100).next();
+      throw new AssertionError("Expected the watch to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.OUT_OF_RANGE);
+    }
+  }
+}